@@ -27,6 +27,33 @@ public class Constants {
 	public static final String DATA_API_CONCAT = "data.api.page.concat";
 	public static final String DATA_API_REQ_SIZE = "data.api.req.size";
 	public static final String DATA_API_DEFAULT_REQ_SIZE = "25";
+	/*
+	 * latency (ms) and page bytes to keep each batch request near, the number
+	 * of volumes per request then adapts between min and max size starting
+	 * from data.api.req.size. 0 for no target, both 0 keeps the size fixed
+	 */
+	public static final String DATA_API_REQ_TARGET_MILLIS = "data.api.req.target.millis";
+	public static final String DATA_API_DEFAULT_REQ_TARGET_MILLIS = "0";
+	public static final String DATA_API_REQ_TARGET_BYTES = "data.api.req.target.bytes";
+	public static final String DATA_API_DEFAULT_REQ_TARGET_BYTES = "0";
+	public static final String DATA_API_REQ_MIN_SIZE = "data.api.req.min.size";
+	public static final String DATA_API_DEFAULT_REQ_MIN_SIZE = "1";
+	/* also bounds the length of request URLs */
+	public static final String DATA_API_REQ_MAX_SIZE = "data.api.req.max.size";
+	public static final String DATA_API_DEFAULT_REQ_MAX_SIZE = "100";
+	/*
+	 * number of batch requests a map task keeps in flight, 1 fetches one
+	 * batch at a time
+	 */
+	public static final String DATA_API_MAX_INFLIGHT = "data.api.max.inflight";
+	public static final String DATA_API_DEFAULT_MAX_INFLIGHT = "1";
+	/*
+	 * Accept-Encoding of Data API requests, gzip and deflate responses are
+	 * decoded on the fly. "identity" to ask for uncoded responses (an empty
+	 * value does not survive the job configuration)
+	 */
+	public static final String DATA_API_ACCEPT_ENCODING = "data.api.accept.encoding";
+	public static final String DATA_API_DEFAULT_ACCEPT_ENCODING = "gzip, deflate";
 
 	// Oauth2 related properties
 	public static final String OAUTH2_EPR = "oauth2.epr";
@@ -39,6 +66,77 @@ public class Constants {
 	// LDA analysis related properties
 	public static final String LDA_ANALYSIS_MAX_ITER = "lda.analysis.max.iter";
 	public static final String LDA_ANALYSIS_DEFAULT_MAX_ITER = "500";
+	/* Dirichlet prior of document-topic distributions */
+	public static final String LDA_ANALYSIS_ALPHA = "lda.analysis.alpha";
+	public static final String LDA_ANALYSIS_DEFAULT_ALPHA = "0.1";
+	/* Dirichlet prior of topic-word distributions */
+	public static final String LDA_ANALYSIS_BETA = "lda.analysis.beta";
+	public static final String LDA_ANALYSIS_DEFAULT_BETA = "0.01";
+	/*
+	 * sampling algorithm, either "standard" or "sparse" (SparseLDA, faster
+	 * with large number of topics)
+	 */
+	public static final String LDA_ANALYSIS_SAMPLER = "lda.analysis.sampler";
+	public static final String LDA_ANALYSIS_DEFAULT_SAMPLER = "standard";
+	/*
+	 * number of threads used by each map task to sample, volumes of the input
+	 * split are buffered in memory when it is greater than 1
+	 */
+	public static final String LDA_ANALYSIS_NUM_THREADS = "lda.analysis.num.threads";
+	public static final String LDA_ANALYSIS_DEFAULT_NUM_THREADS = "1";
+	/*
+	 * whether map tasks keep the words-topics table they emit in sparse form,
+	 * saves memory when a task only sees a small part of the corpus
+	 */
+	public static final String LDA_ANALYSIS_SPARSE_TABLE = "lda.analysis.sparse.table";
+	public static final String LDA_ANALYSIS_DEFAULT_SPARSE_TABLE = "false";
+	/*
+	 * whether map tasks emit only the changes of words-topics counts, which
+	 * the reducer applies to the state of previous iteration
+	 */
+	public static final String LDA_ANALYSIS_EMIT_DELTAS = "lda.analysis.emit.deltas";
+	public static final String LDA_ANALYSIS_DEFAULT_EMIT_DELTAS = "false";
+	/*
+	 * number of shards of LDA state, each shard (a range of words and a hash
+	 * partition of documents) is merged by its own reducer
+	 */
+	public static final String LDA_ANALYSIS_NUM_SHARDS = "lda.analysis.num.shards";
+	public static final String LDA_ANALYSIS_DEFAULT_NUM_SHARDS = "1";
+	/*
+	 * layout of the topics-documents table built by map tasks, "topic_major"
+	 * or "document_major" (topic values of each document stored together)
+	 */
+	public static final String LDA_ANALYSIS_DOCUMENTS_LAYOUT = "lda.analysis.documents.layout";
+	public static final String LDA_ANALYSIS_DEFAULT_DOCUMENTS_LAYOUT = "topic_major";
+	/*
+	 * how the driver runs iterations, "mapreduce" (a job per iteration) or
+	 * "resident" (all iterations in the driver's JVM, corpus and model kept in
+	 * memory, see LDAResidentEngine)
+	 */
+	public static final String LDA_ANALYSIS_MODE = "lda.analysis.mode";
+	public static final String LDA_ANALYSIS_DEFAULT_MODE = "mapreduce";
+	public static final String LDA_ANALYSIS_MODE_RESIDENT = "resident";
+	/*
+	 * the analysis is converged once fewer than this fraction of tokens change
+	 * topic in an iteration, 0 disables the criterion
+	 */
+	public static final String LDA_ANALYSIS_CONVERGENCE_REASSIGNED = "lda.analysis.convergence.reassigned";
+	public static final String LDA_ANALYSIS_DEFAULT_CONVERGENCE_REASSIGNED = "0";
+	/*
+	 * the analysis is converged once the log-likelihood per token changes by
+	 * less than this fraction between iterations, 0 disables the criterion
+	 */
+	public static final String LDA_ANALYSIS_CONVERGENCE_LIKELIHOOD = "lda.analysis.convergence.likelihood";
+	public static final String LDA_ANALYSIS_DEFAULT_CONVERGENCE_LIKELIHOOD = "0";
+	/*
+	 * whether map tasks memory-map words-topics counts of previous iteration
+	 * from per-shard model files written by reducers (see LDAModelFile)
+	 * rather than deserializing the whole LDA state
+	 */
+	public static final String LDA_ANALYSIS_MAPPED_MODEL = "lda.analysis.mapped.model";
+	public static final String LDA_ANALYSIS_DEFAULT_MAPPED_MODEL = "false";
+	/* seed of random number generators, optional */
+	public static final String LDA_ANALYSIS_SEED = "lda.analysis.seed";
 	/* default step size to increase the capacity of topics-documents table */
 	public static final String LDA_ANALYSIS_DEFAULT_STEP_SIZE = "50";
 }
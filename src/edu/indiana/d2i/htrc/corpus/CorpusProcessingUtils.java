@@ -25,6 +25,7 @@ import java.io.IOException;
 import java.io.InputStreamReader;
 import java.io.OutputStreamWriter;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Comparator;
 import java.util.HashSet;
 import java.util.List;
@@ -32,9 +33,11 @@ import java.util.Map;
 import java.util.Set;
 import java.util.SortedMap;
 import java.util.TreeMap;
+import java.util.regex.Pattern;
 
 import org.apache.hadoop.io.ArrayWritable;
 import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.Writable;
 
 /**
  * Utility class
@@ -44,6 +47,9 @@ import org.apache.hadoop.io.Text;
  */
 public class CorpusProcessingUtils {
 
+	/* delimiter used to split page content into tokens */
+	private static final Pattern TOKEN_DELIMITER = Pattern.compile("\\W+");
+
 	/**
 	 * class that represents a mapping between a word and its index in the full
 	 * word set
@@ -148,35 +154,55 @@ public class CorpusProcessingUtils {
 	 */
 	public static void transformVolume(ArrayWritable volume,
 			List<String> wordSet) {
+		transformVolume(volume, VocabularyIndex.fromWordSet(wordSet));
+	}
+
+	/**
+	 * Transform cleaned volume of form raw text to indices of words in full
+	 * word set
+	 * 
+	 * @param volume
+	 *            volume content represented as a list of pages
+	 * @param wordSetIndex
+	 *            index of interested words (full word set), should be built
+	 *            once and reused across volumes
+	 */
+	public static void transformVolume(ArrayWritable volume,
+			VocabularyIndex wordSetIndex) {
 
 		Text[] pages = (Text[]) volume.get();
 
+		StringBuilder transformedPage = new StringBuilder();
+
 		for (int i = 0; i < pages.length; i++) {
 
 			/**
 			 * Need change the RegExp when we are also interested in general
 			 * symbols other than words
 			 */
-			String[] tokens = pages[i].toString().toLowerCase().split("\\W+");
+			String[] tokens = TOKEN_DELIMITER.split(pages[i].toString()
+					.toLowerCase());
 
-			StringBuilder transformedPage = new StringBuilder();
+			transformedPage.setLength(0);
 
 			int idx = -1;
 
 			for (String token : tokens) {
-				idx = wordSet.indexOf(token);
+				idx = wordSetIndex.indexOf(token);
 
 				/**
 				 * omit tokens that don't appear in word set
 				 */
-				if (idx != -1) {
-					transformedPage.append(idx + " ");
+				if (idx != VocabularyIndex.NOT_FOUND) {
+					if (transformedPage.length() > 0)
+						transformedPage.append(' ');
+
+					transformedPage.append(idx);
 				}
 
 			}
 
-			// remove ' ' at tail
-			pages[i].set(transformedPage.toString().trim());
+			pages[i].set(transformedPage.toString());
 		}
 
 		// set volume
@@ -184,6 +210,48 @@ public class CorpusProcessingUtils {
 
 	}
 
+	/**
+	 * Transform cleaned volume of form raw text to indices of words in full
+	 * word set, in binary form
+	 * 
+	 * @param volume
+	 *            volume content represented as a list of pages
+	 * @param wordSetIndex
+	 *            index of interested words (full word set), should be built
+	 *            once and reused across volumes
+	 * @param transformed
+	 *            holds transformed volume, its previous content is cleared
+	 */
+	public static void transformVolume(ArrayWritable volume,
+			VocabularyIndex wordSetIndex, VolumeTokensWritable transformed) {
+
+		Text[] pages = (Text[]) volume.get();
+
+		transformed.clear();
+
+		for (int i = 0; i < pages.length; i++) {
+
+			/**
+			 * Need change the RegExp when we are also interested in general
+			 * symbols other than words
+			 */
+			String[] tokens = TOKEN_DELIMITER.split(pages[i].toString()
+					.toLowerCase());
+
+			for (String token : tokens) {
+				int idx = wordSetIndex.indexOf(token);
+
+				/**
+				 * omit tokens that don't appear in word set
+				 */
+				if (idx != VocabularyIndex.NOT_FOUND)
+					transformed.addToken(idx);
+			}
+
+			transformed.endPage();
+		}
+	}
+
 	/**
 	 * 
 	 * @param fullWordSetFilePath
@@ -200,28 +268,14 @@ public class CorpusProcessingUtils {
 			String subWordSetFilePath, String mappingTableOutPath)
 			throws IOException {
 
-		List<String> wordSet = new ArrayList<String>();
 		List<String> subWordSet = new ArrayList<String>();
 
 		BufferedReader reader = null;
 		String line = null;
 
 		// load whole wordset
-		try {
-			reader = new BufferedReader(new InputStreamReader(
-					new FileInputStream(fullWordSetFilePath)));
-
-			/* each line is a word */
-			while ((line = reader.readLine()) != null)
-				wordSet.add(line.trim());
-
-		} finally {
-			if (reader != null)
-				reader.close();
-		}
-
-		reader = null;
-		line = null;
+		VocabularyIndex wordSetIndex = VocabularyIndex
+				.load(fullWordSetFilePath);
 
 		// load sub-wordset
 		try {
@@ -248,7 +302,7 @@ public class CorpusProcessingUtils {
 			int idx = -1;
 
 			for (String word : subWordSet) {
-				idx = wordSet.indexOf(word);
+				idx = wordSetIndex.indexOf(word);
 
 				writer.write(word + " " + idx + "\n");
 
@@ -261,6 +315,78 @@ public class CorpusProcessingUtils {
 		}
 	}
 
+	/**
+	 * loads mapping table file generated by
+	 * {@link #generateMappingTable(String, String, String)}
+	 * 
+	 * @param mappingTableFilePath
+	 * @return
+	 * @throws IOException
+	 */
+	public static List<MappingTableEntry> loadMappingTable(
+			String mappingTableFilePath) throws IOException {
+		List<MappingTableEntry> mappingTable = new ArrayList<MappingTableEntry>();
+
+		BufferedReader reader = null;
+		String line = null;
+
+		try {
+			reader = new BufferedReader(new InputStreamReader(
+					new FileInputStream(mappingTableFilePath)));
+
+			/*
+			 * each line is a mapping: <word> <index of the word in full word
+			 * set>
+			 */
+			while ((line = reader.readLine()) != null) {
+				String trimmedLine = line.trim();
+				int idx = trimmedLine.lastIndexOf(' ');
+				mappingTable
+						.add(new MappingTableEntry(trimmedLine
+								.substring(0, idx), Integer
+								.parseInt(trimmedLine.substring(idx + 1))));
+
+			}
+
+		} finally {
+			if (reader != null)
+				reader.close();
+		}
+
+		return mappingTable;
+	}
+
+	/**
+	 * loads topics file, one topic per line
+	 * 
+	 * @param topicsFilePath
+	 * @return
+	 * @throws IOException
+	 */
+	public static List<String> loadTopics(String topicsFilePath)
+			throws IOException {
+		List<String> topics = new ArrayList<String>();
+
+		BufferedReader reader = null;
+		String line = null;
+
+		try {
+			reader = new BufferedReader(new InputStreamReader(
+					new FileInputStream(topicsFilePath)));
+
+			/* Each line is a topic */
+			while ((line = reader.readLine()) != null) {
+				topics.add(line.trim());
+			}
+
+		} finally {
+			if (reader != null)
+				reader.close();
+		}
+
+		return topics;
+	}
+
 	/**
 	 * extracts indices from mapping table
 	 * 
@@ -278,6 +404,27 @@ public class CorpusProcessingUtils {
 		return mappingIndices;
 	}
 
+	/**
+	 * builds index which maps index of a word in full word set (in its decimal
+	 * string form, as it appears in transformed volumes) to index of the word
+	 * in sub word set
+	 * 
+	 * @param mappingIndices
+	 *            indices extracted from mapping table, see
+	 *            {@link #extractIdxFromMappingTable(List)}
+	 * @return
+	 */
+	public static VocabularyIndex indexMappingIndices(
+			List<Integer> mappingIndices) {
+		VocabularyIndex index = new VocabularyIndex(mappingIndices.size());
+
+		int idx = 0;
+		for (Integer fullIdx : mappingIndices)
+			index.put(String.valueOf(fullIdx), idx++);
+
+		return index;
+	}
+
 	/**
 	 * convert volume content to indices in sub word set
 	 * 
@@ -287,33 +434,194 @@ public class CorpusProcessingUtils {
 	 */
 	public static void fullWordSet2SubWordSet(ArrayWritable volume,
 			List<Integer> mappingIndices) {
+		fullWordSet2SubWordSet(volume, WordIndexRemap.build(mappingIndices));
+	}
+
+	/**
+	 * convert volume content to indices in sub word set. Indices are parsed
+	 * as integers and remapped, rather than looked up as strings
+	 * 
+	 * @param volume
+	 *            volume content represented as indices to full word set
+	 * @param remap
+	 *            built by {@link WordIndexRemap#build(List)}, should be built
+	 *            once and reused across volumes
+	 */
+	public static void fullWordSet2SubWordSet(ArrayWritable volume,
+			WordIndexRemap remap) {
+		VolumeTokensWritable tokens = new VolumeTokensWritable();
+		tokens.parse(volume);
+		tokens.remap(remap);
+
+		Writable[] pages = volume.get();
+		int[] indices = tokens.getTokens();
+
+		StringBuilder pg = new StringBuilder();
+
+		for (int i = 0; i < pages.length; i++) {
+			pg.setLength(0);
+
+			for (int j = tokens.getPageStart(i); j < tokens.getPageEnd(i); j++) {
+				if (pg.length() > 0)
+					pg.append(' ');
+
+				pg.append(indices[j]);
+			}
+
+			((Text) pages[i]).set(pg.toString());
+		}
+	}
+
+	/**
+	 * convert volume content to indices in sub word set
+	 * 
+	 * @param volume
+	 *            volume content represented as indices to full word set
+	 * @param mappingIndex
+	 *            index built by {@link #indexMappingIndices(List)}, should be
+	 *            built once and reused across volumes
+	 */
+	public static void fullWordSet2SubWordSet(ArrayWritable volume,
+			VocabularyIndex mappingIndex) {
 		Text[] pages = (Text[]) volume.get();
 
+		StringBuilder pg = new StringBuilder();
+
 		for (int i = 0; i < pages.length; i++) {
 			String[] indices = pages[i].toString().split(" ");
 
-			StringBuilder pg = new StringBuilder();
+			pg.setLength(0);
 
 			for (int j = 0; j < indices.length; j++) {
 
-				int idx = mappingIndices.indexOf(indices[j]);
+				int idx = mappingIndex.indexOf(indices[j]);
 
 				/**
 				 * omit words not in the sub set
 				 */
-				if (idx != -1) {
-					pg.append(idx + " ");
+				if (idx != VocabularyIndex.NOT_FOUND) {
+					if (pg.length() > 0)
+						pg.append(' ');
+
+					pg.append(idx);
 				}
 			}
 
-			// remove ' ' at tail
-			pages[i].set(pg.toString().trim());
+			pages[i].set(pg.toString());
 		}
 
 		// set volume
 		volume.set(pages);
 	}
 
+	/**
+	 * builds remap array from index in full word set to index in sub word
+	 * set, words that are not in the sub set are mapped to -1
+	 * 
+	 * @param mappingIndices
+	 *            indices extracted from mapping table, see
+	 *            {@link #extractIdxFromMappingTable(List)}
+	 * @return
+	 */
+	public static int[] buildFullToSubRemap(List<Integer> mappingIndices) {
+		int maxIdx = -1;
+		for (Integer fullIdx : mappingIndices)
+			maxIdx = Math.max(maxIdx, fullIdx);
+
+		int[] fullToSub = new int[maxIdx + 1];
+		Arrays.fill(fullToSub, -1);
+
+		/* keep the first entry when a word appears more than once */
+		for (int i = mappingIndices.size() - 1; i >= 0; i--) {
+			int fullIdx = mappingIndices.get(i);
+
+			if (fullIdx >= 0)
+				fullToSub[fullIdx] = i;
+		}
+
+		return fullToSub;
+	}
+
+	/**
+	 * convert binary volume content to indices in sub word set
+	 * 
+	 * @param volume
+	 *            volume content represented as indices to full word set
+	 * @param fullToSub
+	 *            remap array built by {@link #buildFullToSubRemap(List)}
+	 */
+	public static void fullWordSet2SubWordSet(VolumeTokensWritable volume,
+			int[] fullToSub) {
+		volume.remap(fullToSub);
+	}
+
+	/**
+	 * convert binary volume content to indices in sub word set
+	 * 
+	 * @param volume
+	 *            volume content represented as indices to full word set
+	 * @param remap
+	 *            built by {@link WordIndexRemap#build(List)}
+	 */
+	public static void fullWordSet2SubWordSet(VolumeTokensWritable volume,
+			WordIndexRemap remap) {
+		volume.remap(remap);
+	}
+
+	/**
+	 * writes value as unsigned LEB128 varint (7 bits per byte, at most 5
+	 * bytes), negative values always take 5 bytes
+	 * 
+	 * @param buffer
+	 * @param pos
+	 *            position to write at
+	 * @param value
+	 * @return position after the written value
+	 */
+	public static int putVarint(byte[] buffer, int pos, int value) {
+		while ((value & ~0x7F) != 0) {
+			buffer[pos++] = (byte) ((value & 0x7F) | 0x80);
+			value >>>= 7;
+		}
+
+		buffer[pos++] = (byte) value;
+		return pos;
+	}
+
+	/**
+	 * reads a sequence of varints written by
+	 * {@link #putVarint(byte[], int, int)}
+	 * 
+	 * @param buffer
+	 * @param pos
+	 *            position to read from
+	 * @param values
+	 *            decoded values go here
+	 * @param offset
+	 *            offset in values to write at
+	 * @param count
+	 *            number of values to read
+	 * @return position after the last value read
+	 */
+	public static int getVarints(byte[] buffer, int pos, int[] values,
+			int offset, int count) {
+		for (int i = offset; i < offset + count; i++) {
+			int value = 0;
+			int shift = 0;
+			byte b;
+
+			do {
+				b = buffer[pos++];
+				value |= (b & 0x7F) << shift;
+				shift += 7;
+			} while (b < 0);
+
+			values[i] = value;
+		}
+
+		return pos;
+	}
+
 	/**
 	 * Sort pages in terms of page order
 	 * 
@@ -0,0 +1,33 @@
+/*
+#
+# Copyright 2007 The Trustees of Indiana University
+#
+# Licensed under the Apache License, Version 2.0 (the "License");
+# you may not use this file except in compliance with the License.
+# You may obtain a copy of the License at
+#
+# http://www.apache.org/licenses/LICENSE-2.0
+#
+# Unless required by applicable law or agreed to in writing, software
+# distributed under the License is distributed on an "AS IS" BASIS,
+# WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+# See the License for the specific language governing permissions and
+# limitations under the License.
+#
+ */
+package edu.indiana.d2i.htrc.corpus;
+
+/**
+ * Binary form of a volume whose token ids are already indices in the sub word
+ * set of a mapping table, as written by CorpusTransformDriver with
+ * user.args.transform.project=true. Same encoding as
+ * {@link VolumeTokensWritable}, the type tells readers (LDA analysis) that
+ * volumes don't need to be mapped from full word set to sub word set again.
+ *
+ */
+public class ProjectedVolumeWritable extends VolumeTokensWritable {
+
+	public ProjectedVolumeWritable() {
+
+	}
+}
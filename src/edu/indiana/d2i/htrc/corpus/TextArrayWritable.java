@@ -18,8 +18,12 @@
 package edu.indiana.d2i.htrc.corpus;
 
 
+import java.io.DataInput;
+import java.io.IOException;
+
 import org.apache.hadoop.io.ArrayWritable;
 import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.Writable;
 
 /**
  * 
@@ -31,4 +35,21 @@ public class TextArrayWritable extends ArrayWritable {
 		super(Text.class);
 	}
 
+	/**
+	 * ArrayWritable.readFields() always creates a Writable[], convert it to
+	 * Text[] so that callers can cast get() to Text[]
+	 */
+	@Override
+	public void readFields(DataInput in) throws IOException {
+		super.readFields(in);
+
+		Writable[] values = get();
+
+		if (!(values instanceof Text[])) {
+			Text[] pages = new Text[values.length];
+			System.arraycopy(values, 0, pages, 0, values.length);
+			set(pages);
+		}
+	}
+
 }
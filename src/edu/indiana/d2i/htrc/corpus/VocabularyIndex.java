@@ -0,0 +1,206 @@
+/*
+#
+# Copyright 2007 The Trustees of Indiana University
+#
+# Licensed under the Apache License, Version 2.0 (the "License");
+# you may not use this file except in compliance with the License.
+# You may obtain a copy of the License at
+#
+# http://www.apache.org/licenses/LICENSE-2.0
+#
+# Unless required by applicable law or agreed to in writing, software
+# distributed under the License is distributed on an "AS IS" BASIS,
+# WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+# See the License for the specific language governing permissions and
+# limitations under the License.
+#
+ */
+package edu.indiana.d2i.htrc.corpus;
+
+import java.io.BufferedReader;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.List;
+
+/**
+ * Open-addressing (linear probing) hash index that maps a word to its index in
+ * a word set. The index is built once, e.g. in a mapper's setup, and replaces
+ * List.indexOf() lookups which are linear in the size of the word set
+ *
+ */
+public class VocabularyIndex {
+
+	/* returned by indexOf() when the word is not in the index */
+	public static final int NOT_FOUND = -1;
+
+	private static final int DEFAULT_EXPECTED_SIZE = 1024;
+
+	/* slots array is kept at most half full */
+	private String[] words;
+	private int[] hashes;
+	private int[] indices;
+
+	private int size = 0;
+	private int mask;
+
+	public VocabularyIndex() {
+		this(DEFAULT_EXPECTED_SIZE);
+	}
+
+	public VocabularyIndex(int expectedSize) {
+		allocate(capacityFor(expectedSize));
+	}
+
+	/**
+	 * builds index for given word set, index of a word is its position in the
+	 * list
+	 *
+	 * @param wordSet
+	 * @return
+	 */
+	public static VocabularyIndex fromWordSet(List<String> wordSet) {
+		VocabularyIndex index = new VocabularyIndex(wordSet.size());
+
+		int idx = 0;
+		for (String word : wordSet)
+			index.put(word, idx++);
+
+		return index;
+	}
+
+	/**
+	 * loads word set file (one word per line) into an index, index of a word
+	 * is its line number starting from 0
+	 *
+	 * @param wordSetFilePath
+	 * @return
+	 * @throws IOException
+	 */
+	public static VocabularyIndex load(String wordSetFilePath)
+			throws IOException {
+		VocabularyIndex index = new VocabularyIndex();
+
+		BufferedReader reader = null;
+		String line = null;
+
+		try {
+			reader = new BufferedReader(new InputStreamReader(
+					new FileInputStream(wordSetFilePath)));
+
+			/* each line is a word */
+			int idx = 0;
+			while ((line = reader.readLine()) != null)
+				index.put(line.trim(), idx++);
+
+		} finally {
+			if (reader != null)
+				reader.close();
+		}
+
+		return index;
+	}
+
+	private static int capacityFor(int expectedSize) {
+		int capacity = 2;
+		while (capacity < 2L * Math.max(expectedSize, 1))
+			capacity <<= 1;
+
+		return capacity;
+	}
+
+	private void allocate(int capacity) {
+		words = new String[capacity];
+		hashes = new int[capacity];
+		indices = new int[capacity];
+		mask = capacity - 1;
+	}
+
+	/**
+	 * spreads String.hashCode() (which is cached by String) so that words
+	 * with similar hash codes don't cluster under linear probing
+	 */
+	private static int hash(String word) {
+		int h = word.hashCode();
+		h ^= h >>> 16;
+		h *= 0x85ebca6b;
+		h ^= h >>> 13;
+		return h;
+	}
+
+	/**
+	 * adds a word to the index. When the word already exists the first index
+	 * is kept, which is consistent with List.indexOf()
+	 *
+	 * @param word
+	 * @param idx
+	 * @return true if the word was added, false if it already exists
+	 */
+	public boolean put(String word, int idx) {
+		if (2 * (size + 1) > words.length)
+			rehash(words.length << 1);
+
+		int h = hash(word);
+		int slot = h & mask;
+
+		while (words[slot] != null) {
+			if (hashes[slot] == h && words[slot].equals(word))
+				return false;
+
+			slot = (slot + 1) & mask;
+		}
+
+		words[slot] = word;
+		hashes[slot] = h;
+		indices[slot] = idx;
+		size++;
+
+		return true;
+	}
+
+	/**
+	 *
+	 * @param word
+	 * @return index of the word, or {@link #NOT_FOUND} when the word is not in
+	 *         the index
+	 */
+	public int indexOf(String word) {
+		int h = hash(word);
+		int slot = h & mask;
+
+		String w;
+		while ((w = words[slot]) != null) {
+			if (hashes[slot] == h && w.equals(word))
+				return indices[slot];
+
+			slot = (slot + 1) & mask;
+		}
+
+		return NOT_FOUND;
+	}
+
+	public int size() {
+		return size;
+	}
+
+	private void rehash(int newCapacity) {
+		String[] oldWords = words;
+		int[] oldHashes = hashes;
+		int[] oldIndices = indices;
+
+		allocate(newCapacity);
+
+		for (int i = 0; i < oldWords.length; i++) {
+			if (oldWords[i] == null)
+				continue;
+
+			int slot = oldHashes[i] & mask;
+			while (words[slot] != null)
+				slot = (slot + 1) & mask;
+
+			words[slot] = oldWords[i];
+			hashes[slot] = oldHashes[i];
+			indices[slot] = oldIndices[i];
+		}
+	}
+}
@@ -0,0 +1,361 @@
+/*
+#
+# Copyright 2007 The Trustees of Indiana University
+#
+# Licensed under the Apache License, Version 2.0 (the "License");
+# you may not use this file except in compliance with the License.
+# You may obtain a copy of the License at
+#
+# http://www.apache.org/licenses/LICENSE-2.0
+#
+# Unless required by applicable law or agreed to in writing, software
+# distributed under the License is distributed on an "AS IS" BASIS,
+# WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+# See the License for the specific language governing permissions and
+# limitations under the License.
+#
+ */
+package edu.indiana.d2i.htrc.corpus;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Arrays;
+
+import org.apache.hadoop.io.ArrayWritable;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.Writable;
+import org.apache.hadoop.io.WritableUtils;
+
+/**
+ * Binary form of a transformed volume. Token ids (indices of words in a word
+ * set) of all pages are stored in one int array, page boundaries are kept as
+ * offsets into that array. On disk the page lengths and token ids are written
+ * as one block of LEB128 varints, so the LDA stage doesn't need to split and
+ * parse page strings in every iteration.
+ *
+ * Instances are meant to be reused, buffers only grow.
+ *
+ */
+public class VolumeTokensWritable implements Writable {
+
+	private int[] tokens = new int[64];
+	private int numTokens = 0;
+
+	/*
+	 * page i occupies tokens [pageOffsets[i], pageOffsets[i + 1]), we always
+	 * have pageOffsets[0] = 0
+	 */
+	private int[] pageOffsets = new int[8];
+	private int numPages = 0;
+
+	/*
+	 * scratch buffer shared by write() and readFields(), page lengths and
+	 * tokens are encoded into one block so that the stream is touched only
+	 * once per volume rather than once per token
+	 */
+	private byte[] encoded = null;
+
+	public VolumeTokensWritable() {
+
+	}
+
+	/**
+	 * removes all pages, buffers are kept for reuse
+	 */
+	public void clear() {
+		numTokens = 0;
+		numPages = 0;
+	}
+
+	/**
+	 * appends a token to the page being built, see {@link #endPage()}
+	 *
+	 * @param token
+	 */
+	public void addToken(int token) {
+		if (numTokens == tokens.length)
+			tokens = Arrays.copyOf(tokens, tokens.length << 1);
+
+		tokens[numTokens++] = token;
+	}
+
+	/**
+	 * ends the page being built, tokens added since the last call belong to
+	 * the page
+	 */
+	public void endPage() {
+		if (numPages + 2 > pageOffsets.length)
+			pageOffsets = Arrays.copyOf(pageOffsets, pageOffsets.length << 1);
+
+		pageOffsets[++numPages] = numTokens;
+	}
+
+	public int getNumPages() {
+		return numPages;
+	}
+
+	public int getNumTokens() {
+		return numTokens;
+	}
+
+	/**
+	 *
+	 * @return backing array, only the first {@link #getNumTokens()} elements
+	 *         are valid
+	 */
+	public int[] getTokens() {
+		return tokens;
+	}
+
+	/**
+	 *
+	 * @param page
+	 * @return offset of the first token of given page
+	 */
+	public int getPageStart(int page) {
+		return pageOffsets[page];
+	}
+
+	/**
+	 *
+	 * @param page
+	 * @return offset after the last token of given page
+	 */
+	public int getPageEnd(int page) {
+		return pageOffsets[page + 1];
+	}
+
+	/**
+	 * sets content from another instance
+	 *
+	 * @param other
+	 */
+	public void set(VolumeTokensWritable other) {
+		if (tokens.length < other.numTokens)
+			tokens = new int[other.numTokens];
+		if (pageOffsets.length < other.numPages + 1)
+			pageOffsets = new int[other.numPages + 1];
+
+		System.arraycopy(other.tokens, 0, tokens, 0, other.numTokens);
+		System.arraycopy(other.pageOffsets, 0, pageOffsets, 0,
+				other.numPages + 1);
+
+		numTokens = other.numTokens;
+		numPages = other.numPages;
+	}
+
+	/**
+	 * replaces each token id t by mapping[t] in place, tokens whose id is out
+	 * of range of the mapping or maps to a negative value are dropped. Pages
+	 * are kept even when they become empty
+	 *
+	 * @param mapping
+	 */
+	public void remap(int[] mapping) {
+		int kept = 0;
+		int start = 0;
+
+		for (int i = 0; i < numPages; i++) {
+			int end = pageOffsets[i + 1];
+
+			for (int j = start; j < end; j++) {
+				int t = tokens[j];
+
+				if (t >= 0 && t < mapping.length && mapping[t] >= 0)
+					tokens[kept++] = mapping[t];
+			}
+
+			start = end;
+			pageOffsets[i + 1] = kept;
+		}
+
+		numTokens = kept;
+	}
+
+	/**
+	 * replaces each token id t by remap.get(t) in place, tokens whose id is
+	 * not in the remap are dropped. Pages are kept even when they become
+	 * empty
+	 *
+	 * @param remap
+	 */
+	public void remap(WordIndexRemap remap) {
+		if (remap.isDense()) {
+			remap(remap.getArray());
+			return;
+		}
+
+		int kept = 0;
+		int start = 0;
+
+		for (int i = 0; i < numPages; i++) {
+			int end = pageOffsets[i + 1];
+
+			for (int j = start; j < end; j++) {
+				int t = remap.get(tokens[j]);
+
+				if (t >= 0)
+					tokens[kept++] = t;
+			}
+
+			start = end;
+			pageOffsets[i + 1] = kept;
+		}
+
+		numTokens = kept;
+	}
+
+	/**
+	 * removes pages without tokens
+	 */
+	public void removeEmptyPages() {
+		int kept = 0;
+
+		for (int i = 0; i < numPages; i++)
+			if (pageOffsets[i + 1] > pageOffsets[kept])
+				pageOffsets[++kept] = pageOffsets[i + 1];
+
+		numPages = kept;
+	}
+
+	/**
+	 *
+	 * @param bound
+	 * @return whether all token ids are in [0, bound)
+	 */
+	public boolean isInRange(int bound) {
+		for (int i = 0; i < numTokens; i++)
+			if (tokens[i] < 0 || tokens[i] >= bound)
+				return false;
+
+		return true;
+	}
+
+	/**
+	 * parses a transformed volume of text form, i.e. each page is a string of
+	 * space separated indices
+	 *
+	 * @param volume
+	 *            volume content represented as indices joined by ' '
+	 */
+	public void parse(ArrayWritable volume) {
+		clear();
+
+		Writable[] pages = volume.get();
+
+		for (int i = 0; i < pages.length; i++) {
+			Text page = (Text) pages[i];
+			byte[] bytes = page.getBytes();
+			int length = page.getLength();
+
+			int value = -1;
+			for (int j = 0; j < length; j++) {
+				byte b = bytes[j];
+
+				if (b >= '0' && b <= '9') {
+					value = (value < 0 ? 0 : value * 10) + (b - '0');
+				} else if (value >= 0) {
+					addToken(value);
+					value = -1;
+				}
+			}
+
+			if (value >= 0)
+				addToken(value);
+
+			endPage();
+		}
+	}
+
+	private static byte[] ensureCapacity(byte[] buffer, int capacity) {
+		if (buffer != null && buffer.length >= capacity)
+			return buffer;
+
+		return new byte[Math.max(capacity, 64)];
+	}
+
+	private void ensureTokensCapacity(int capacity) {
+		if (tokens.length < capacity)
+			tokens = new int[Math.max(capacity, tokens.length << 1)];
+	}
+
+	private void ensurePagesCapacity(int capacity) {
+		if (pageOffsets.length < capacity + 1)
+			pageOffsets = new int[Math.max(capacity + 1,
+					pageOffsets.length << 1)];
+	}
+
+	@Override
+	public void readFields(DataInput in) throws IOException {
+		numPages = WritableUtils.readVInt(in);
+		numTokens = WritableUtils.readVInt(in);
+		int length = WritableUtils.readVInt(in);
+
+		ensurePagesCapacity(numPages);
+		ensureTokensCapacity(numTokens);
+		encoded = ensureCapacity(encoded, length);
+
+		in.readFully(encoded, 0, length);
+
+		byte[] buffer = encoded;
+		int pos = 0;
+
+		// block layout: <page lengths> <tokens>, all as varints
+		pos = CorpusProcessingUtils.getVarints(buffer, pos, pageOffsets, 1,
+				numPages);
+		pos = CorpusProcessingUtils.getVarints(buffer, pos, tokens, 0,
+				numTokens);
+
+		/* page lengths to offsets */
+		pageOffsets[0] = 0;
+		for (int i = 1; i <= numPages; i++)
+			pageOffsets[i] += pageOffsets[i - 1];
+
+		if (pos != length || pageOffsets[numPages] != numTokens)
+			throw new IOException(String.format(
+					"Corrupted volume, decoded %d of %d bytes, %d of %d tokens",
+					pos, length, pageOffsets[numPages], numTokens));
+	}
+
+	@Override
+	public void write(DataOutput out) throws IOException {
+		/* a varint takes at most 5 bytes */
+		encoded = ensureCapacity(encoded, 5 * (numPages + numTokens));
+
+		byte[] buffer = encoded;
+		int pos = 0;
+
+		for (int i = 0; i < numPages; i++)
+			pos = CorpusProcessingUtils.putVarint(buffer, pos,
+					pageOffsets[i + 1] - pageOffsets[i]);
+
+		for (int i = 0; i < numTokens; i++)
+			pos = CorpusProcessingUtils.putVarint(buffer, pos, tokens[i]);
+
+		WritableUtils.writeVInt(out, numPages);
+		WritableUtils.writeVInt(out, numTokens);
+		WritableUtils.writeVInt(out, pos);
+		out.write(buffer, 0, pos);
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder sb = new StringBuilder();
+
+		for (int i = 0; i < numPages; i++) {
+			sb.append('[');
+
+			for (int j = pageOffsets[i]; j < pageOffsets[i + 1]; j++) {
+				if (j > pageOffsets[i])
+					sb.append(' ');
+
+				sb.append(tokens[j]);
+			}
+
+			sb.append(']');
+		}
+
+		return sb.toString();
+	}
+}
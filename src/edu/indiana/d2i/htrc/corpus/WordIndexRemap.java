@@ -0,0 +1,179 @@
+/*
+#
+# Copyright 2007 The Trustees of Indiana University
+#
+# Licensed under the Apache License, Version 2.0 (the "License");
+# you may not use this file except in compliance with the License.
+# You may obtain a copy of the License at
+#
+# http://www.apache.org/licenses/LICENSE-2.0
+#
+# Unless required by applicable law or agreed to in writing, software
+# distributed under the License is distributed on an "AS IS" BASIS,
+# WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+# See the License for the specific language governing permissions and
+# limitations under the License.
+#
+ */
+package edu.indiana.d2i.htrc.corpus;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Maps index of a word in full word set to its index in sub word set. It is
+ * built once, e.g. in a mapper's setup, and applied to every token of every
+ * volume. Usually the remap is a dense array indexed by full index (see
+ * {@link CorpusProcessingUtils#buildFullToSubRemap(List)}), when the full
+ * word set is much larger than the sub set it is an open-addressing (linear
+ * probing) hash table on full indices instead, so that memory stays
+ * proportional to the sub set
+ *
+ */
+public class WordIndexRemap {
+
+	/* returned by get() when the word is not in the sub set */
+	public static final int NOT_FOUND = -1;
+
+	/*
+	 * a dense array is used up to this many entries, or up to DENSE_RATIO
+	 * times the size of the sub set (the hash table takes 4 ints per word)
+	 */
+	private static final int DENSE_MAX_SIZE = 1 << 22;
+	private static final int DENSE_RATIO = 8;
+
+	/* marks an empty slot, full indices are never negative */
+	private static final int EMPTY = -1;
+
+	/* dense remap, null when hashed */
+	private int[] fullToSub = null;
+
+	/* hash table, slots array is kept at most half full */
+	private int[] keys = null;
+	private int[] values = null;
+	private int mask;
+
+	private int size = 0;
+
+	private WordIndexRemap() {
+
+	}
+
+	/**
+	 * builds remap from indices of the mapping table, word i of the sub set
+	 * has full index mappingIndices.get(i). When a full index appears more
+	 * than once the first entry is kept
+	 *
+	 * @param mappingIndices
+	 *            indices extracted from mapping table, see
+	 *            {@link CorpusProcessingUtils#extractIdxFromMappingTable(List)}
+	 * @return
+	 */
+	public static WordIndexRemap build(List<Integer> mappingIndices) {
+		long maxIdx = -1;
+		for (Integer fullIdx : mappingIndices)
+			maxIdx = Math.max(maxIdx, fullIdx);
+
+		WordIndexRemap remap = new WordIndexRemap();
+		remap.size = mappingIndices.size();
+
+		if (maxIdx + 1 <= Math.max(DENSE_MAX_SIZE, (long) DENSE_RATIO
+				* mappingIndices.size())) {
+			remap.fullToSub = CorpusProcessingUtils
+					.buildFullToSubRemap(mappingIndices);
+			return remap;
+		}
+
+		int capacity = 2;
+		while (capacity < 2L * Math.max(mappingIndices.size(), 1))
+			capacity <<= 1;
+
+		remap.keys = new int[capacity];
+		remap.values = new int[capacity];
+		remap.mask = capacity - 1;
+		Arrays.fill(remap.keys, EMPTY);
+
+		int idx = 0;
+		for (Integer fullIdx : mappingIndices)
+			remap.put(fullIdx, idx++);
+
+		return remap;
+	}
+
+	/**
+	 * spreads full indices, which are often consecutive, over the slots
+	 */
+	private static int hash(int fullIdx) {
+		int h = fullIdx * 0x9E3779B9;
+		return h ^ (h >>> 16);
+	}
+
+	private void put(int fullIdx, int subIdx) {
+		if (fullIdx < 0)
+			return;
+
+		int slot = hash(fullIdx) & mask;
+
+		while (keys[slot] != EMPTY) {
+			if (keys[slot] == fullIdx)
+				return;
+
+			slot = (slot + 1) & mask;
+		}
+
+		keys[slot] = fullIdx;
+		values[slot] = subIdx;
+	}
+
+	/**
+	 *
+	 * @param fullIdx
+	 * @return index in sub word set, or {@link #NOT_FOUND} when the word is
+	 *         not in the sub set
+	 */
+	public int get(int fullIdx) {
+		if (fullToSub != null)
+			return (fullIdx >= 0 && fullIdx < fullToSub.length) ? fullToSub[fullIdx]
+					: NOT_FOUND;
+
+		if (fullIdx < 0)
+			return NOT_FOUND;
+
+		int slot = hash(fullIdx) & mask;
+
+		int key;
+		while ((key = keys[slot]) != EMPTY) {
+			if (key == fullIdx)
+				return values[slot];
+
+			slot = (slot + 1) & mask;
+		}
+
+		return NOT_FOUND;
+	}
+
+	/**
+	 *
+	 * @return whether the remap is a dense array, see {@link #getArray()}
+	 */
+	public boolean isDense() {
+		return fullToSub != null;
+	}
+
+	/**
+	 *
+	 * @return dense remap array (-1 for words not in the sub set), null when
+	 *         the remap is hashed
+	 */
+	public int[] getArray() {
+		return fullToSub;
+	}
+
+	/**
+	 *
+	 * @return size of the sub word set
+	 */
+	public int size() {
+		return size;
+	}
+}
@@ -21,6 +21,7 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Properties;
 
@@ -28,26 +29,29 @@ import org.apache.commons.cli.CommandLine;
 import org.apache.commons.cli.Option;
 import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.conf.Configured;
+import org.apache.hadoop.filecache.DistributedCache;
 import org.apache.hadoop.fs.FileSystem;
 import org.apache.hadoop.fs.Path;
-import org.apache.hadoop.io.IOUtils;
-import org.apache.hadoop.io.SequenceFile;
 import org.apache.hadoop.io.Text;
+import org.apache.hadoop.mapreduce.Counters;
 import org.apache.hadoop.mapreduce.Job;
 import org.apache.hadoop.mapreduce.lib.input.FileInputFormat;
 import org.apache.hadoop.mapreduce.lib.input.SequenceFileInputFormat;
 import org.apache.hadoop.mapreduce.lib.output.FileOutputFormat;
 import org.apache.hadoop.mapreduce.lib.output.SequenceFileOutputFormat;
 import org.apache.hadoop.util.GenericOptionsParser;
-import org.apache.hadoop.util.ReflectionUtils;
 import org.apache.hadoop.util.Tool;
 import org.apache.hadoop.util.ToolRunner;
 
 import edu.indiana.d2i.htrc.Constants;
+import edu.indiana.d2i.htrc.corpus.CorpusProcessingUtils;
 import edu.indiana.d2i.htrc.corpus.analysis.LDAAnalyzer.LDAState;
 
 public class LDAAnalysisDriver extends Configured implements Tool {
 
+	/* counters of the last job run, null if it failed */
+	private Counters counters = null;
+
 	@Override
 	public int run(String[] args) throws Exception {
 		// TODO Auto-generated method stub
@@ -89,13 +93,50 @@ public class LDAAnalysisDriver extends Configured implements Tool {
 		job.setInputFormatClass(SequenceFileInputFormat.class);
 		job.setOutputFormatClass(SequenceFileOutputFormat.class);
 
-		/* set number of reduce tasks to be 1 */
-		job.setNumReduceTasks(1);
+		/*
+		 * one reduce task for each shard of LDA state, 1 unless sharding is
+		 * enabled
+		 */
+		job.setPartitionerClass(LDAStatePartitioner.class);
+		job.setNumReduceTasks(Integer.parseInt(conf.get(
+				Constants.LDA_ANALYSIS_NUM_SHARDS,
+				Constants.LDA_ANALYSIS_DEFAULT_NUM_SHARDS)));
+
+		/*
+		 * model files of previous iteration are copied to local disk of each
+		 * node, for map tasks to memory-map them
+		 */
+		String stateFilePath = conf.get("user.args.lda.state.filepath");
+
+		if (stateFilePath != null
+				&& Boolean.parseBoolean(conf.get(
+						Constants.LDA_ANALYSIS_MAPPED_MODEL,
+						Constants.LDA_ANALYSIS_DEFAULT_MAPPED_MODEL).trim())) {
+			Path stateDir = new Path(stateFilePath).getParent();
+			FileSystem fs = stateDir.getFileSystem(conf);
+
+			for (Path modelFile : LDAModelFile.list(fs, stateDir))
+				DistributedCache.addCacheFile(fs.makeQualified(modelFile)
+						.toUri(), job.getConfiguration());
+		}
+
+		if (!job.waitForCompletion(true))
+			return 1;
 
-		return job.waitForCompletion(true) ? 0 : 1;
+		counters = job.getCounters();
+		return 0;
 
 	}
 
+	/**
+	 * 
+	 * @return counters of the job run by {@link #run(String[])}, null if the
+	 *         job failed
+	 */
+	public Counters getCounters() {
+		return counters;
+	}
+
 	public static String[] generateArgs(Option[] genericOptions,
 			String[] remainingGenericOps, String... appArgs) {
 		List<String> args = new ArrayList<String>();
@@ -117,34 +158,100 @@ public class LDAAnalysisDriver extends Configured implements Tool {
 	}
 
 	/**
+	 * turns LDA analysis related properties (if specified in property file)
+	 * into generic options, so that they are visible to map tasks
 	 * 
-	 * @param ldaStateFilePath
-	 *            : HDFS path pointing to lda state file
+	 * @param prop
 	 * @return
-	 * @throws IOException
 	 */
-	private static boolean isAnalysisConverged(String ldaStateFilePath)
-			throws IOException {
-		Configuration conf = new Configuration();
-		FileSystem fs = FileSystem.get(conf);
-		SequenceFile.Reader seqFileReader = null;
+	public static String[] generateAnalysisOps(Properties prop) {
+		String[] names = { Constants.LDA_ANALYSIS_ALPHA,
+				Constants.LDA_ANALYSIS_BETA, Constants.LDA_ANALYSIS_SAMPLER,
+				Constants.LDA_ANALYSIS_NUM_THREADS,
+				Constants.LDA_ANALYSIS_SPARSE_TABLE,
+				Constants.LDA_ANALYSIS_EMIT_DELTAS,
+				Constants.LDA_ANALYSIS_NUM_SHARDS,
+				Constants.LDA_ANALYSIS_DOCUMENTS_LAYOUT,
+				Constants.LDA_ANALYSIS_CONVERGENCE_REASSIGNED,
+				Constants.LDA_ANALYSIS_CONVERGENCE_LIKELIHOOD,
+				Constants.LDA_ANALYSIS_MAPPED_MODEL,
+				Constants.LDA_ANALYSIS_SEED };
+
+		List<String> ops = new ArrayList<String>();
+
+		for (String name : names) {
+			String value = prop.getProperty(name);
+
+			if (value != null) {
+				ops.add("-D");
+				ops.add(name + "=" + value.trim());
+			}
+		}
 
-		try {
-			seqFileReader = new SequenceFile.Reader(fs, new Path(
-					ldaStateFilePath), conf);
+		return ops.toArray(new String[0]);
+	}
+
+	/**
+	 * finds local copy of a file passed with -files, whose name is given by
+	 * the generic option fileNameKey. Map tasks see such files in their
+	 * working directory, the driver resolves them against the list of files
+	 * kept by GenericOptionsParser
+	 * 
+	 * @param conf
+	 * @param fileNameKey
+	 * @return
+	 */
+	private static String localFilePath(Configuration conf, String fileNameKey) {
+		String fileName = conf.get(fileNameKey);
 
-			Text key = (Text) ReflectionUtils.newInstance(
-					seqFileReader.getKeyClass(), conf);
-			LDAState ldaState = (LDAState) ReflectionUtils.newInstance(
-					seqFileReader.getValueClass(), conf);
+		if (fileName == null)
+			throw new IllegalArgumentException("Missing generic option "
+					+ fileNameKey);
 
-			// the sequence file should only have one record
-			seqFileReader.next(key, ldaState);
+		if (new File(fileName).exists())
+			return fileName;
 
-			return LDAAnalyzer.isConverged(ldaState);
+		for (String file : conf.getStrings("tmpfiles", new String[0])) {
+			Path path = new Path(file);
 
+			if (path.getName().equals(fileName))
+				return path.toUri().getPath();
+		}
+
+		return fileName;
+	}
+
+	/**
+	 * runs all iterations in this JVM with {@link LDAResidentEngine}, the
+	 * corpus is read once. Only the state of the last iteration is written,
+	 * to the same place as the state of that iteration in MapReduce mode
+	 * 
+	 * @param conf
+	 *            configuration with generic options
+	 * @param input
+	 * @param outputPrefix
+	 * @param maxIterationNum
+	 * @throws IOException
+	 * @throws InterruptedException
+	 */
+	private static void runResident(Configuration conf, String input,
+			String outputPrefix, int maxIterationNum) throws IOException,
+			InterruptedException {
+		LDAResidentEngine engine = LDAResidentEngine.newInstance(conf,
+				CorpusProcessingUtils.loadMappingTable(localFilePath(conf,
+						"user.args.mapping.table.filename")),
+				CorpusProcessingUtils.loadTopics(localFilePath(conf,
+						"user.args.topics.filename")));
+
+		try {
+			engine.loadCorpus(conf, new Path(input));
+
+			int iterationCount = engine.runIterations(maxIterationNum) - 1;
+
+			engine.writeLDAState(conf, new Path(outputPrefix + "-iter-"
+					+ iterationCount, "part-r-00000"));
 		} finally {
-			IOUtils.closeStream(seqFileReader);
+			engine.close();
 		}
 	}
 
@@ -175,12 +282,28 @@ public class LDAAnalysisDriver extends Configured implements Tool {
 				Constants.LDA_ANALYSIS_MAX_ITER,
 				Constants.LDA_ANALYSIS_DEFAULT_MAX_ITER));
 
+		String[] analysisOps = generateAnalysisOps(prop);
+
+		// analysis properties as seen by map tasks in MapReduce mode
+		Configuration conf = parser.getConfiguration();
+		new GenericOptionsParser(conf, analysisOps);
+
+		if (Constants.LDA_ANALYSIS_MODE_RESIDENT.equals(prop.getProperty(
+				Constants.LDA_ANALYSIS_MODE,
+				Constants.LDA_ANALYSIS_DEFAULT_MODE).trim())) {
+			runResident(conf, appArgs[0], appArgs[1], maxIterationNum);
+			return;
+		}
+
+		LDAConvergenceMonitor convergenceMonitor = new LDAConvergenceMonitor(
+				conf);
+
 		int iterationCount = 0;
 
 		/**
 		 * in the first iteration (iteration 0), there is no LDA state
 		 */
-		String[] arguments = generateArgs(options, new String[0], appArgs[0],
+		String[] arguments = generateArgs(options, analysisOps, appArgs[0],
 				appArgs[1] + "-iter-" + iterationCount);
 
 		/**
@@ -188,12 +311,16 @@ public class LDAAnalysisDriver extends Configured implements Tool {
 		 */
 		while (true) {
 
-			int exitCode = ToolRunner.run(new LDAAnalysisDriver(), arguments);
+			LDAAnalysisDriver driver = new LDAAnalysisDriver();
+			int exitCode = ToolRunner.run(driver, arguments);
 
 			System.out.println(String.format(
 					"LDA analysis finished iteration %d, with exitCode = %d",
 					iterationCount, exitCode));
 
+			if (exitCode != 0)
+				break;
+
 			/**
 			 * LDA state is the output (sequence file) from current iteration
 			 * and is used to initialize the words-topics table and
@@ -203,9 +330,15 @@ public class LDAAnalysisDriver extends Configured implements Tool {
 					+ File.separator + "part-r-00000";
 
 			/**
-			 * load LDA state to check whether it is converged
+			 * check convergence with statistics map tasks report as counters,
+			 * the LDA state is not read
 			 */
-			if (isAnalysisConverged(ldaStateFilePath)) {
+			boolean converged = convergenceMonitor.update(driver
+					.getCounters());
+			System.out.println(String.format("LDA analysis iteration %d, %s",
+					iterationCount, convergenceMonitor));
+
+			if (converged) {
 				System.out.println(String.format(
 						"LDA analysis converged at iteration %d",
 						iterationCount));
@@ -220,15 +353,20 @@ public class LDAAnalysisDriver extends Configured implements Tool {
 				break;
 			}
 
-			String[] otherOps = { "-D",
-					"user.args.lda.state.filepath=" + ldaStateFilePath };
+			List<String> otherOps = new ArrayList<String>();
+			otherOps.add("-D");
+			otherOps.add("user.args.lda.state.filepath=" + ldaStateFilePath);
+			otherOps.add("-D");
+			otherOps.add("user.args.lda.iteration=" + (iterationCount + 1));
+			otherOps.addAll(Arrays.asList(analysisOps));
 
 			/**
 			 * generate arguments for the next iteration and increase iteration
 			 * count
 			 */
-			arguments = generateArgs(options, otherOps, appArgs[0], appArgs[1]
-					+ "-iter-" + ++iterationCount);
+			arguments = generateArgs(options,
+					otherOps.toArray(new String[0]), appArgs[0], appArgs[1]
+							+ "-iter-" + ++iterationCount);
 		}
 
 	}
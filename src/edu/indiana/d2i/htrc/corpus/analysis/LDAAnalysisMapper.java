@@ -17,44 +17,105 @@
  */
 package edu.indiana.d2i.htrc.corpus.analysis;
 
-import java.io.BufferedReader;
-import java.io.FileInputStream;
+import java.io.File;
 import java.io.IOException;
-import java.io.InputStreamReader;
 import java.util.ArrayList;
 import java.util.List;
-
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
 import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.filecache.DistributedCache;
 import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.LocalFileSystem;
 import org.apache.hadoop.fs.Path;
 import org.apache.hadoop.io.IOUtils;
 import org.apache.hadoop.io.SequenceFile;
 import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.Writable;
+import org.apache.hadoop.mapreduce.InputSplit;
 import org.apache.hadoop.mapreduce.Mapper;
-import org.apache.hadoop.util.ReflectionUtils;
+import org.apache.hadoop.mapreduce.lib.input.FileSplit;
+import org.apache.hadoop.mapreduce.lib.output.FileOutputFormat;
 
 import edu.indiana.d2i.htrc.Constants;
 import edu.indiana.d2i.htrc.corpus.CorpusProcessingUtils;
 import edu.indiana.d2i.htrc.corpus.CorpusProcessingUtils.MappingTableEntry;
+import edu.indiana.d2i.htrc.corpus.ProjectedVolumeWritable;
 import edu.indiana.d2i.htrc.corpus.TextArrayWritable;
+import edu.indiana.d2i.htrc.corpus.VolumeTokensWritable;
+import edu.indiana.d2i.htrc.corpus.WordIndexRemap;
 import edu.indiana.d2i.htrc.corpus.analysis.LDAAnalyzer.LDAState;
+import edu.indiana.d2i.htrc.corpus.analysis.LDAAnalyzer.SamplerMode;
+import edu.indiana.d2i.htrc.corpus.analysis.LDAAnalyzer.TopicAssignments;
+import edu.indiana.d2i.htrc.corpus.analysis.LDAAnalyzer.TopicsDocumentsTable.Layout;
 
 public class LDAAnalysisMapper extends
-		Mapper<Text, TextArrayWritable, Text, LDAState> {
+		Mapper<Text, Writable, Text, LDAState> {
 
 	enum HTRC_CORPUS {
 		NUM_LDA_ANALYZED_VOLUMES
 	}
 
-	private static Text LDASTATE_KEY = new Text("LDA_STATE_KEY");
+	private static final Log logger = LogFactory
+			.getLog(LDAAnalysisMapper.class);
+
+	private static Text LDASTATE_KEY = new Text(LDAStateUtils.LDA_STATE_KEY);
+
+	/*
+	 * prefix of side files which hold topic assignments of tokens, one file
+	 * per input split, written to the job output directory
+	 */
+	private static final String ASSIGNMENTS_FILE_PREFIX = "assignments-";
 
-	private List<MappingTableEntry> mappingTable = new ArrayList<MappingTableEntry>();
-	private List<Integer> mappingIndices = null;
+	private List<MappingTableEntry> mappingTable;
+	/* maps index in full word set to index in sub word set */
+	private WordIndexRemap fullToSub = null;
 
-	private List<String> topics = new ArrayList<String>();
+	/* buffer for parsing volumes of text form, reused across map() calls */
+	private VolumeTokensWritable volume = new VolumeTokensWritable();
+
+	private List<String> topics;
 
 	private LDAAnalyzer ldaAnalyzer;
 
+	/*
+	 * topic assignments of volumes of this split. Volumes come in the same
+	 * order in every iteration, so assignments of previous iteration are read
+	 * sequentially along with the input
+	 */
+	private TopicAssignments assignments = new TopicAssignments();
+	private Text assignmentsKey = new Text();
+	private SequenceFile.Reader assignmentsReader = null;
+	private SequenceFile.Writer assignmentsWriter = null;
+
+	/*
+	 * when sampling with more than one thread, volumes of the split are
+	 * buffered in map() and sampled in cleanup()
+	 */
+	private int numThreads;
+
+	/*
+	 * whether to emit changes of words-topics counts rather than the counts,
+	 * previous topic of every token must be known then
+	 */
+	private boolean emitDeltas;
+	private boolean hasPreviousState;
+
+	/* number of shards of LDA state, i.e. number of reducers */
+	private int numShards;
+	private long seed;
+	private List<Text> bufferedKeys = new ArrayList<Text>();
+	private List<VolumeTokensWritable> bufferedVolumes = new ArrayList<VolumeTokensWritable>();
+	private List<TopicAssignments> bufferedAssignments = new ArrayList<TopicAssignments>();
+
 	@Override
 	protected void setup(Context context) throws IOException,
 			InterruptedException {
@@ -63,111 +124,395 @@ public class LDAAnalysisMapper extends
 				.get("user.args.mapping.table.filename");
 		String topicsFileName = conf.get("user.args.topics.filename");
 
-		BufferedReader reader = null;
-		String line = null;
-
 		// load mapping table
-		try {
-			reader = new BufferedReader(new InputStreamReader(
-					new FileInputStream(mappingTableFileName)));
-
-			/*
-			 * each line is a mapping: <word> <index of the word in full word
-			 * set>
-			 */
-			while ((line = reader.readLine()) != null) {
-				String trimmedLine = line.trim();
-				int idx = trimmedLine.lastIndexOf(' ');
-				mappingTable
-						.add(new MappingTableEntry(trimmedLine
-								.substring(0, idx), Integer
-								.parseInt(trimmedLine.substring(idx + 1))));
+		mappingTable = CorpusProcessingUtils
+				.loadMappingTable(mappingTableFileName);
 
-			}
-
-		} finally {
-			if (reader != null)
-				reader.close();
-		}
-
-		mappingIndices = CorpusProcessingUtils
-				.extractIdxFromMappingTable(mappingTable);
-
-		reader = null;
-		line = null;
+		fullToSub = WordIndexRemap.build(CorpusProcessingUtils
+				.extractIdxFromMappingTable(mappingTable));
 
 		// load topics
-		try {
-			reader = new BufferedReader(new InputStreamReader(
-					new FileInputStream(topicsFileName)));
-
-			/* Each line is a topic */
-			while ((line = reader.readLine()) != null) {
-				topics.add(line.trim());
-			}
-
-		} finally {
-			if (reader != null)
-				reader.close();
-		}
+		topics = CorpusProcessingUtils.loadTopics(topicsFileName);
 
 		// load LDA state, stateFilePath is the path in HDFS
 		String stateFilePath = conf.get("user.args.lda.state.filepath");
 		int stepSize = conf.getInt("user.args.topdoctable.capacity.stepsize",
 				Integer.parseInt(Constants.LDA_ANALYSIS_DEFAULT_STEP_SIZE));
 
+		double alpha = Double.parseDouble(conf.get(
+				Constants.LDA_ANALYSIS_ALPHA,
+				Constants.LDA_ANALYSIS_DEFAULT_ALPHA));
+		double beta = Double.parseDouble(conf.get(Constants.LDA_ANALYSIS_BETA,
+				Constants.LDA_ANALYSIS_DEFAULT_BETA));
+
+		/*
+		 * seed differs among map tasks and iterations, the same random
+		 * numbers in every iteration would mostly pick the topics of the
+		 * previous one again
+		 */
+		seed = conf.getLong(Constants.LDA_ANALYSIS_SEED,
+				System.nanoTime())
+				+ context.getTaskAttemptID().getTaskID().getId()
+				+ 1000003L * conf.getInt("user.args.lda.iteration", 0);
+
+		// model files of previous iteration to map, if any
+		List<File> modelFiles = null;
+
+		if (stateFilePath != null
+				&& Boolean.parseBoolean(conf.get(
+						Constants.LDA_ANALYSIS_MAPPED_MODEL,
+						Constants.LDA_ANALYSIS_DEFAULT_MAPPED_MODEL).trim()))
+			modelFiles = findModelFiles(conf, stateFilePath);
+
 		if (stateFilePath == null) {
 			// No previous state for initialization (first iteration)
-			ldaAnalyzer = new LDAAnalyzer(mappingTable, topics, stepSize);
+			ldaAnalyzer = new LDAAnalyzer(mappingTable, topics, stepSize,
+					alpha, beta, seed);
+		} else if (modelFiles != null) {
+			// map words-topics counts of previous iteration
+			ldaAnalyzer = new LDAAnalyzer(LDAModelFile.open(modelFiles,
+					mappingTable.size(), topics.size()), mappingTable, topics,
+					stepSize, alpha, beta, seed);
 		} else {
 			// second and following iterations
-			FileSystem fs = FileSystem.get(conf);
-			SequenceFile.Reader seqFileReader = null;
-
-			try {
-				seqFileReader = new SequenceFile.Reader(fs, new Path(
-						stateFilePath), conf);
-
-				Text key = (Text) ReflectionUtils.newInstance(
-						seqFileReader.getKeyClass(), conf);
-				LDAState ldaState = (LDAState) ReflectionUtils.newInstance(
-						seqFileReader.getValueClass(), conf);
-
-				// the sequence file should only have one record
-				seqFileReader.next(key, ldaState);
-
-				ldaAnalyzer = new LDAAnalyzer(ldaState.getWordsTopicsTable(),
-						ldaState.getTopicsDocumentsTable(), mappingTable,
-						topics);
-			} finally {
-				IOUtils.closeStream(seqFileReader);
+			LDAState ldaState = LDAStateUtils.readLDAState(conf,
+					stateFilePath);
+
+			ldaAnalyzer = new LDAAnalyzer(ldaState.getWordsTopicsTable(),
+					ldaState.getTopicsDocumentsTable(), mappingTable, topics,
+					alpha, beta, seed);
+		}
+
+		ldaAnalyzer.setSamplerMode(SamplerMode.valueOf(conf.get(
+				Constants.LDA_ANALYSIS_SAMPLER,
+				Constants.LDA_ANALYSIS_DEFAULT_SAMPLER).trim().toUpperCase()));
+
+		emitDeltas = Boolean.parseBoolean(conf.get(
+				Constants.LDA_ANALYSIS_EMIT_DELTAS,
+				Constants.LDA_ANALYSIS_DEFAULT_EMIT_DELTAS).trim());
+		hasPreviousState = (stateFilePath != null);
+
+		// deltas are always sparse
+		ldaAnalyzer.setSparseWordsTopicsTable(emitDeltas
+				|| Boolean.parseBoolean(conf.get(
+						Constants.LDA_ANALYSIS_SPARSE_TABLE,
+						Constants.LDA_ANALYSIS_DEFAULT_SPARSE_TABLE).trim()));
+		ldaAnalyzer.setEmitDeltas(emitDeltas);
+		ldaAnalyzer.setCollectStatistics(new LDAConvergenceMonitor(conf)
+				.isEnabled());
+		ldaAnalyzer.setTopicsDocumentsLayout(Layout.valueOf(conf.get(
+				Constants.LDA_ANALYSIS_DOCUMENTS_LAYOUT,
+				Constants.LDA_ANALYSIS_DEFAULT_DOCUMENTS_LAYOUT).trim()
+				.toUpperCase()));
+
+		numShards = Integer.parseInt(conf.get(
+				Constants.LDA_ANALYSIS_NUM_SHARDS,
+				Constants.LDA_ANALYSIS_DEFAULT_NUM_SHARDS));
+
+		numThreads = Integer.parseInt(conf.get(
+				Constants.LDA_ANALYSIS_NUM_THREADS,
+				Constants.LDA_ANALYSIS_DEFAULT_NUM_THREADS));
+
+		openAssignments(context, stateFilePath);
+	}
+
+	/**
+	 * finds local copies of the model files of previous iteration, from the
+	 * distributed cache, or from the state directory itself when it is on
+	 * local file system
+	 * 
+	 * @param conf
+	 * @param stateFilePath
+	 * @return null if there are no model files
+	 */
+	private List<File> findModelFiles(Configuration conf, String stateFilePath)
+			throws IOException {
+		List<File> files = new ArrayList<File>();
+		Path[] cacheFiles = DistributedCache.getLocalCacheFiles(conf);
+
+		if (cacheFiles != null) {
+			for (Path path : cacheFiles)
+				if (LDAModelFile.getShard(path.getName()) >= 0)
+					files.add(new File(path.toUri().getPath()));
+		}
+
+		Path stateDir = new Path(stateFilePath).getParent();
+		FileSystem fs = stateDir.getFileSystem(conf);
+
+		if (files.isEmpty() && fs instanceof LocalFileSystem) {
+			for (Path path : LDAModelFile.list(fs, stateDir))
+				files.add(((LocalFileSystem) fs).pathToFile(path));
+		}
+
+		if (files.isEmpty()) {
+			logger.warn("No model files found for " + stateFilePath
+					+ ", LDA state will be read in full");
+			return null;
+		}
+
+		return files;
+	}
+
+	/**
+	 * opens side file to write topic assignments of current iteration, and
+	 * the one written by previous iteration for the same split if any
+	 */
+	private void openAssignments(Context context, String stateFilePath)
+			throws IOException, InterruptedException {
+		Configuration conf = context.getConfiguration();
+
+		InputSplit split = context.getInputSplit();
+		String assignmentsFileName = null;
+
+		if (split instanceof FileSplit) {
+			assignmentsFileName = ASSIGNMENTS_FILE_PREFIX
+					+ ((FileSplit) split).getPath().getName() + "-"
+					+ ((FileSplit) split).getStart();
+		} else {
+			assignmentsFileName = ASSIGNMENTS_FILE_PREFIX
+					+ context.getTaskAttemptID().getTaskID().getId();
+		}
+
+		Path workPath = FileOutputFormat.getWorkOutputPath(context);
+		assignmentsWriter = SequenceFile.createWriter(
+				workPath.getFileSystem(conf), conf, new Path(workPath,
+						assignmentsFileName), Text.class,
+				TopicAssignments.class);
+
+		if (stateFilePath != null) {
+			Path prevPath = new Path(new Path(stateFilePath).getParent(),
+					assignmentsFileName);
+			FileSystem fs = prevPath.getFileSystem(conf);
+
+			if (fs.exists(prevPath)) {
+				assignmentsReader = new SequenceFile.Reader(fs, prevPath, conf);
+			} else {
+				logger.warn("No topic assignments found at " + prevPath
+						+ ", tokens will be assigned to random topics");
+			}
+		}
+	}
+
+	/**
+	 * reads topic assignments of given volume from previous iteration
+	 * 
+	 * @param volumeID
+	 * @return false if no assignments are available for the volume
+	 */
+	private boolean readAssignments(Text volumeID) throws IOException {
+		if (assignmentsReader == null)
+			return false;
+
+		if (assignmentsReader.next(assignmentsKey, assignments)
+				&& assignmentsKey.equals(volumeID)) {
+			if (assignments.isInRange(topics.size()))
+				return true;
+
+			logger.warn("Topic assignments at volume " + volumeID
+					+ " are not of " + topics.size()
+					+ " topics (file of a run with other topics?), "
+					+ "remaining tokens will be assigned to random topics");
+		} else {
+			logger.warn("Topic assignments are out of sync with input at volume "
+					+ volumeID
+					+ ", remaining tokens will be assigned to random topics");
+		}
+
+		IOUtils.closeStream(assignmentsReader);
+		assignmentsReader = null;
+
+		return false;
+	}
+
+	/**
+	 * Samples buffered volumes with a pool of threads. Volumes are split into
+	 * contiguous chunks of about the same number of tokens, each chunk is
+	 * sampled by an analyzer forked from {@link #ldaAnalyzer} (the first chunk
+	 * by ldaAnalyzer itself). Tables of the forked analyzers are merged into
+	 * ldaAnalyzer afterwards, and topic assignments are written in input order
+	 */
+	private void sampleBufferedVolumes(Context context) throws IOException,
+			InterruptedException {
+		int numVolumes = bufferedVolumes.size();
+
+		long totalTokens = 0;
+		for (VolumeTokensWritable vol : bufferedVolumes)
+			totalTokens += vol.getNumTokens();
+
+		// chunk boundaries, chunk t holds volumes [bounds[t], bounds[t + 1])
+		int[] bounds = new int[numThreads + 1];
+		long tokens = 0;
+		int chunk = 1;
+		for (int i = 0; i < numVolumes && chunk < numThreads; i++) {
+			tokens += bufferedVolumes.get(i).getNumTokens();
+
+			while (chunk < numThreads
+					&& tokens * numThreads >= totalTokens * chunk)
+				bounds[chunk++] = i + 1;
+		}
+		while (chunk <= numThreads)
+			bounds[chunk++] = numVolumes;
+
+		/*
+		 * all analyzers are forked before any thread starts, ldaAnalyzer
+		 * changes as soon as the first chunk is being sampled
+		 */
+		LDAAnalyzer[] analyzers = new LDAAnalyzer[numThreads];
+		analyzers[0] = ldaAnalyzer;
+		for (int t = 1; t < numThreads; t++)
+			analyzers[t] = ldaAnalyzer.fork(seed + 7919L * t);
+
+		ExecutorService executor = Executors.newFixedThreadPool(numThreads);
+		List<Future<LDAAnalyzer>> futures = new ArrayList<Future<LDAAnalyzer>>();
+
+		try {
+			for (int t = 0; t < numThreads; t++) {
+				final LDAAnalyzer analyzer = analyzers[t];
+				final int from = bounds[t];
+				final int to = bounds[t + 1];
+
+				futures.add(executor.submit(new Callable<LDAAnalyzer>() {
+
+					@Override
+					public LDAAnalyzer call() throws Exception {
+						for (int i = from; i < to; i++) {
+							analyzer.updateWordsTopicsTable(
+									bufferedVolumes.get(i),
+									bufferedAssignments.get(i));
+							analyzer.updateTopcisDocumentsTable(bufferedKeys
+									.get(i).toString(), bufferedVolumes.get(i),
+									bufferedAssignments.get(i));
+						}
+
+						return analyzer;
+					}
+				}));
 			}
 
+			for (int t = 0; t < numThreads; t++) {
+				LDAAnalyzer analyzer = null;
+
+				// keep reporting progress so that the task is not killed
+				while (analyzer == null) {
+					try {
+						analyzer = futures.get(t).get(10, TimeUnit.SECONDS);
+					} catch (TimeoutException e) {
+						context.progress();
+					} catch (ExecutionException e) {
+						throw new IOException("Sampling thread failed",
+								e.getCause());
+					}
+				}
+
+				if (t > 0)
+					ldaAnalyzer.merge(analyzer);
+			}
+		} finally {
+			executor.shutdownNow();
 		}
 
+		for (int i = 0; i < numVolumes; i++)
+			assignmentsWriter.append(bufferedKeys.get(i),
+					bufferedAssignments.get(i));
+
+		bufferedKeys.clear();
+		bufferedVolumes.clear();
+		bufferedAssignments.clear();
 	}
 
 	@Override
 	protected void cleanup(Context context) throws IOException,
 			InterruptedException {
 
-		// write partial LDA state
-		context.write(LDASTATE_KEY, ldaAnalyzer.getLDAState());
+		IOUtils.closeStream(assignmentsReader);
+
+		if (numThreads > 1)
+			sampleBufferedVolumes(context);
+
+		assignmentsWriter.close();
+
+		LDAConvergenceMonitor.report(ldaAnalyzer, context);
+
+		// write partial LDA state, one record for each shard when sharded
+		if (numShards > 1) {
+			LDAState[] shards = LDAStateUtils.shard(ldaAnalyzer.getLDAState(),
+					numShards);
+
+			for (int s = 0; s < numShards; s++)
+				context.write(LDAStateUtils.shardKey(s), shards[s]);
+		} else {
+			context.write(LDASTATE_KEY, ldaAnalyzer.getLDAState());
+		}
 	}
 
 	@Override
-	public void map(Text key, TextArrayWritable value, Context context)
+	public void map(Text key, Writable value, Context context)
 			throws IOException, InterruptedException {
 		// key is volume id, value is volume content (list of pages), key and
-		// value are extracted from sequence file
+		// value are extracted from sequence file. Volume content is either
+		// VolumeTokensWritable or TextArrayWritable, depending on whether the
+		// corpus was transformed with user.args.transform.binary=true, or
+		// ProjectedVolumeWritable already in sub word set when it was
+		// projected with user.args.transform.project=true
 
-		CorpusProcessingUtils.fullWordSet2SubWordSet(value, mappingIndices);
+		VolumeTokensWritable tokens = null;
+
+		if (value instanceof ProjectedVolumeWritable) {
+			tokens = (VolumeTokensWritable) value;
+
+			if (!tokens.isInRange(fullToSub.size()))
+				throw new IOException(String.format(
+						"Volume %s has words out of the sub word set of size %d, the corpus was projected with another mapping table",
+						key, fullToSub.size()));
+		} else {
+			if (value instanceof VolumeTokensWritable) {
+				tokens = (VolumeTokensWritable) value;
+			} else {
+				volume.parse((TextArrayWritable) value);
+				tokens = volume;
+			}
+
+			CorpusProcessingUtils.fullWordSet2SubWordSet(tokens, fullToSub);
+		}
+
+		// topic assignments from previous iteration
+		if (!readAssignments(key))
+			assignments.clear();
+
+		/*
+		 * counts of the volume are in the previous state, they can't be
+		 * removed without knowing the topics they were assigned to
+		 */
+		if (emitDeltas && hasPreviousState
+				&& assignments.size() != tokens.getNumTokens())
+			throw new IOException(String.format(
+					"No topic assignments from previous iteration for volume %s, which are required by %s=true",
+					key, Constants.LDA_ANALYSIS_EMIT_DELTAS));
+
+		if (numThreads > 1) {
+			// sampled in cleanup()
+			VolumeTokensWritable bufferedVolume = new VolumeTokensWritable();
+			bufferedVolume.set(tokens);
+			TopicAssignments bufferedAssignment = new TopicAssignments();
+			bufferedAssignment.set(assignments);
+
+			bufferedKeys.add(new Text(key));
+			bufferedVolumes.add(bufferedVolume);
+			bufferedAssignments.add(bufferedAssignment);
+
+			context.getCounter(HTRC_CORPUS.NUM_LDA_ANALYZED_VOLUMES)
+					.increment(1);
+			return;
+		}
 
 		// update WordsTopicsTable
-		ldaAnalyzer.updateWordsTopicsTable(value);
+		ldaAnalyzer.updateWordsTopicsTable(tokens, assignments);
 
 		// update TopcisDocumentsTable
-		ldaAnalyzer.updateTopcisDocumentsTable(key.toString(), value);
+		ldaAnalyzer.updateTopcisDocumentsTable(key.toString(), tokens,
+				assignments);
+
+		assignmentsWriter.append(key, assignments);
 
 		// report progress
 		context.getCounter(HTRC_CORPUS.NUM_LDA_ANALYZED_VOLUMES).increment(1);
@@ -18,38 +18,107 @@
 package edu.indiana.d2i.htrc.corpus.analysis;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
 
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.Path;
 import org.apache.hadoop.io.Text;
 import org.apache.hadoop.mapreduce.Reducer;
+import org.apache.hadoop.mapreduce.lib.output.FileOutputFormat;
 
+import edu.indiana.d2i.htrc.Constants;
 import edu.indiana.d2i.htrc.corpus.analysis.LDAAnalyzer.LDAState;
 import edu.indiana.d2i.htrc.corpus.analysis.LDAAnalyzer.TopicsDocumentsTable;
 import edu.indiana.d2i.htrc.corpus.analysis.LDAAnalyzer.WordsTopicsTable;
 
 public class LDAAnalysisReducer extends Reducer<Text, LDAState, Text, LDAState> {
 
+	/*
+	 * path of the state of previous iteration when mappers emit deltas, null
+	 * otherwise
+	 */
+	private String previousStateFilePath = null;
+	private int numShards;
+	/* whether to write words-topics table as a model file as well */
+	private boolean mappedModel;
+
+	@Override
+	protected void setup(Context context) throws IOException,
+			InterruptedException {
+		Configuration conf = context.getConfiguration();
+
+		boolean emitDeltas = Boolean.parseBoolean(conf.get(
+				Constants.LDA_ANALYSIS_EMIT_DELTAS,
+				Constants.LDA_ANALYSIS_DEFAULT_EMIT_DELTAS).trim());
+		numShards = Integer.parseInt(conf.get(
+				Constants.LDA_ANALYSIS_NUM_SHARDS,
+				Constants.LDA_ANALYSIS_DEFAULT_NUM_SHARDS));
+		mappedModel = Boolean.parseBoolean(conf.get(
+				Constants.LDA_ANALYSIS_MAPPED_MODEL,
+				Constants.LDA_ANALYSIS_DEFAULT_MAPPED_MODEL).trim());
+
+		// deltas of first iteration are the counts themselves
+		if (emitDeltas)
+			previousStateFilePath = conf.get("user.args.lda.state.filepath");
+	}
+
 	@Override
 	public void reduce(Text key, Iterable<LDAState> values, Context context)
 			throws IOException, InterruptedException {
 
 		WordsTopicsTable wordsTopicsTable = new WordsTopicsTable();
-		TopicsDocumentsTable topicsDocumentsTable = new TopicsDocumentsTable();
+
+		/*
+		 * topics-documents tables are collected and concatenated at once, a
+		 * new value object is read for each partial state
+		 */
+		List<TopicsDocumentsTable> topicsDocumentsTables = new ArrayList<TopicsDocumentsTable>();
+
+		// deltas from mappers are applied to the previous table (shard)
+		if (previousStateFilePath != null) {
+			int shard = LDAStateUtils.getShard(key);
+			Configuration conf = context.getConfiguration();
+
+			LDAState previousState = (shard < 0) ? LDAStateUtils.readLDAState(
+					conf, previousStateFilePath) : LDAStateUtils
+					.readLDAStateShard(conf, previousStateFilePath, shard,
+							numShards);
+
+			wordsTopicsTable = previousState.getWordsTopicsTable();
+			wordsTopicsTable.toDense();
+		}
 
 		// merge and concatenate
 		for (LDAState ldaState : values) {
 			// merge wordsTopicsTable
 			wordsTopicsTable.mergeTables(ldaState.getWordsTopicsTable());
 
-			// concatenate topicsDocumentsTable
-			topicsDocumentsTable.concatenateTables(ldaState
-					.getTopicsDocumentsTable());
+			// collect topicsDocumentsTable
+			topicsDocumentsTables.add(ldaState.getTopicsDocumentsTable());
 
 			context.progress();
 		}
 
+		// concatenate topicsDocumentsTable
+		TopicsDocumentsTable topicsDocumentsTable = TopicsDocumentsTable
+				.concatenate(topicsDocumentsTables);
+
 		// sort topicsDocumentsTable
 		topicsDocumentsTable.sortTable();
 
 		context.write(key, new LDAState(wordsTopicsTable, topicsDocumentsTable));
+
+		// committed to the output directory along with the part file
+		if (mappedModel) {
+			Path modelPath = new Path(
+					FileOutputFormat.getWorkOutputPath(context),
+					LDAModelFile.fileName(Math.max(0,
+							LDAStateUtils.getShard(key))));
+
+			LDAModelFile.write(
+					modelPath.getFileSystem(context.getConfiguration()),
+					modelPath, wordsTopicsTable);
+		}
 	}
 }
@@ -20,81 +20,1103 @@ package edu.indiana.d2i.htrc.corpus.analysis;
 import java.io.DataInput;
 import java.io.DataOutput;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+import java.nio.charset.Charset;
 import java.util.ArrayList;
-import java.util.Collections;
+import java.util.Arrays;
+import java.util.Comparator;
 import java.util.List;
 
-import org.apache.hadoop.io.ArrayWritable;
-import org.apache.hadoop.io.Text;
 import org.apache.hadoop.io.Writable;
+import org.apache.hadoop.io.WritableUtils;
 
+import edu.indiana.d2i.htrc.corpus.CorpusProcessingUtils;
 import edu.indiana.d2i.htrc.corpus.CorpusProcessingUtils.MappingTableEntry;
+import edu.indiana.d2i.htrc.corpus.VolumeTokensWritable;
 import edu.indiana.d2i.htrc.exception.DimensionMismatchException;
 
+/**
+ * Collapsed Gibbs sampler for LDA. Each instance is used by a single thread,
+ * all buffers used by the per-token sampling loop are allocated once
+ *
+ */
 public class LDAAnalyzer {
 	private List<MappingTableEntry> mappingTable;
 	private List<String> topics;
+
+	/*
+	 * tables to be emitted, they only hold counts of the volumes processed by
+	 * this analyzer so that tables from different mappers can be merged
+	 * (summed) and concatenated by the reducer
+	 */
 	private WordsTopicsTable wordsTopicsTable;
 	private TopicsDocumentsTable topicsDocumentsTable;
 
+	/* Dirichlet priors of document-topic and topic-word distributions */
+	private double alpha;
+	private double beta;
+
+	private int numWords;
+	private int numTopics;
+
+	/*
+	 * counts used for sampling, derived from the state of previous iteration
+	 * (all zero in the first iteration) and updated as tokens are
+	 * reassigned. wordTopicCounts are on heap, or mapped from model files of
+	 * previous iteration
+	 */
+	private WordTopicCounts wordTopicCounts;
+	/*
+	 * array of heap counts, null for mapped counts. Samplers index it by
+	 * word directly, so sampling heap counts is the plain array loop it was
+	 * before counts could be mapped (going through row indices cost the
+	 * standard sampler about a quarter of its throughput at times)
+	 */
+	private final int[] heapCounts;
+	private int[] topicCounts;
+	/* 1 / (topicCounts[k] + numWords * beta), kept in sync with topicCounts */
+	private double[] topicDenominators;
+
+	/* per-volume buffers */
+	private int[] docTopicCounts;
+	private double[] cumulativeProbs;
+	private float[] docTopicValues;
+
+	private XorShiftRandom random;
+
+	/**
+	 * Sampling algorithms. STANDARD computes the full conditional over all
+	 * topics for every token, i.e. O(K) per token. SPARSE is SparseLDA (Yao et
+	 * al. 2009) which splits the conditional into a smoothing bucket, a
+	 * document bucket and a word bucket, per-token cost is then proportional
+	 * to the number of topics present in the document plus the number of
+	 * topics the word is assigned to, and is much lower than STANDARD when
+	 * the number of topics is large
+	 * 
+	 */
+	public enum SamplerMode {
+		STANDARD, SPARSE
+	}
+
+	private SamplerMode samplerMode = SamplerMode.STANDARD;
+
+	/*
+	 * used in SPARSE mode only: topics with non-zero count for each word (in
+	 * no particular order), topics present in current volume, and
+	 * coefficients (n_dk + alpha) / (n_k + V * beta) of all topics for
+	 * current volume
+	 */
+	private int[][] wordNonZeroTopics;
+	private int[] wordNonZeroSizes;
+	private int[] docNonZeroTopics;
+	private int docNonZeroSize;
+	private double[] topicCoefficients;
+
+	/*
+	 * whether the words-topics table holds changes of counts, see
+	 * setEmitDeltas(), and topics of the volume before sampling
+	 */
+	private boolean emitDeltas = false;
+	private int[] previousTopics = new int[64];
+
+	/*
+	 * statistics of the tokens sampled since the last clearTables(), see
+	 * LDAConvergenceMonitor. Reassigned tokens and log-likelihood are only
+	 * gathered when enabled by setCollectStatistics(). logLikelihood sums log
+	 * p(w | z) of the topic each token is assigned to, i.e. (n_wz + beta) /
+	 * (n_z + V * beta) with the token itself excluded
+	 */
+	private boolean collectStatistics = false;
+	private long numSampledTokens = 0;
+	private long numReassignedTokens = 0;
+	private double logLikelihood = 0;
+
+	/*
+	 * p(w | z) of the tokens of a volume, logarithms are taken after the
+	 * sweep on products of LIKELIHOOD_BLOCK of them. A call to Math.log in
+	 * the sampling loop slows down the whole loop, and a product of 16
+	 * probabilities (each above 1e-12 for any realistic counts) doesn't
+	 * underflow
+	 */
+	private static final int LIKELIHOOD_BLOCK = 16;
+	private double[] tokenProbs = new double[64];
+
 	/**
 	 * constructor used for the first iteration. See {@link MappingTableEntry}
 	 * 
 	 * @param mappingTable
 	 * @param topics
+	 * @param stepSize
+	 *            step size to increase capacity of topics-documents table
+	 * @param alpha
+	 *            prior of document-topic distributions
+	 * @param beta
+	 *            prior of topic-word distributions
+	 * @param seed
+	 *            seed of random number generator
+	 * @throws IllegalArgumentException
+	 *             when the words-topics table exceeds the maximum array size,
+	 *             checked before any count is allocated
 	 */
 	public LDAAnalyzer(List<MappingTableEntry> mappingTable,
-			List<String> topics, int stepSize) {
+			List<String> topics, int stepSize, double alpha, double beta,
+			long seed) {
+		this(mappingTable, topics, stepSize, alpha, beta, seed,
+				WordTopicCounts.allocate(mappingTable.size(), topics.size()));
+	}
+
+	private LDAAnalyzer(List<MappingTableEntry> mappingTable,
+			List<String> topics, int stepSize, double alpha, double beta,
+			long seed, WordTopicCounts wordTopicCounts) {
 		this.mappingTable = mappingTable;
 		this.topics = topics;
 
-		wordsTopicsTable = new WordsTopicsTable(mappingTable.size(),
-				topics.size());
-		topicsDocumentsTable = new TopicsDocumentsTable(topics.size(), stepSize);
+		this.numWords = mappingTable.size();
+		this.numTopics = topics.size();
+		this.alpha = alpha;
+		this.beta = beta;
+
+		wordsTopicsTable = new WordsTopicsTable(numWords, numTopics);
+		topicsDocumentsTable = new TopicsDocumentsTable(numTopics, stepSize);
+
+		if ((wordTopicCounts.getNumWords() != numWords)
+				|| (wordTopicCounts.getNumTopics() != numTopics)) {
+			throw new DimensionMismatchException(
+					String.format(
+							"model with dims = [%d, %d] doesn't match [%d] words and [%d] topics",
+							wordTopicCounts.getNumWords(),
+							wordTopicCounts.getNumTopics(), numWords,
+							numTopics));
+		}
+
+		this.wordTopicCounts = wordTopicCounts;
+		heapCounts = wordTopicCounts.isMapped() ? null : wordTopicCounts
+				.array();
+		topicCounts = new int[numTopics];
+		topicDenominators = new double[numTopics];
+
+		docTopicCounts = new int[numTopics];
+		cumulativeProbs = new double[numTopics];
+		docTopicValues = new float[numTopics];
+
+		random = new XorShiftRandom(seed);
+
+		for (int k = 0; k < numTopics; k++)
+			updateTopicDenominator(k);
 	}
 
 	/**
 	 * constructor that uses tables derived from previous iteration to
-	 * initialize tables of current iteration
+	 * initialize counts of current iteration
 	 * 
 	 * @param wordsTopicsTable
+	 *            words-topics table of previous iteration
 	 * @param topicsDocumentsTable
+	 *            topics-documents table of previous iteration
 	 * @param mappingTable
 	 * @param topics
+	 * @param alpha
+	 *            prior of document-topic distributions
+	 * @param beta
+	 *            prior of topic-word distributions
+	 * @param seed
+	 *            seed of random number generator
 	 */
 	public LDAAnalyzer(WordsTopicsTable wordsTopicsTable,
 			TopicsDocumentsTable topicsDocumentsTable,
-			List<MappingTableEntry> mappingTable, List<String> topics) {
-		this.wordsTopicsTable = wordsTopicsTable;
-		this.topicsDocumentsTable = topicsDocumentsTable;
-		this.mappingTable = mappingTable;
-		this.topics = topics;
+			List<MappingTableEntry> mappingTable, List<String> topics,
+			double alpha, double beta, long seed) {
+		this(mappingTable, topics, topicsDocumentsTable.getStepSize(), alpha,
+				beta, seed);
+
+		if ((wordsTopicsTable.getNumWords() != numWords)
+				|| (wordsTopicsTable.getNumTopics() != numTopics)) {
+			throw new DimensionMismatchException(
+					String.format(
+							"table with dims = [%d, %d] doesn't match [%d] words and [%d] topics",
+							wordsTopicsTable.getNumWords(),
+							wordsTopicsTable.getNumTopics(), numWords,
+							numTopics));
+		}
+
+		// both tables are row-major of the same dimensions
+		int[] counts = wordsTopicsTable.getWordsTopicsTable();
+		wordTopicCounts.set(counts);
+
+		for (int w = 0; w < numWords; w++) {
+			int base = w * numTopics;
+
+			for (int k = 0; k < numTopics; k++)
+				topicCounts[k] += counts[base + k];
+		}
+
+		for (int k = 0; k < numTopics; k++)
+			updateTopicDenominator(k);
 	}
 
 	/**
+	 * constructor that samples with counts of previous iteration mapped from
+	 * model files (see {@link LDAModelFile}) rather than read into memory.
+	 * Rows of the words being sampled are copied on first use, the others
+	 * stay in the mapping shared with other tasks
 	 * 
-	 * @param ldaState
-	 * @return
+	 * @param model
+	 *            model files of previous iteration
+	 * @param mappingTable
+	 * @param topics
+	 * @param stepSize
+	 *            step size to increase capacity of topics-documents table
+	 * @param alpha
+	 *            prior of document-topic distributions
+	 * @param beta
+	 *            prior of topic-word distributions
+	 * @param seed
+	 *            seed of random number generator
+	 * @throws IOException
 	 */
-	public static boolean isConverged(LDAState ldaState) {
-		// TODO check whether LDA state is converged
+	public LDAAnalyzer(LDAModelFile model,
+			List<MappingTableEntry> mappingTable, List<String> topics,
+			int stepSize, double alpha, double beta, long seed)
+			throws IOException {
+		this(mappingTable, topics, stepSize, alpha, beta, seed, model.map());
+
+		System.arraycopy(model.getTopicCounts(), 0, topicCounts, 0, numTopics);
 
-		return true;
+		for (int k = 0; k < numTopics; k++)
+			updateTopicDenominator(k);
 	}
 
-	public void updateWordsTopicsTable(ArrayWritable volume) {
-		// TODO update the WordsTopicsTable by given volume
+	/**
+	 * 
+	 * @return number of tokens sampled (or assigned to random topics)
+	 */
+	public long getNumSampledTokens() {
+		return numSampledTokens;
+	}
+
+	/**
+	 * 
+	 * @return number of sampled tokens whose topic changed, tokens assigned
+	 *         to random topics included. 0 unless statistics are collected
+	 */
+	public long getNumReassignedTokens() {
+		return numReassignedTokens;
 	}
 
+	/**
+	 * 
+	 * @return sum of log p(w | z) of sampled tokens under the counts they
+	 *         were sampled with. 0 unless statistics are collected
+	 */
+	public double getLogLikelihood() {
+		return logLikelihood;
+	}
+
+	/**
+	 * chooses whether reassigned tokens and log-likelihood are gathered
+	 * while sampling, for {@link LDAConvergenceMonitor}. Off by default, as
+	 * it is wasted work when convergence is not monitored
+	 * 
+	 * @param collectStatistics
+	 */
+	public void setCollectStatistics(boolean collectStatistics) {
+		this.collectStatistics = collectStatistics;
+	}
+
+	/**
+	 * 
+	 * @return buffer for p(w | z) of numTokens tokens, null unless
+	 *         statistics are collected
+	 */
+	private double[] tokenProbs(int numTokens) {
+		if (!collectStatistics)
+			return null;
+
+		if (tokenProbs.length < numTokens)
+			tokenProbs = new double[Math.max(numTokens,
+					tokenProbs.length + (tokenProbs.length >> 1))];
+
+		return tokenProbs;
+	}
+
+	/**
+	 * 
+	 * @return sum of logarithms of the first numTokens values of probs
+	 */
+	private static double sumLogs(double[] probs, int numTokens) {
+		double ll = 0;
+
+		for (int i = 0; i < numTokens;) {
+			int end = Math.min(numTokens, i + LIKELIHOOD_BLOCK);
+			double product = 1;
+
+			for (; i < end; i++)
+				product *= probs[i];
+
+			ll += Math.log(product);
+		}
+
+		return ll;
+	}
+
+	private void updateTopicDenominator(int topic) {
+		topicDenominators[topic] = 1.0 / (topicCounts[topic] + numWords
+				* beta);
+	}
+
+	/**
+	 * Resamples topics of all tokens of given volume (one sweep of collapsed
+	 * Gibbs sampling) and adds the volume's words to words-topics table
+	 * 
+	 * @param volume
+	 *            volume content represented as indices to sub word set
+	 * @param assignments
+	 *            topic of each token from previous iteration. When it doesn't
+	 *            match the volume (e.g. in the first iteration) or holds topics
+	 *            out of range, the tokens are assigned to random topics
+	 *            instead. Holds new topics on return
+	 */
+	public void updateWordsTopicsTable(VolumeTokensWritable volume,
+			TopicAssignments assignments) {
+		int numTokens = volume.getNumTokens();
+		int[] tokens = volume.getTokens();
+
+		// row of each token in the counts, mapped rows are copied to heap
+		int[] rows = (heapCounts != null) ? tokens : wordTopicCounts
+				.rowIndices(tokens, numTokens);
+
+		Arrays.fill(docTopicCounts, 0);
+
+		if (assignments.size() != numTokens
+				|| !assignments.isInRange(numTopics)) {
+			assignments.resize(numTokens);
+			int[] z = assignments.getTopics();
+
+			initializeVolume(tokens, rows, z, numTokens);
+
+			// tokens are new, so their deltas are the counts
+			for (int i = 0; i < numTokens; i++)
+				wordsTopicsTable.increment(tokens[i], z[i]);
+
+			return;
+		}
+
+		int[] z = assignments.getTopics();
+
+		for (int i = 0; i < numTokens; i++)
+			docTopicCounts[z[i]]++;
+
+		if (emitDeltas) {
+			if (previousTopics.length < numTokens)
+				previousTopics = new int[Math.max(numTokens,
+						previousTopics.length << 1)];
+
+			System.arraycopy(z, 0, previousTopics, 0, numTokens);
+		}
+
+		if (samplerMode == SamplerMode.SPARSE)
+			sampleVolumeSparse(tokens, rows, z, numTokens);
+		else
+			sampleVolume(rows, z, numTokens);
+
+		if (emitDeltas) {
+			int[] previous = previousTopics;
+
+			for (int i = 0; i < numTokens; i++) {
+				if (previous[i] != z[i]) {
+					wordsTopicsTable.add(tokens[i], previous[i], -1);
+					wordsTopicsTable.increment(tokens[i], z[i]);
+				}
+			}
+		} else {
+			for (int i = 0; i < numTokens; i++)
+				wordsTopicsTable.increment(tokens[i], z[i]);
+		}
+	}
+
+	/**
+	 * Adds topic counts of given volume to topics-documents table, must be
+	 * called after
+	 * {@link #updateWordsTopicsTable(VolumeTokensWritable, TopicAssignments)}
+	 * 
+	 * @param documentID
+	 * @param volume
+	 *            volume content represented as indices to sub word set
+	 * @param assignments
+	 *            topic of each token
+	 */
 	public void updateTopcisDocumentsTable(String documentID,
-			ArrayWritable volume) {
-		// TODO update the TopcisDocumentsTable by given volume
+			VolumeTokensWritable volume, TopicAssignments assignments) {
+		Arrays.fill(docTopicValues, 0);
+
+		int[] z = assignments.getTopics();
+		for (int i = 0; i < assignments.size(); i++)
+			docTopicValues[z[i]] += 1;
+
+		topicsDocumentsTable.setDocument(docTopicValues, documentID);
+	}
+
+	/**
+	 * assigns each token to a random topic
+	 */
+	private void initializeVolume(int[] tokens, int[] rows, int[] z,
+			int numTokens) {
+		final int[] nwk = (heapCounts != null) ? heapCounts
+				: wordTopicCounts.array();
+		final double[] probs = tokenProbs(numTokens);
+
+		for (int i = 0; i < numTokens; i++) {
+			int k = random.nextInt(numTopics);
+			int j = rows[i] * numTopics + k;
+
+			if (probs != null)
+				probs[i] = (nwk[j] + beta) * topicDenominators[k];
+
+			z[i] = k;
+			if (++nwk[j] == 1 && samplerMode == SamplerMode.SPARSE)
+				addWordNonZeroTopic(tokens[i], k);
+			docTopicCounts[k]++;
+			topicCounts[k]++;
+			updateTopicDenominator(k);
+		}
+
+		numSampledTokens += numTokens;
+		if (probs != null) {
+			// new tokens count as reassigned
+			numReassignedTokens += numTokens;
+			logLikelihood += sumLogs(probs, numTokens);
+		}
+	}
+
+	/**
+	 * one sweep of collapsed Gibbs sampling over the tokens of a volume,
+	 * docTopicCounts must hold topic counts of the volume
+	 * 
+	 * @param rows
+	 *            row index of each token in the words-topics counts
+	 */
+	private void sampleVolume(int[] rows, int[] z, int numTokens) {
+		final int K = numTopics;
+		final double a = alpha;
+		final double b = beta;
+		final double vBeta = numWords * beta;
+
+		final int[] nwk = (heapCounts != null) ? heapCounts
+				: wordTopicCounts.array();
+		final int[] nk = topicCounts;
+		final int[] ndk = docTopicCounts;
+		final double[] denominators = topicDenominators;
+		final double[] cumulative = cumulativeProbs;
+
+		final double[] probs = tokenProbs(numTokens);
+		int reassigned = 0;
+
+		for (int i = 0; i < numTokens; i++) {
+			int base = rows[i] * K;
+			int k = z[i];
+			int old = k;
+
+			// remove current assignment
+			nwk[base + k]--;
+			ndk[k]--;
+			denominators[k] = 1.0 / (--nk[k] + vBeta);
+
+			// p(z = t) ~ (n_dt + alpha) * (n_wt + beta) / (n_t + V * beta)
+			double sum = 0;
+			for (int t = 0; t < K; t++) {
+				sum += (ndk[t] + a) * (nwk[base + t] + b) * denominators[t];
+				cumulative[t] = sum;
+			}
+
+			k = search(cumulative, K, random.nextDouble() * sum);
+
+			if (probs != null) {
+				if (k != old)
+					reassigned++;
+				probs[i] = (nwk[base + k] + b) * denominators[k];
+			}
+
+			// add new assignment
+			z[i] = k;
+			nwk[base + k]++;
+			ndk[k]++;
+			denominators[k] = 1.0 / (++nk[k] + vBeta);
+		}
+
+		numSampledTokens += numTokens;
+		if (probs != null) {
+			numReassignedTokens += reassigned;
+			logLikelihood += sumLogs(probs, numTokens);
+		}
+	}
+
+	/**
+	 * creates an analyzer to be used by another thread. It starts from a copy
+	 * of the counts of this analyzer (so it needs as much memory for the
+	 * words-topics counts, or for the rows copied to heap so far when counts
+	 * are mapped) and has its own tables to be emitted, which are combined
+	 * back by {@link #merge(LDAAnalyzer)}
+	 * 
+	 * @param seed
+	 *            seed of random number generator of the new analyzer
+	 * @return
+	 */
+	public LDAAnalyzer fork(long seed) {
+		LDAAnalyzer worker = new LDAAnalyzer(mappingTable, topics,
+				topicsDocumentsTable.getStepSize(), alpha, beta, seed,
+				wordTopicCounts.copy());
+
+		System.arraycopy(topicCounts, 0, worker.topicCounts, 0,
+				topicCounts.length);
+
+		for (int k = 0; k < numTopics; k++)
+			worker.updateTopicDenominator(k);
+
+		worker.setSamplerMode(samplerMode);
+		worker.setSparseWordsTopicsTable(wordsTopicsTable.isSparse());
+		worker.setEmitDeltas(emitDeltas);
+		worker.setTopicsDocumentsLayout(topicsDocumentsTable.getLayout());
+		worker.setCollectStatistics(collectStatistics);
+
+		return worker;
+	}
+
+	/**
+	 * adds tables to be emitted by an analyzer created by
+	 * {@link #fork(long)} to tables of this analyzer
+	 * 
+	 * @param worker
+	 */
+	public void merge(LDAAnalyzer worker) {
+		wordsTopicsTable.mergeFrom(worker.wordsTopicsTable);
+		topicsDocumentsTable.concatenateTables(worker.topicsDocumentsTable);
+
+		numSampledTokens += worker.numSampledTokens;
+		numReassignedTokens += worker.numReassignedTokens;
+		logLikelihood += worker.logLikelihood;
+	}
+
+	/**
+	 * adds changes of words-topics counts made by other analyzers (their
+	 * tables emitted with {@link #setEmitDeltas(boolean)}) to the counts used
+	 * for sampling, so that analyzers sampling disjoint sets of volumes can
+	 * be brought back in sync without copying whole tables
+	 * 
+	 * @param deltas
+	 *            table of the same dimensions, dense or sparse
+	 */
+	public void applyDeltas(WordsTopicsTable deltas) {
+		if ((deltas.getNumWords() != numWords)
+				|| (deltas.getNumTopics() != numTopics)) {
+			throw new DimensionMismatchException(
+					String.format(
+							"table with dims = [%d, %d] doesn't match [%d] words and [%d] topics",
+							deltas.getNumWords(), deltas.getNumTopics(),
+							numWords, numTopics));
+		}
+
+		if (deltas.isSparse()) {
+			for (int w = 0; w < numWords; w++) {
+				int[] row = deltas.rows[w];
+				int size = deltas.rowSizes[w];
+
+				if (size == WordsTopicsTable.DENSE_ROW) {
+					for (int k = 0; k < numTopics; k++)
+						if (row[k] != 0)
+							addCount(w, k, row[k]);
+				} else {
+					for (int i = 0; i < size; i++)
+						addCount(w, row[i << 1], row[(i << 1) + 1]);
+				}
+			}
+		} else {
+			int[] table = deltas.getWordsTopicsTable();
+
+			for (int w = 0, j = 0; w < numWords; w++)
+				for (int k = 0; k < numTopics; k++, j++)
+					if (table[j] != 0)
+						addCount(w, k, table[j]);
+		}
+
+		for (int k = 0; k < numTopics; k++)
+			updateTopicDenominator(k);
+	}
+
+	private void addCount(int word, int topic, int delta) {
+		int j = wordTopicCounts.rowIndex(word) * numTopics + topic;
+		int[] nwk = wordTopicCounts.array();
+		int count = nwk[j];
+
+		nwk[j] = count + delta;
+		topicCounts[topic] += delta;
+
+		if (samplerMode == SamplerMode.SPARSE) {
+			if (count <= 0 && count + delta > 0)
+				addWordNonZeroTopic(word, topic);
+			else if (count > 0 && count + delta <= 0)
+				removeWordNonZeroTopic(word, topic);
+		}
+	}
+
+	/**
+	 * starts new tables to be emitted, of the same form as the current ones,
+	 * and resets sampling statistics, counts used for sampling are kept. Used
+	 * to sample the same volumes again without creating a new analyzer
+	 */
+	public void clearTables() {
+		numSampledTokens = 0;
+		numReassignedTokens = 0;
+		logLikelihood = 0;
+
+		wordsTopicsTable = new WordsTopicsTable(numWords, numTopics,
+				wordsTopicsTable.isSparse());
+
+		topicsDocumentsTable = new TopicsDocumentsTable(numTopics,
+				topicsDocumentsTable.getStepSize(),
+				topicsDocumentsTable.getLayout());
+	}
+
+	/**
+	 * chooses whether the words-topics table to be emitted is sparse, see
+	 * {@link WordsTopicsTable}. Must be called before any volume is sampled
+	 * 
+	 * @param sparse
+	 */
+	public void setSparseWordsTopicsTable(boolean sparse) {
+		if (sparse == wordsTopicsTable.isSparse())
+			return;
+
+		if (topicsDocumentsTable.getNumDocuments() > 0)
+			throw new IllegalStateException(
+					"words-topics table can't be changed after sampling started");
+
+		wordsTopicsTable = new WordsTopicsTable(numWords, numTopics, sparse);
+	}
+
+	/**
+	 * chooses whether the words-topics table to be emitted holds the changes
+	 * of counts made by this analyzer (count of the new topic of a token
+	 * minus the count of its previous topic), rather than counts of the
+	 * sampled volumes. Tokens without previous topics count as new. Must be
+	 * called before any volume is sampled, best along with a sparse table
+	 * 
+	 * @param emitDeltas
+	 */
+	public void setEmitDeltas(boolean emitDeltas) {
+		if (emitDeltas == this.emitDeltas)
+			return;
+
+		if (topicsDocumentsTable.getNumDocuments() > 0)
+			throw new IllegalStateException(
+					"emission mode can't be changed after sampling started");
+
+		this.emitDeltas = emitDeltas;
+	}
+
+	public boolean isEmitDeltas() {
+		return emitDeltas;
+	}
+
+	/**
+	 * chooses how the topics-documents table to be emitted stores topic
+	 * values of documents, see {@link TopicsDocumentsTable.Layout}.
+	 * Documents already added are converted
+	 * 
+	 * @param layout
+	 */
+	public void setTopicsDocumentsLayout(TopicsDocumentsTable.Layout layout) {
+		topicsDocumentsTable.setLayout(layout);
+	}
+
+	/**
+	 * switches sampling algorithm, see {@link SamplerMode}
+	 * 
+	 * @param samplerMode
+	 */
+	public void setSamplerMode(SamplerMode samplerMode) {
+		if (samplerMode == SamplerMode.SPARSE
+				&& this.samplerMode != SamplerMode.SPARSE) {
+			wordNonZeroTopics = new int[numWords][];
+			wordNonZeroSizes = new int[numWords];
+			docNonZeroTopics = new int[numTopics];
+			topicCoefficients = new double[numTopics];
+
+			// rows are read without copying mapped ones to heap
+			int[] row = new int[numTopics];
+
+			for (int w = 0; w < numWords; w++) {
+				wordTopicCounts.getRow(w, row, 0);
+				int size = 0;
+
+				for (int k = 0; k < numTopics; k++)
+					if (row[k] > 0)
+						size++;
+
+				wordNonZeroTopics[w] = new int[Math.max(size, 4)];
+
+				for (int k = 0; k < numTopics; k++)
+					if (row[k] > 0)
+						wordNonZeroTopics[w][wordNonZeroSizes[w]++] = k;
+			}
+		} else if (samplerMode != SamplerMode.SPARSE) {
+			wordNonZeroTopics = null;
+			wordNonZeroSizes = null;
+			docNonZeroTopics = null;
+			topicCoefficients = null;
+		}
+
+		this.samplerMode = samplerMode;
+	}
+
+	public SamplerMode getSamplerMode() {
+		return samplerMode;
+	}
+
+	private void addWordNonZeroTopic(int word, int topic) {
+		int[] topics = wordNonZeroTopics[word];
+
+		if (wordNonZeroSizes[word] == topics.length) {
+			topics = Arrays.copyOf(topics,
+					Math.min(topics.length << 1, numTopics));
+			wordNonZeroTopics[word] = topics;
+		}
+
+		topics[wordNonZeroSizes[word]++] = topic;
+	}
+
+	private void removeWordNonZeroTopic(int word, int topic) {
+		int[] topics = wordNonZeroTopics[word];
+		int last = --wordNonZeroSizes[word];
+
+		for (int i = 0; i <= last; i++) {
+			if (topics[i] == topic) {
+				topics[i] = topics[last];
+				return;
+			}
+		}
+	}
+
+	private void removeDocNonZeroTopic(int topic) {
+		int last = --docNonZeroSize;
+
+		for (int i = 0; i <= last; i++) {
+			if (docNonZeroTopics[i] == topic) {
+				docNonZeroTopics[i] = docNonZeroTopics[last];
+				return;
+			}
+		}
+	}
+
+	/**
+	 * one sweep of SparseLDA over the tokens of a volume, docTopicCounts must
+	 * hold topic counts of the volume. The conditional
+	 * 
+	 * (n_dt + alpha) * (n_wt + beta) / (n_t + V * beta)
+	 * 
+	 * is split into s = alpha * beta / (n_t + V * beta) (over all topics), r =
+	 * n_dt * beta / (n_t + V * beta) (over topics present in the volume) and q
+	 * = (n_dt + alpha) * n_wt / (n_t + V * beta) (over topics the word is
+	 * assigned to). s and r are maintained incrementally, only q is computed
+	 * per token
+	 * 
+	 * @param rows
+	 *            row index of each token in the words-topics counts
+	 */
+	private void sampleVolumeSparse(int[] tokens, int[] rows, int[] z,
+			int numTokens) {
+		final int K = numTopics;
+		final double a = alpha;
+		final double b = beta;
+		final double ab = alpha * beta;
+		final double vBeta = numWords * beta;
+
+		final int[] nwk = (heapCounts != null) ? heapCounts
+				: wordTopicCounts.array();
+		final int[] nk = topicCounts;
+		final int[] ndk = docTopicCounts;
+		final double[] denominators = topicDenominators;
+		final double[] coefficients = topicCoefficients;
+		final double[] cumulative = cumulativeProbs;
+		final int[] docTopics = docNonZeroTopics;
+
+		// recompute buckets for the volume, keeps rounding errors of the
+		// incremental updates from accumulating across volumes
+		double sSum = 0;
+		double rSum = 0;
+		docNonZeroSize = 0;
+
+		for (int t = 0; t < K; t++) {
+			sSum += ab * denominators[t];
+			coefficients[t] = (ndk[t] + a) * denominators[t];
+
+			if (ndk[t] > 0) {
+				rSum += ndk[t] * b * denominators[t];
+				docTopics[docNonZeroSize++] = t;
+			}
+		}
+
+		final double[] probs = tokenProbs(numTokens);
+		int reassigned = 0;
+
+		for (int i = 0; i < numTokens; i++) {
+			int w = tokens[i];
+			int base = rows[i] * K;
+			int k = z[i];
+			int old = k;
+
+			// remove current assignment
+			sSum -= ab * denominators[k];
+			rSum -= ndk[k] * b * denominators[k];
+
+			if (--nwk[base + k] == 0)
+				removeWordNonZeroTopic(w, k);
+			if (--ndk[k] == 0)
+				removeDocNonZeroTopic(k);
+			denominators[k] = 1.0 / (--nk[k] + vBeta);
+
+			sSum += ab * denominators[k];
+			rSum += ndk[k] * b * denominators[k];
+			coefficients[k] = (ndk[k] + a) * denominators[k];
+
+			// word bucket
+			int[] wordTopics = wordNonZeroTopics[w];
+			int wordSize = wordNonZeroSizes[w];
+
+			double qSum = 0;
+			for (int j = 0; j < wordSize; j++) {
+				int t = wordTopics[j];
+				qSum += coefficients[t] * nwk[base + t];
+				cumulative[j] = qSum;
+			}
+
+			double u = random.nextDouble() * (sSum + rSum + qSum);
+
+			if (u < qSum) {
+				k = wordTopics[search(cumulative, wordSize, u)];
+			} else if (u < qSum + rSum && docNonZeroSize > 0) {
+				// document bucket
+				u -= qSum;
+
+				int j = 0;
+				for (; j < docNonZeroSize - 1; j++) {
+					int t = docTopics[j];
+					u -= ndk[t] * b * denominators[t];
+
+					if (u < 0)
+						break;
+				}
+
+				k = docTopics[j];
+			} else {
+				// smoothing bucket
+				u -= qSum + rSum;
+
+				int t = 0;
+				for (; t < K - 1; t++) {
+					u -= ab * denominators[t];
+
+					if (u < 0)
+						break;
+				}
+
+				k = t;
+			}
+
+			if (probs != null) {
+				if (k != old)
+					reassigned++;
+				probs[i] = (nwk[base + k] + b) * denominators[k];
+			}
+
+			// add new assignment
+			sSum -= ab * denominators[k];
+			rSum -= ndk[k] * b * denominators[k];
+
+			z[i] = k;
+			if (nwk[base + k]++ == 0)
+				addWordNonZeroTopic(w, k);
+			if (ndk[k]++ == 0)
+				docTopics[docNonZeroSize++] = k;
+			denominators[k] = 1.0 / (++nk[k] + vBeta);
+
+			sSum += ab * denominators[k];
+			rSum += ndk[k] * b * denominators[k];
+			coefficients[k] = (ndk[k] + a) * denominators[k];
+		}
+
+		numSampledTokens += numTokens;
+		if (probs != null) {
+			numReassignedTokens += reassigned;
+			logLikelihood += sumLogs(probs, numTokens);
+		}
+	}
+
+	/**
+	 * 
+	 * @return smallest index t such that cumulative[t] > u
+	 */
+	private static int search(double[] cumulative, int length, double u) {
+		int low = 0;
+		int high = length - 1;
+
+		while (low < high) {
+			int mid = (low + high) >>> 1;
+
+			if (cumulative[mid] > u)
+				high = mid;
+			else
+				low = mid + 1;
+		}
+
+		return low;
 	}
 
 	public LDAState getLDAState() {
 		return new LDAState(wordsTopicsTable, topicsDocumentsTable);
 	}
 
+	/**
+	 * xorshift64* generator, much cheaper than java.util.Random which
+	 * synchronizes on an AtomicLong for every number. Not thread safe, each
+	 * analyzer owns one
+	 * 
+	 */
+	static final class XorShiftRandom {
+		private long state;
+
+		XorShiftRandom(long seed) {
+			// splitmix64 so that close seeds give unrelated sequences
+			long z = seed + 0x9E3779B97F4A7C15L;
+			z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+			z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+			state = z ^ (z >>> 31);
+
+			if (state == 0)
+				state = 0x9E3779B97F4A7C15L;
+		}
+
+		long nextLong() {
+			state ^= state >>> 12;
+			state ^= state << 25;
+			state ^= state >>> 27;
+			return state * 0x2545F4914F6CDD1DL;
+		}
+
+		/**
+		 * 
+		 * @return uniformly distributed value in [0, 1)
+		 */
+		double nextDouble() {
+			return (nextLong() >>> 11) * 0x1.0p-53;
+		}
+
+		/**
+		 * 
+		 * @param n
+		 *            must be positive
+		 * @return uniformly distributed value in [0, n)
+		 */
+		int nextInt(int n) {
+			return (int) (((nextLong() >>> 33) * n) >>> 31);
+		}
+	}
+
+	/**
+	 * Topic assignment of each token of a volume, in the order of the tokens
+	 * in {@link VolumeTokensWritable}
+	 * 
+	 */
+	public static class TopicAssignments implements Writable {
+		private int[] topics = new int[64];
+		private int size = 0;
+
+		/* scratch buffer for serialization */
+		private byte[] encoded = null;
+
+		public TopicAssignments() {
+
+		}
+
+		public int size() {
+			return size;
+		}
+
+		/**
+		 * 
+		 * @return backing array, only the first {@link #size()} elements are
+		 *         valid
+		 */
+		public int[] getTopics() {
+			return topics;
+		}
+
+		public void clear() {
+			size = 0;
+		}
+
+		/**
+		 * sets size, content of the backing array is undefined afterwards
+		 * 
+		 * @param size
+		 */
+		public void resize(int size) {
+			if (topics.length < size)
+				topics = new int[Math.max(size, topics.length << 1)];
+
+			this.size = size;
+		}
+
+		public void set(TopicAssignments other) {
+			resize(other.size);
+			System.arraycopy(other.topics, 0, topics, 0, other.size);
+		}
+
+		/**
+		 * 
+		 * @param numTopics
+		 * @return whether all topics are in [0, numTopics), they are not when
+		 *         assignments come from a run with other topics
+		 */
+		public boolean isInRange(int numTopics) {
+			for (int i = 0; i < size; i++)
+				if (topics[i] < 0 || topics[i] >= numTopics)
+					return false;
+
+			return true;
+		}
+
+		@Override
+		public void readFields(DataInput in) throws IOException {
+			int numTokens = WritableUtils.readVInt(in);
+			int length = WritableUtils.readVInt(in);
+
+			resize(numTokens);
+
+			if (encoded == null || encoded.length < length)
+				encoded = new byte[Math.max(length, 64)];
+
+			in.readFully(encoded, 0, length);
+
+			CorpusProcessingUtils.getVarints(encoded, 0, topics, 0, size);
+		}
+
+		@Override
+		public void write(DataOutput out) throws IOException {
+			/* a varint takes at most 5 bytes */
+			if (encoded == null || encoded.length < 5 * size)
+				encoded = new byte[Math.max(5 * size, 64)];
+
+			int pos = 0;
+			for (int i = 0; i < size; i++)
+				pos = CorpusProcessingUtils.putVarint(encoded, pos, topics[i]);
+
+			WritableUtils.writeVInt(out, size);
+			WritableUtils.writeVInt(out, pos);
+			out.write(encoded, 0, pos);
+		}
+	}
+
 	public static class LDAState implements Writable {
 		private WordsTopicsTable wordsTopicsTable;
 
@@ -131,118 +1153,634 @@ public class LDAAnalyzer {
 		public void readFields(DataInput in) throws IOException {
 			// TODO Auto-generated method stub
 
-			wordsTopicsTable = new WordsTopicsTable();
-			topicsDocumentsTable = new TopicsDocumentsTable();
+			wordsTopicsTable = new WordsTopicsTable();
+			topicsDocumentsTable = new TopicsDocumentsTable();
+
+			wordsTopicsTable.readFields(in);
+			topicsDocumentsTable.readFields(in);
+		}
+
+		@Override
+		public void write(DataOutput out) throws IOException {
+			// TODO Auto-generated method stub
+
+			wordsTopicsTable.write(out);
+			topicsDocumentsTable.write(out);
+		}
+	}
+
+	/**
+	 * Class that represents words-topics table. A table is either dense or
+	 * sparse.
+	 * 
+	 * A dense table keeps its counts in one row-major int array (count of word
+	 * w and topic k is at w * numTopics + k), which has the same layout as the
+	 * counts used by the sampler.
+	 * 
+	 * A sparse table keeps each word's row as (topic, count) pairs sorted by
+	 * topic, a row switches to dense form once more than 1 /
+	 * {@link #DENSE_ROW_DIVISOR} of the topics are present. It suits tables
+	 * that only hold counts of a subset of documents, e.g. the table a map
+	 * task emits.
+	 * 
+	 * Either way only nonzero counts of a row are serialized unless the row is
+	 * mostly nonzero.
+	 * 
+	 * @author Guangchen
+	 * 
+	 */
+	public static class WordsTopicsTable implements Writable {
+		/* a row of a sparse table turns dense past numTopics / divisor pairs */
+		public static final int DENSE_ROW_DIVISOR = 4;
+
+		/* row size of a dense row of a sparse table */
+		private static final int DENSE_ROW = -1;
+
+		/* bits of the flags byte that follows the dimensions on disk */
+		private static final int SPARSE_FLAG = 1;
+		private static final int SIGNED_FLAG = 2;
+
+		/* counts of a dense table, null for a sparse table */
+		private int[] wordsTopicsTable = null;
+
+		/*
+		 * rows of a sparse table, rows[w] holds rowSizes[w] (topic, count)
+		 * pairs, or numTopics counts when rowSizes[w] is DENSE_ROW
+		 */
+		private int[][] rows = null;
+		private int[] rowSizes = null;
+
+		private int numWords = 0;
+		private int numTopics = 0;
+
+		/* scratch buffers of write() and readFields() */
+		private byte[] encoded = null;
+		private int[] decoded = null;
+
+		/* whether counts being encoded are zigzag encoded */
+		private boolean signed = false;
+
+		public WordsTopicsTable() {
+		}
+
+		public WordsTopicsTable(int numWords, int numTopics) {
+
+			allocate(numWords, numTopics);
+
+		}
+
+		/**
+		 * 
+		 * @param numWords
+		 * @param numTopics
+		 * @param sparse
+		 *            whether to create a sparse table
+		 */
+		public WordsTopicsTable(int numWords, int numTopics, boolean sparse) {
+			if (sparse)
+				allocateSparse(numWords, numTopics);
+			else
+				allocate(numWords, numTopics);
+		}
+
+		private void allocate(int numWords, int numTopics) {
+			int size = WordTopicCounts.checkSize(numWords, numTopics);
+
+			this.numWords = numWords;
+			this.numTopics = numTopics;
+
+			rows = null;
+			rowSizes = null;
+
+			// reuse the array when the size doesn't change
+			if (wordsTopicsTable == null || wordsTopicsTable.length != size)
+				wordsTopicsTable = new int[size];
+		}
+
+		private void allocateSparse(int numWords, int numTopics) {
+			this.numWords = numWords;
+			this.numTopics = numTopics;
+
+			wordsTopicsTable = null;
+			rows = new int[numWords][];
+			rowSizes = new int[numWords];
+		}
+
+		public boolean isSparse() {
+			return rows != null;
+		}
+
+		/**
+		 * converts a sparse table to a dense one, does nothing to a dense
+		 * table
+		 */
+		public void toDense() {
+			if (rows == null)
+				return;
+
+			int[][] sparseRows = rows;
+			int[] sparseSizes = rowSizes;
+
+			allocate(numWords, numTopics);
+
+			int[] table = wordsTopicsTable;
+			for (int w = 0; w < numWords; w++) {
+				int[] row = sparseRows[w];
+				int size = sparseSizes[w];
+				int base = w * numTopics;
+
+				if (size == DENSE_ROW) {
+					System.arraycopy(row, 0, table, base, numTopics);
+				} else {
+					for (int i = 0; i < size; i++)
+						table[base + row[i << 1]] = row[(i << 1) + 1];
+				}
+			}
+		}
+
+		/**
+		 * 
+		 * @return backing array, row-major with {@link #getNumTopics()}
+		 *         columns. A sparse table is converted to a dense one first
+		 */
+		public int[] getWordsTopicsTable() {
+			toDense();
+
+			return wordsTopicsTable;
+		}
+
+		public int getNumWords() {
+			return numWords;
+		}
+
+		public int getNumTopics() {
+			return numTopics;
+		}
+
+		/**
+		 * initialize with specified value
+		 * 
+		 * @param value
+		 */
+		public void init(int value) {
+			if (rows != null) {
+				if (value == 0) {
+					Arrays.fill(rows, null);
+					Arrays.fill(rowSizes, 0);
+
+					return;
+				}
+
+				toDense();
+			}
+
+			Arrays.fill(wordsTopicsTable, value);
+		}
+
+		private void checkIndex(int wordIndex, int topicIndex) {
+			if (!(wordIndex >= 0 && wordIndex < numWords)
+					|| !(topicIndex >= 0 && topicIndex < numTopics)) {
+				throw new IndexOutOfBoundsException(
+						String.format(
+								"Index [%d, %d] out of boundary, the dimension of the WordsTopics table is [%d, %d]",
+								wordIndex, topicIndex, numWords, numTopics));
+			}
+		}
+
+		public void setValue(int wordIndex, int topicIndex, int value) {
+			checkIndex(wordIndex, topicIndex);
+
+			if (rows != null)
+				addSparse(wordIndex, topicIndex,
+						value - getSparse(wordIndex, topicIndex));
+			else
+				wordsTopicsTable[wordIndex * numTopics + topicIndex] = value;
+		}
+
+		public int getValue(int wordIndex, int topicIndex) {
+			checkIndex(wordIndex, topicIndex);
+
+			if (rows != null)
+				return getSparse(wordIndex, topicIndex);
+
+			return wordsTopicsTable[wordIndex * numTopics + topicIndex];
+		}
+
+		/**
+		 * adds one to the count of given word and topic, without bounds check
+		 * other than the array's own
+		 * 
+		 * @param wordIndex
+		 * @param topicIndex
+		 */
+		public void increment(int wordIndex, int topicIndex) {
+			if (rows != null)
+				addSparse(wordIndex, topicIndex, 1);
+			else
+				wordsTopicsTable[wordIndex * numTopics + topicIndex]++;
+		}
+
+		/**
+		 * adds delta (may be negative) to the count of given word and topic
+		 * 
+		 * @param wordIndex
+		 * @param topicIndex
+		 * @param delta
+		 */
+		public void add(int wordIndex, int topicIndex, int delta) {
+			checkIndex(wordIndex, topicIndex);
+
+			if (rows != null)
+				addSparse(wordIndex, topicIndex, delta);
+			else
+				wordsTopicsTable[wordIndex * numTopics + topicIndex] += delta;
+		}
+
+		/**
+		 * adds counts of all topics of a word
+		 * 
+		 * @param wordIndex
+		 * @param values
+		 *            array holding {@link #getNumTopics()} counts
+		 * @param offset
+		 *            offset of the first count in values
+		 */
+		public void addRow(int wordIndex, int[] values, int offset) {
+			checkIndex(wordIndex, 0);
+
+			if (rows != null) {
+				for (int k = 0; k < numTopics; k++)
+					if (values[offset + k] != 0)
+						addSparse(wordIndex, k, values[offset + k]);
+
+				return;
+			}
+
+			int[] table = wordsTopicsTable;
+			int base = wordIndex * numTopics;
+
+			for (int k = 0; k < numTopics; k++)
+				table[base + k] += values[offset + k];
+		}
+
+		/**
+		 * copies counts of all topics of a word
+		 * 
+		 * @param wordIndex
+		 * @param dest
+		 *            array to hold {@link #getNumTopics()} counts
+		 * @param offset
+		 *            offset of the first count in dest
+		 */
+		public void getRow(int wordIndex, int[] dest, int offset) {
+			checkIndex(wordIndex, 0);
+
+			if (rows == null) {
+				System.arraycopy(wordsTopicsTable, wordIndex * numTopics,
+						dest, offset, numTopics);
+
+				return;
+			}
+
+			int[] row = rows[wordIndex];
+			int size = rowSizes[wordIndex];
+
+			if (size == DENSE_ROW) {
+				System.arraycopy(row, 0, dest, offset, numTopics);
+			} else {
+				Arrays.fill(dest, offset, offset + numTopics, 0);
+				for (int i = 0; i < size; i++)
+					dest[offset + row[i << 1]] = row[(i << 1) + 1];
+			}
+		}
+
+		/**
+		 * 
+		 * @param fromWord
+		 * @param toWord
+		 * @return table of the rows of words [fromWord, toWord), of the same
+		 *         form (dense or sparse) as this table. Rows of a sparse table
+		 *         are shared
+		 */
+		public WordsTopicsTable slice(int fromWord, int toWord) {
+			if (fromWord < 0 || toWord > numWords || fromWord > toWord)
+				throw new IndexOutOfBoundsException(String.format(
+						"Rows [%d, %d) out of boundary, # of words = %d",
+						fromWord, toWord, numWords));
+
+			WordsTopicsTable slice = new WordsTopicsTable(toWord - fromWord,
+					numTopics, rows != null);
+
+			if (rows == null) {
+				System.arraycopy(wordsTopicsTable, fromWord * numTopics,
+						slice.wordsTopicsTable, 0, (toWord - fromWord)
+								* numTopics);
+			} else {
+				System.arraycopy(rows, fromWord, slice.rows, 0, toWord
+						- fromWord);
+				System.arraycopy(rowSizes, fromWord, slice.rowSizes, 0, toWord
+						- fromWord);
+			}
+
+			return slice;
+		}
+
+		/**
+		 * stacks rows of tables, e.g. slices made by
+		 * {@link #slice(int, int)}, into one dense table
+		 * 
+		 * @param tables
+		 *            tables with the same number of topics
+		 * @return
+		 */
+		public static WordsTopicsTable concatenate(List<WordsTopicsTable> tables) {
+			int numWords = 0;
+			int numTopics = tables.get(0).getNumTopics();
+
+			for (WordsTopicsTable table : tables) {
+				if (table.getNumTopics() != numTopics)
+					throw new DimensionMismatchException(String.format(
+							"table with [%d] topics doesn't match [%d] topics",
+							table.getNumTopics(), numTopics));
+
+				numWords += table.getNumWords();
+			}
+
+			WordsTopicsTable result = new WordsTopicsTable(numWords, numTopics);
+
+			int offset = 0;
+			for (WordsTopicsTable table : tables) {
+				for (int w = 0; w < table.getNumWords(); w++) {
+					table.getRow(w, result.wordsTopicsTable, offset);
+					offset += numTopics;
+				}
+			}
+
+			return result;
+		}
+
+		/**
+		 * binary search for a topic among the pairs of a sparse row
+		 * 
+		 * @return index of the pair, or -(insertion point + 1)
+		 */
+		private static int searchRow(int[] row, int size, int topic) {
+			int lo = 0;
+			int hi = size - 1;
+
+			while (lo <= hi) {
+				int mid = (lo + hi) >>> 1;
+				int t = row[mid << 1];
+
+				if (t < topic)
+					lo = mid + 1;
+				else if (t > topic)
+					hi = mid - 1;
+				else
+					return mid;
+			}
+
+			return -(lo + 1);
+		}
+
+		private int getSparse(int wordIndex, int topicIndex) {
+			int[] row = rows[wordIndex];
+			int size = rowSizes[wordIndex];
+
+			if (size == DENSE_ROW)
+				return row[topicIndex];
+
+			int i = searchRow(row, size, topicIndex);
+
+			return i >= 0 ? row[(i << 1) + 1] : 0;
+		}
+
+		private void addSparse(int wordIndex, int topicIndex, int delta) {
+			int[] row = rows[wordIndex];
+			int size = rowSizes[wordIndex];
+
+			if (size == DENSE_ROW) {
+				row[topicIndex] += delta;
+				return;
+			}
+
+			int i = searchRow(row, size, topicIndex);
+
+			if (i >= 0) {
+				if ((row[(i << 1) + 1] += delta) == 0) {
+					// drop the pair
+					System.arraycopy(row, (i + 1) << 1, row, i << 1,
+							(size - i - 1) << 1);
+					rowSizes[wordIndex] = size - 1;
+				}
+
+				return;
+			}
+
+			if (delta == 0)
+				return;
+
+			if ((size + 1) * DENSE_ROW_DIVISOR > numTopics) {
+				int[] dense = new int[numTopics];
+				for (int j = 0; j < size; j++)
+					dense[row[j << 1]] = row[(j << 1) + 1];
+				dense[topicIndex] += delta;
 
-			wordsTopicsTable.readFields(in);
-			topicsDocumentsTable.readFields(in);
-		}
+				rows[wordIndex] = dense;
+				rowSizes[wordIndex] = DENSE_ROW;
 
-		@Override
-		public void write(DataOutput out) throws IOException {
-			// TODO Auto-generated method stub
+				return;
+			}
 
-			wordsTopicsTable.write(out);
-			topicsDocumentsTable.write(out);
-		}
-	}
+			if (row == null || row.length < (size + 1) << 1) {
+				int[] grown = new int[Math.max(4, (size + 1) << 2)];
+				if (row != null)
+					System.arraycopy(row, 0, grown, 0, size << 1);
 
-	/**
-	 * Class that represents words-topics table
-	 * 
-	 * @author Guangchen
-	 * 
-	 */
-	public static class WordsTopicsTable implements Writable {
-		private float[][] wordsTopicsTable = null;
+				row = grown;
+				rows[wordIndex] = row;
+			}
 
-		public WordsTopicsTable() {
+			int insert = -(i + 1);
+			System.arraycopy(row, insert << 1, row, (insert + 1) << 1,
+					(size - insert) << 1);
+			row[insert << 1] = topicIndex;
+			row[(insert << 1) + 1] = delta;
+			rowSizes[wordIndex] = size + 1;
 		}
 
-		public WordsTopicsTable(int numWords, int numTopics) {
+		/**
+		 * element-wise sum of another table into this one, the tables must be
+		 * of the same dimensions
+		 * 
+		 * @param table
+		 */
+		public void mergeFrom(WordsTopicsTable table) {
 
-			wordsTopicsTable = new float[numWords][numTopics];
+			/**
+			 * make sure dimensions are the same
+			 */
 
-		}
+			if ((numWords != table.getNumWords())
+					|| (numTopics != table.getNumTopics())) {
+				throw new DimensionMismatchException(
+						String.format(
+								"table 1 with dims = [%d, %d] doesn't match table 2 with dims = [%d, %d]",
+								numWords, numTopics, table.getNumWords(),
+								table.getNumTopics()));
+			}
 
-		public float[][] getWordsTopicsTable() {
-			return wordsTopicsTable;
-		}
+			if (table.rows == null) {
+				if (rows == null) {
+					// one flat loop over both arrays
+					int[] dst = wordsTopicsTable;
+					int[] src = table.wordsTopicsTable;
+
+					for (int i = 0; i < dst.length; i++)
+						dst[i] += src[i];
+				} else {
+					for (int w = 0; w < numWords; w++)
+						addRow(w, table.wordsTopicsTable, w * numTopics);
+				}
 
-		public int getNumWords() {
-			return wordsTopicsTable.length;
-		}
+				return;
+			}
 
-		public int getNumTopics() {
-			return wordsTopicsTable[0].length;
+			for (int w = 0; w < numWords; w++) {
+				int[] row = table.rows[w];
+				int size = table.rowSizes[w];
+
+				if (size == DENSE_ROW) {
+					addRow(w, row, 0);
+				} else if (rows == null) {
+					int base = w * numTopics;
+					for (int i = 0; i < size; i++)
+						wordsTopicsTable[base + row[i << 1]] += row[(i << 1) + 1];
+				} else {
+					for (int i = 0; i < size; i++)
+						addSparse(w, row[i << 1], row[(i << 1) + 1]);
+				}
+			}
 		}
 
 		/**
-		 * initialize with specified value
+		 * same as {@link #mergeFrom(WordsTopicsTable)}, except that an empty
+		 * table takes a (dense) copy of the given table
 		 * 
-		 * @param value
+		 * @param table
 		 */
-		public void init(float value) {
-			for (int i = 0; i < wordsTopicsTable.length; i++)
-				for (int j = 0; j < wordsTopicsTable[0].length; j++)
-					wordsTopicsTable[i][j] = value;
-		}
-
-		public void setValue(int wordIndex, int topicIndex, float value) {
+		public void mergeTables(WordsTopicsTable table) {
 
-			if (!(wordIndex >= 0 && wordIndex < wordsTopicsTable.length)
-					|| !(topicIndex >= 0 && topicIndex < wordsTopicsTable[0].length)) {
-				throw new IndexOutOfBoundsException(
-						String.format(
-								"Index [%d, %d] out of boundary, the dimension of the WordsTopics table is [%d, %d]",
-								wordIndex, topicIndex, wordsTopicsTable.length,
-								wordsTopicsTable[0].length));
+			if (wordsTopicsTable == null && rows == null) {
+				/*
+				 * copy rather than share the array, a reducer reuses value
+				 * objects and readFields() overwrites arrays of same size
+				 */
+				allocate(table.getNumWords(), table.getNumTopics());
 			}
 
-			wordsTopicsTable[wordIndex][topicIndex] = value;
+			mergeFrom(table);
+		}
+
+		/**
+		 * counts are written as is unless some are negative (a table of
+		 * deltas), in which case they are zigzag encoded so that small
+		 * negative values stay short
+		 */
+		private int putCount(byte[] buffer, int pos, int count) {
+			return CorpusProcessingUtils.putVarint(buffer, pos,
+					signed ? (count << 1) ^ (count >> 31) : count);
 		}
 
-		public float getValue(int wordIndex, int topicIndex) {
+		private static void unzigzag(int[] values, int from, int to, int step) {
+			for (int i = from; i < to; i += step)
+				values[i] = (values[i] >>> 1) ^ -(values[i] & 1);
+		}
 
-			if (!(wordIndex >= 0 && wordIndex < wordsTopicsTable.length)
-					|| !(topicIndex >= 0 && topicIndex < wordsTopicsTable[0].length)) {
-				throw new IndexOutOfBoundsException(
-						String.format(
-								"Index [%d, %d] out of boundary, the dimension of the WordsTopics table is [%d, %d]",
-								wordIndex, topicIndex, wordsTopicsTable.length,
-								wordsTopicsTable[0].length));
+		private boolean hasNegativeCounts() {
+			if (rows == null) {
+				for (int count : wordsTopicsTable)
+					if (count < 0)
+						return true;
+
+				return false;
+			}
+
+			for (int w = 0; w < numWords; w++) {
+				int[] row = rows[w];
+
+				if (rowSizes[w] == DENSE_ROW) {
+					for (int k = 0; k < numTopics; k++)
+						if (row[k] < 0)
+							return true;
+				} else {
+					for (int i = 0; i < rowSizes[w]; i++)
+						if (row[(i << 1) + 1] < 0)
+							return true;
+				}
 			}
 
-			return wordsTopicsTable[wordIndex][topicIndex];
+			return false;
 		}
 
-		public void mergeTables(WordsTopicsTable table) {
+		/**
+		 * encodes a row given as numTopics counts, as pairs when at most half
+		 * of the counts are nonzero
+		 * 
+		 * @return number of bytes written to {@link #encoded}
+		 */
+		private int encodeDenseRow(int[] counts, int offset) {
+			int nonZeros = 0;
+			for (int k = 0; k < numTopics; k++)
+				if (counts[offset + k] != 0)
+					nonZeros++;
 
-			if (wordsTopicsTable == null) {
-				wordsTopicsTable = table.getWordsTopicsTable();
+			byte[] buffer = encoded;
+			int pos = 0;
 
-				return;
+			if (nonZeros * 2 > numTopics) {
+				pos = CorpusProcessingUtils.putVarint(buffer, pos,
+						numTopics + 1);
+
+				for (int k = 0; k < numTopics; k++)
+					pos = putCount(buffer, pos, counts[offset + k]);
+
+				return pos;
 			}
 
-			/**
-			 * make sure dimensions are the same
-			 */
+			pos = CorpusProcessingUtils.putVarint(buffer, pos, nonZeros);
 
-			if ((wordsTopicsTable.length != table.getNumWords())
-					|| (wordsTopicsTable[0].length != table.getNumTopics())) {
-				throw new DimensionMismatchException(
-						String.format(
-								"table 1 with dims = [%d, %d] doesn't match table 2 with dims = [%d, %d]",
-								wordsTopicsTable.length,
-								wordsTopicsTable[0].length,
-								table.getNumWords(), table.getNumTopics()));
+			int previous = 0;
+			for (int k = 0; k < numTopics; k++) {
+				if (counts[offset + k] != 0) {
+					pos = CorpusProcessingUtils.putVarint(buffer, pos, k
+							- previous);
+					pos = putCount(buffer, pos, counts[offset + k]);
+					previous = k;
+				}
 			}
 
-			// merge
-			for (int i = 0; i < wordsTopicsTable.length; i++)
-				for (int j = 0; j < wordsTopicsTable[0].length; j++)
-					wordsTopicsTable[i][j] += table.getValue(i, j);
+			return pos;
+		}
+
+		/**
+		 * encodes a sparse row given as (topic, count) pairs
+		 * 
+		 * @return number of bytes written to {@link #encoded}
+		 */
+		private int encodePairs(int[] row, int size) {
+			byte[] buffer = encoded;
+			int pos = CorpusProcessingUtils.putVarint(buffer, 0, size);
+
+			int previous = 0;
+			for (int i = 0; i < size; i++) {
+				pos = CorpusProcessingUtils.putVarint(buffer, pos, row[i << 1]
+						- previous);
+				pos = putCount(buffer, pos, row[(i << 1) + 1]);
+				previous = row[i << 1];
+			}
 
+			return pos;
 		}
 
 		@Override
@@ -251,12 +1789,88 @@ public class LDAAnalyzer {
 
 			int numWords = in.readInt();
 			int numTopics = in.readInt();
+			int flags = in.readByte();
+			boolean sparse = (flags & SPARSE_FLAG) != 0;
+			boolean signed = (flags & SIGNED_FLAG) != 0;
+
+			if (sparse)
+				allocateSparse(numWords, numTopics);
+			else
+				allocate(numWords, numTopics);
+
+			if (decoded == null || decoded.length < 2 * numTopics + 1)
+				decoded = new int[2 * numTopics + 1];
 
-			wordsTopicsTable = new float[numWords][numTopics];
+			int[] header = new int[1];
 
-			for (int i = 0; i < numWords; i++)
-				for (int j = 0; j < numTopics; j++)
-					wordsTopicsTable[i][j] = in.readFloat();
+			/*
+			 * each row is <byte length> <header> <values>, where header is
+			 * either the number of (topic delta, count) pairs that follow or
+			 * numTopics + 1 for a row of numTopics counts
+			 */
+			for (int w = 0; w < numWords; w++) {
+				int length = WritableUtils.readVInt(in);
+
+				if (encoded == null || encoded.length < length)
+					encoded = new byte[Math.max(length, 64)];
+
+				in.readFully(encoded, 0, length);
+
+				int pos = CorpusProcessingUtils.getVarints(encoded, 0, header,
+						0, 1);
+				int size = header[0];
+
+				if (size == numTopics + 1) {
+					if (sparse) {
+						int[] row = new int[numTopics];
+						pos = CorpusProcessingUtils.getVarints(encoded, pos,
+								row, 0, numTopics);
+						if (signed)
+							unzigzag(row, 0, numTopics, 1);
+
+						rows[w] = row;
+						rowSizes[w] = DENSE_ROW;
+					} else {
+						pos = CorpusProcessingUtils.getVarints(encoded, pos,
+								wordsTopicsTable, w * numTopics, numTopics);
+						if (signed)
+							unzigzag(wordsTopicsTable, w * numTopics, (w + 1)
+									* numTopics, 1);
+					}
+				} else if (size >= 0 && size <= numTopics) {
+					pos = CorpusProcessingUtils.getVarints(encoded, pos,
+							decoded, 0, 2 * size);
+
+					// topic deltas to topics
+					for (int i = 1; i < size; i++)
+						decoded[i << 1] += decoded[(i - 1) << 1];
+					if (signed)
+						unzigzag(decoded, 1, size << 1, 2);
+
+					if (size > 0 && decoded[(size - 1) << 1] >= numTopics)
+						throw new IOException(String.format(
+								"Corrupted words-topics table, row %d", w));
+
+					if (sparse) {
+						rows[w] = (size == 0) ? null : Arrays.copyOf(decoded,
+								size << 1);
+						rowSizes[w] = size;
+					} else {
+						int base = w * numTopics;
+
+						Arrays.fill(wordsTopicsTable, base, base + numTopics, 0);
+						for (int i = 0; i < size; i++)
+							wordsTopicsTable[base + decoded[i << 1]] = decoded[(i << 1) + 1];
+					}
+				} else {
+					throw new IOException(String.format(
+							"Corrupted words-topics table, row %d", w));
+				}
+
+				if (pos != length)
+					throw new IOException(String.format(
+							"Corrupted words-topics table, row %d", w));
+			}
 		}
 
 		@Override
@@ -264,78 +1878,218 @@ public class LDAAnalyzer {
 			// TODO Auto-generated method stub
 
 			// write number of words
-			out.writeInt(wordsTopicsTable.length);
+			out.writeInt(numWords);
 
 			// write number of topics
-			out.writeInt(wordsTopicsTable[0].length);
+			out.writeInt(numTopics);
+
+			signed = hasNegativeCounts();
+			out.writeByte((rows != null ? SPARSE_FLAG : 0)
+					| (signed ? SIGNED_FLAG : 0));
+
+			/* a varint takes at most 5 bytes */
+			if (encoded == null || encoded.length < 5 * (2 * numTopics + 1))
+				encoded = new byte[5 * (2 * numTopics + 1)];
+
+			// write table, row by row
+			for (int w = 0; w < numWords; w++) {
+				int length;
+
+				if (rows == null)
+					length = encodeDenseRow(wordsTopicsTable, w * numTopics);
+				else if (rowSizes[w] == DENSE_ROW)
+					length = encodeDenseRow(rows[w], 0);
+				else
+					length = encodePairs(rows[w], rowSizes[w]);
 
-			// write table
-			for (int i = 0; i < wordsTopicsTable.length; i++)
-				for (int j = 0; j < wordsTopicsTable[0].length; j++)
-					out.writeFloat(wordsTopicsTable[i][j]);
+				WritableUtils.writeVInt(out, length);
+				out.write(encoded, 0, length);
+			}
 		}
 	}
 
 	public static class TopicsDocumentsTable implements Writable {
 
+		/**
+		 * how topic values of documents are stored. TOPIC_MAJOR keeps a row
+		 * per topic, i.e. the values of a document are spread over numTopics
+		 * arrays. DOCUMENT_MAJOR keeps the values of each document together,
+		 * so that setting or reading a document touches one contiguous run
+		 * of memory, and concatenating or sorting tables moves whole
+		 * documents at once
+		 */
+		public static enum Layout {
+			TOPIC_MAJOR, DOCUMENT_MAJOR
+		}
+
+		/* layouts on the wire */
+		private static final byte TOPIC_MAJOR_FLAG = 0;
+		private static final byte DOCUMENT_MAJOR_FLAG = 1;
+
+		/*
+		 * number of values moved through the buffer at once when the table is
+		 * (de)serialized
+		 */
+		private static final int BUFFER_VALUES = 16384;
+
+		private static final Charset UTF8 = Charset.forName("UTF-8");
+
 		/**
 		 * Since each map task deals with a subset of documents and we don't
 		 * know the number of documents to be processed by each map task in
 		 * advance, we need to dynamically adjust the table size (number of
-		 * columns), below variables 'topicsDocumentsTable[0].length' is used to
-		 * indicate current capacity of the table and 'documentsID.size()' is
-		 * used to indicate number of documents stored in this table, we always
-		 * have documentsID.size() <= topicsDocumentsTable[0].length. We
-		 * dynamically increase the table capacity by 'stepSize' at a time when
-		 * the table doesn't have room for new documents
+		 * columns), below variables 'capacity()' is used to indicate current
+		 * capacity of the table and 'documentsID.size()' is used to indicate
+		 * number of documents stored in this table, we always have
+		 * documentsID.size() <= capacity(). We dynamically increase the table
+		 * capacity when the table doesn't have room for new documents,
+		 * 'stepSize' is the initial capacity and the minimum increment
 		 */
+		private Layout layout = Layout.TOPIC_MAJOR;
+
+		/* TOPIC_MAJOR, [numTopics][capacity] */
 		private float[][] topicsDocumentsTable = null;
 
+		/*
+		 * DOCUMENT_MAJOR, capacity * numTopics values, value of topic i of
+		 * document j is at j * numTopics + i
+		 */
+		private float[] documentsTopicsTable = null;
+
+		private int numTopics;
 		private int stepSize;
 		private List<String> documentsID = new ArrayList<String>();
 
+		/*
+		 * buffer for (de)serialization, reused across write() and
+		 * readFields() calls. encodedBuffer wraps encoded
+		 */
+		private byte[] encoded = null;
+		private ByteBuffer encodedBuffer = null;
+
 		public TopicsDocumentsTable() {
 
 		}
 
 		public TopicsDocumentsTable(int numTopics, int stepSize) {
+			this(numTopics, stepSize, Layout.TOPIC_MAJOR);
+		}
 
-			topicsDocumentsTable = new float[numTopics][stepSize];
+		public TopicsDocumentsTable(int numTopics, int stepSize, Layout layout) {
 
+			this.numTopics = numTopics;
 			this.stepSize = stepSize;
+			this.layout = layout;
+
+			allocate(stepSize);
+		}
+
+		private void allocate(int capacity) {
+			if (layout == Layout.TOPIC_MAJOR) {
+				topicsDocumentsTable = new float[numTopics][capacity];
+				documentsTopicsTable = null;
+			} else {
+				documentsTopicsTable = new float[numTopics * capacity];
+				topicsDocumentsTable = null;
+			}
+		}
+
+		private boolean isEmpty() {
+			return topicsDocumentsTable == null && documentsTopicsTable == null;
+		}
+
+		/**
+		 * 
+		 * @return number of documents the table can hold without growing
+		 */
+		private int capacity() {
+			if (layout == Layout.TOPIC_MAJOR)
+				return topicsDocumentsTable[0].length;
+
+			return numTopics == 0 ? 0 : documentsTopicsTable.length / numTopics;
+		}
+
+		/**
+		 * resize the table, values of the first min(capacity, # of documents)
+		 * documents are kept
+		 */
+		private void resize(int newCapacity) {
+			if (layout == Layout.TOPIC_MAJOR) {
+				float[][] newTable = new float[numTopics][];
+
+				// copy existing values
+				for (int i = 0; i < numTopics; i++)
+					newTable[i] = Arrays.copyOf(topicsDocumentsTable[i],
+							newCapacity);
+
+				topicsDocumentsTable = newTable;
+			} else {
+				documentsTopicsTable = Arrays.copyOf(documentsTopicsTable,
+						numTopics * newCapacity);
+			}
 		}
 
 		/**
 		 * compact the table
 		 */
 		private void compact() {
-			float[][] newTable = new float[topicsDocumentsTable.length][documentsID
-					.size()];
+			if (capacity() != documentsID.size())
+				resize(documentsID.size());
+		}
 
-			// copy existing values
-			for (int i = 0; i < topicsDocumentsTable.length; i++)
-				for (int j = 0; j < documentsID.size(); j++) {
-					newTable[i][j] = topicsDocumentsTable[i][j];
-				}
+		/**
+		 * increase table capacity, by half of current capacity but at least
+		 * stepSize, so that filling the table copies each column a constant
+		 * number of times on average
+		 */
+		private void increaseCapacity() {
+			int capacity = capacity();
+			resize(capacity + Math.max(Math.max(stepSize, 1), capacity >> 1));
+		}
 
-			topicsDocumentsTable = newTable;
+		public Layout getLayout() {
+			return layout;
 		}
 
 		/**
-		 * increase table capacity
+		 * converts the table to given layout, does nothing if the table
+		 * already has it. Unused capacity is dropped by a conversion
+		 * 
+		 * @param layout
 		 */
-		private void increaseCapacity() {
+		public void setLayout(Layout layout) {
+			if (layout == this.layout)
+				return;
+
+			if (isEmpty()) {
+				this.layout = layout;
+				return;
+			}
 
-			float[][] newTable = new float[topicsDocumentsTable.length][topicsDocumentsTable[0].length
-					+ stepSize];
+			int numDocuments = documentsID.size();
 
-			// copy existing values
-			for (int i = 0; i < topicsDocumentsTable.length; i++)
-				for (int j = 0; j < topicsDocumentsTable[0].length; j++) {
-					newTable[i][j] = topicsDocumentsTable[i][j];
+			if (layout == Layout.DOCUMENT_MAJOR) {
+				documentsTopicsTable = new float[numTopics * numDocuments];
+
+				for (int i = 0; i < numTopics; i++) {
+					float[] row = topicsDocumentsTable[i];
+
+					for (int j = 0, k = i; j < numDocuments; j++, k += numTopics)
+						documentsTopicsTable[k] = row[j];
 				}
 
-			topicsDocumentsTable = newTable;
+				topicsDocumentsTable = null;
+			} else {
+				topicsDocumentsTable = new float[numTopics][numDocuments];
+
+				for (int j = 0, k = 0; j < numDocuments; j++)
+					for (int i = 0; i < numTopics; i++, k++)
+						topicsDocumentsTable[i][j] = documentsTopicsTable[k];
+
+				documentsTopicsTable = null;
+			}
+
+			this.layout = layout;
 		}
 
 		/**
@@ -345,28 +2099,80 @@ public class LDAAnalyzer {
 		 * @param documentID
 		 */
 		public void setDocument(float[] values, String documentID) {
-			if (topicsDocumentsTable.length != values.length) {
+			if (numTopics != values.length) {
 				throw new DimensionMismatchException(
 						String.format(
 								"Length mismatch, # of topics = [%d], # of passed in topic values = [%d]",
-								topicsDocumentsTable.length, values.length));
+								numTopics, values.length));
 			}
 
-			if (documentsID.size() >= topicsDocumentsTable[0].length) {
+			int j = documentsID.size();
+
+			if (j >= capacity()) {
 				increaseCapacity();
 			}
 
-			for (int i = 0; i < topicsDocumentsTable.length; i++) {
-				topicsDocumentsTable[i][documentsID.size()] = values[i];
+			if (layout == Layout.DOCUMENT_MAJOR) {
+				System.arraycopy(values, 0, documentsTopicsTable, j * numTopics,
+						numTopics);
+			} else {
+				for (int i = 0; i < numTopics; i++) {
+					topicsDocumentsTable[i][j] = values[i];
+				}
 			}
 
 			documentsID.add(documentID);
 		}
 
+		/**
+		 * copies topic values of a document, works with either layout
+		 * 
+		 * @param j
+		 *            index of the document
+		 * @param values
+		 *            destination of length numTopics
+		 */
+		public void getDocument(int j, float[] values) {
+			if (layout == Layout.DOCUMENT_MAJOR) {
+				System.arraycopy(documentsTopicsTable, j * numTopics, values, 0,
+						numTopics);
+			} else {
+				for (int i = 0; i < numTopics; i++)
+					values[i] = topicsDocumentsTable[i][j];
+			}
+		}
+
+		/**
+		 * 
+		 * @return table of TOPIC_MAJOR layout. A table of the other layout is
+		 *         not converted, call {@link #setLayout(Layout)} first
+		 * @throws IllegalStateException
+		 *             if the table is of DOCUMENT_MAJOR layout
+		 */
 		public float[][] getTopicsDocumentsTable() {
+			checkLayout(Layout.TOPIC_MAJOR);
 			return topicsDocumentsTable;
 		}
 
+		/**
+		 * 
+		 * @return values of DOCUMENT_MAJOR layout, only the first numDocuments
+		 *         * numTopics values are valid. A table of the other layout is
+		 *         not converted, call {@link #setLayout(Layout)} first
+		 * @throws IllegalStateException
+		 *             if the table is of TOPIC_MAJOR layout
+		 */
+		public float[] getDocumentsTopicsTable() {
+			checkLayout(Layout.DOCUMENT_MAJOR);
+			return documentsTopicsTable;
+		}
+
+		private void checkLayout(Layout expected) {
+			if (layout != expected)
+				throw new IllegalStateException(String.format(
+						"Table is of %s layout, not %s", layout, expected));
+		}
+
 		public List<String> getDocumentsID() {
 			return documentsID;
 		}
@@ -376,18 +2182,28 @@ public class LDAAnalyzer {
 		}
 
 		public int getNumTopics() {
-			return topicsDocumentsTable.length;
+			return numTopics;
 		}
 
 		public int getNumDocuments() {
 			return documentsID.size();
 		}
 
+		/**
+		 * appends documents of given table, whose values are copied into the
+		 * layout of this table. The given table is not changed
+		 * 
+		 * @param table
+		 */
 		public void concatenateTables(TopicsDocumentsTable table) {
 
-			if (topicsDocumentsTable == null) {
-				topicsDocumentsTable = table.getTopicsDocumentsTable();
-				documentsID = table.getDocumentsID();
+			if (isEmpty()) {
+				layout = table.layout;
+				topicsDocumentsTable = table.topicsDocumentsTable;
+				documentsTopicsTable = table.documentsTopicsTable;
+				numTopics = table.getNumTopics();
+				// a copy, the list grows with later concatenations
+				documentsID = new ArrayList<String>(table.getDocumentsID());
 				stepSize = table.getStepSize();
 
 				return;
@@ -396,79 +2212,324 @@ public class LDAAnalyzer {
 			/**
 			 * Make sure the number of topics should be the same
 			 */
-			if (topicsDocumentsTable.length != table.getNumTopics())
+			if (numTopics != table.getNumTopics())
 				throw new DimensionMismatchException(
 						String.format(
 								"table 1 with [%d] topics doesnt match table 2 with [%d] topics",
-								topicsDocumentsTable.length,
-								table.getNumTopics()));
-
-			// concatenate
-			float[][] newTable = new float[topicsDocumentsTable.length][topicsDocumentsTable[0].length
-					+ table.getNumDocuments()];
+								numTopics, table.getNumTopics()));
 
-			for (int i = 0; i < topicsDocumentsTable.length; i++)
-				for (int j = 0; j < topicsDocumentsTable[0].length; j++)
-					newTable[i][j] = topicsDocumentsTable[i][j];
+			// concatenate, unused capacity of both tables is dropped
+			int numDocuments1 = documentsID.size();
+			int numDocuments2 = table.getNumDocuments();
 
-			for (int i = 0; i < topicsDocumentsTable.length; i++)
-				for (int j = topicsDocumentsTable[0].length; j < topicsDocumentsTable[0].length
-						+ table.getNumDocuments(); j++)
-					newTable[i][j] = table.getTopicsDocumentsTable()[i][j
-							- topicsDocumentsTable[0].length];
-
-			topicsDocumentsTable = newTable;
+			resize(numDocuments1 + numDocuments2);
+			table.copyTo(this, numDocuments1);
 
 			// add documentsID
 			documentsID.addAll(table.getDocumentsID());
 		}
 
 		/**
-		 * sort table by documentID
+		 * copies values of all documents of this table into a table with room
+		 * for them, starting from given document index. Values are transposed
+		 * when the layouts differ, neither table changes layout
+		 */
+		private void copyTo(TopicsDocumentsTable dest, int offset) {
+			int n = documentsID.size();
+
+			if (layout == dest.layout) {
+				if (layout == Layout.DOCUMENT_MAJOR) {
+					System.arraycopy(documentsTopicsTable, 0,
+							dest.documentsTopicsTable, offset * numTopics, n
+									* numTopics);
+				} else {
+					for (int i = 0; i < numTopics; i++)
+						System.arraycopy(topicsDocumentsTable[i], 0,
+								dest.topicsDocumentsTable[i], offset, n);
+				}
+			} else if (layout == Layout.DOCUMENT_MAJOR) {
+				for (int i = 0; i < numTopics; i++) {
+					float[] row = dest.topicsDocumentsTable[i];
+
+					for (int j = 0, k = i; j < n; j++, k += numTopics)
+						row[offset + j] = documentsTopicsTable[k];
+				}
+			} else {
+				for (int j = 0, k = offset * numTopics; j < n; j++)
+					for (int i = 0; i < numTopics; i++, k++)
+						dest.documentsTopicsTable[k] = topicsDocumentsTable[i][j];
+			}
+		}
+
+		/**
+		 * concatenates tables into a new one, which is allocated once at its
+		 * final size. Used where many tables are concatenated, e.g. by the
+		 * reducer, instead of calling
+		 * {@link #concatenateTables(TopicsDocumentsTable)} for each table
+		 * which copies all columns concatenated so far every time. The new
+		 * table has the layout of the first table, values of others are
+		 * copied into it. The given tables are not changed
+		 * 
+		 * @param tables
+		 *            tables with the same number of topics
+		 * @return
+		 */
+		public static TopicsDocumentsTable concatenate(
+				List<TopicsDocumentsTable> tables) {
+			TopicsDocumentsTable first = tables.get(0);
+			int numTopics = first.getNumTopics();
+
+			int numDocuments = 0;
+			for (TopicsDocumentsTable table : tables) {
+				if (table.getNumTopics() != numTopics)
+					throw new DimensionMismatchException(
+							String.format(
+									"table 1 with [%d] topics doesnt match table 2 with [%d] topics",
+									numTopics, table.getNumTopics()));
+
+				numDocuments += table.getNumDocuments();
+			}
+
+			TopicsDocumentsTable result = new TopicsDocumentsTable(numTopics,
+					first.getStepSize(), first.getLayout());
+			result.allocate(numDocuments);
+			result.documentsID = new ArrayList<String>(numDocuments);
+
+			int offset = 0;
+			for (TopicsDocumentsTable table : tables) {
+				table.copyTo(result, offset);
+
+				result.documentsID.addAll(table.getDocumentsID());
+				offset += table.getNumDocuments();
+			}
+
+			return result;
+		}
+
+		/**
+		 * sort table by documentID. Documents with the same ID keep their
+		 * order. Columns are permuted through a sorted index (argsort), one
+		 * topic row at a time, or one document at a time in DOCUMENT_MAJOR
+		 * layout
 		 */
 		public void sortTable() {
-			List<String> unsortedDocumentsID = new ArrayList<String>();
-			unsortedDocumentsID.addAll(documentsID);
+			// drop unused capacity so that columns line up with documentsID
+			compact();
+
+			int numDocuments = documentsID.size();
+			final String[] ids = documentsID.toArray(new String[numDocuments]);
 
-			Collections.sort(documentsID);
+			Integer[] order = new Integer[numDocuments];
+			for (int j = 0; j < numDocuments; j++)
+				order[j] = j;
 
-			float[][] newTable = new float[topicsDocumentsTable.length][topicsDocumentsTable[0].length];
+			// object sort is stable
+			Arrays.sort(order, new Comparator<Integer>() {
 
-			for (int j = 0; j < documentsID.size(); j++) {
-				int idx = unsortedDocumentsID.indexOf(documentsID.get(j));
+				@Override
+				public int compare(Integer a, Integer b) {
+					return ids[a].compareTo(ids[b]);
+				}
+			});
+
+			int[] permutation = new int[numDocuments];
+			for (int j = 0; j < numDocuments; j++)
+				permutation[j] = order[j];
+
+			if (layout == Layout.DOCUMENT_MAJOR) {
+				float[] newTable = new float[documentsTopicsTable.length];
+
+				for (int j = 0; j < numDocuments; j++)
+					System.arraycopy(documentsTopicsTable, permutation[j]
+							* numTopics, newTable, j * numTopics, numTopics);
+
+				documentsTopicsTable = newTable;
+			} else {
+				/*
+				 * the row replaced in each pass becomes the scratch row of the
+				 * next one
+				 */
+				float[] scratch = new float[numDocuments];
+				for (int i = 0; i < numTopics; i++) {
+					float[] row = topicsDocumentsTable[i];
+
+					for (int j = 0; j < numDocuments; j++)
+						scratch[j] = row[permutation[j]];
+
+					topicsDocumentsTable[i] = scratch;
+					scratch = row;
+				}
+			}
+
+			documentsID = new ArrayList<String>(numDocuments);
+			for (int j = 0; j < numDocuments; j++)
+				documentsID.add(ids[permutation[j]]);
+		}
+
+		/**
+		 * 
+		 * @param size
+		 * @return {@link #encoded}, grown to at least given size
+		 */
+		private byte[] encodeBuffer(int size) {
+			if (encoded == null || encoded.length < size) {
+				encoded = new byte[Math.max(size, 64)];
+				encodedBuffer = ByteBuffer.wrap(encoded);
+			}
+
+			return encoded;
+		}
 
-				for (int i = 0; i < newTable.length; i++) {
+		/**
+		 * encodes a document of the document-major table, as (topic delta,
+		 * value) pairs when at most half of the values are nonzero
+		 * 
+		 * @return position in {@link #encoded} after the document
+		 */
+		private int encodeDocument(int j, int pos) {
+			int base = j * numTopics;
+			byte[] buffer = encoded;
+			ByteBuffer values = encodedBuffer;
+
+			int nonZeros = 0;
+			for (int i = 0; i < numTopics; i++)
+				if (documentsTopicsTable[base + i] != 0)
+					nonZeros++;
+
+			if (nonZeros * 2 > numTopics) {
+				pos = CorpusProcessingUtils.putVarint(buffer, pos,
+						numTopics + 1);
+
+				for (int i = 0; i < numTopics; i++, pos += 4)
+					values.putFloat(pos, documentsTopicsTable[base + i]);
+
+				return pos;
+			}
+
+			pos = CorpusProcessingUtils.putVarint(buffer, pos, nonZeros);
 
-					newTable[i][j] = topicsDocumentsTable[i][idx];
+			int previous = 0;
+			for (int i = 0; i < numTopics; i++) {
+				float value = documentsTopicsTable[base + i];
+
+				if (value != 0) {
+					pos = CorpusProcessingUtils.putVarint(buffer, pos, i
+							- previous);
+					values.putFloat(pos, value);
+					pos += 4;
+					previous = i;
 				}
 			}
 
-			topicsDocumentsTable = newTable;
+			return pos;
+		}
+
+		/**
+		 * decodes a document encoded by {@link #encodeDocument(int, int)}
+		 * 
+		 * @return position in {@link #encoded} after the document
+		 */
+		private int decodeDocument(int j, int pos, int length, int[] header)
+				throws IOException {
+			int base = j * numTopics;
+			byte[] buffer = encoded;
+			ByteBuffer values = encodedBuffer;
+
+			pos = CorpusProcessingUtils.getVarints(buffer, pos, header, 0, 1);
+			int size = header[0];
+
+			if (size == numTopics + 1) {
+				if (pos + 4 * numTopics > length)
+					throw new IOException(String.format(
+							"Corrupted topics-documents table, document %d", j));
+
+				for (int i = 0; i < numTopics; i++, pos += 4)
+					documentsTopicsTable[base + i] = values.getFloat(pos);
+
+				return pos;
+			}
+
+			if (size < 0 || size > numTopics)
+				throw new IOException(String.format(
+						"Corrupted topics-documents table, document %d", j));
+
+			int topic = 0;
+			for (int n = 0; n < size; n++) {
+				pos = CorpusProcessingUtils.getVarints(buffer, pos, header, 0, 1);
+				topic += header[0];
+
+				if (topic < 0 || topic >= numTopics || pos + 4 > length)
+					throw new IOException(String.format(
+							"Corrupted topics-documents table, document %d", j));
+
+				documentsTopicsTable[base + topic] = values.getFloat(pos);
+				pos += 4;
+			}
+
+			return pos;
 		}
 
 		@Override
 		public void readFields(DataInput in) throws IOException {
 			// TODO Auto-generated method stub
 
-			int numTopics = in.readInt();
+			numTopics = in.readInt();
 			int numDocuments = in.readInt();
 
-			topicsDocumentsTable = new float[numTopics][numDocuments];
+			// the table is read in the layout it was written in
+			layout = (in.readByte() == DOCUMENT_MAJOR_FLAG) ? Layout.DOCUMENT_MAJOR
+					: Layout.TOPIC_MAJOR;
+			allocate(numDocuments);
 
-			for (int i = 0; i < numTopics; i++)
-				for (int j = 0; j < numDocuments; j++)
-					topicsDocumentsTable[i][j] = in.readFloat();
+			if (layout == Layout.DOCUMENT_MAJOR) {
+				int[] header = new int[1];
+
+				// blocks of whole documents, see write()
+				for (int j = 0; j < numDocuments;) {
+					int length = WritableUtils.readVInt(in);
+
+					byte[] buffer = encodeBuffer(length);
+					in.readFully(buffer, 0, length);
 
-			documentsID = new ArrayList<String>();
+					int pos = 0;
+					while (pos < length && j < numDocuments)
+						pos = decodeDocument(j++, pos, length, header);
 
-			// read using ArrayWritable
-			ArrayWritable aw = new ArrayWritable(Text.class);
-			aw.readFields(in);
+					if (pos != length)
+						throw new IOException(String.format(
+								"Corrupted topics-documents table, document %d",
+								j));
+				}
+			} else {
+				byte[] buffer = encodeBuffer(4 * Math.min(numDocuments,
+						BUFFER_VALUES));
+				FloatBuffer values = encodedBuffer.asFloatBuffer();
+
+				for (int i = 0; i < numTopics; i++) {
+					float[] row = topicsDocumentsTable[i];
+
+					for (int j = 0; j < numDocuments; j += BUFFER_VALUES) {
+						int n = Math.min(BUFFER_VALUES, numDocuments - j);
+
+						in.readFully(buffer, 0, 4 * n);
+						values.clear();
+						values.get(row, j, n);
+					}
+				}
+			}
+
+			// same format as an ArrayWritable of Text
+			int numIDs = in.readInt();
+			documentsID = new ArrayList<String>(numIDs);
+
+			for (int j = 0; j < numIDs; j++) {
+				int length = WritableUtils.readVInt(in);
 
-			Text[] ids = (Text[]) aw.get();
+				byte[] buffer = encodeBuffer(length);
+				in.readFully(buffer, 0, length);
 
-			for (int i = 0; i < ids.length; i++)
-				documentsID.add(ids[i].toString());
+				documentsID.add(new String(buffer, 0, length, UTF8));
+			}
 
 			stepSize = in.readInt();
 		}
@@ -480,27 +2541,68 @@ public class LDAAnalyzer {
 			// compact table first
 			compact();
 
+			int numDocuments = documentsID.size();
+
 			// write number of topics
-			out.writeInt(topicsDocumentsTable.length);
+			out.writeInt(numTopics);
 
 			// write number of documents
-			out.writeInt(topicsDocumentsTable[0].length);
+			out.writeInt(numDocuments);
+
+			// write layout and table
+			if (layout == Layout.DOCUMENT_MAJOR) {
+				out.writeByte(DOCUMENT_MAJOR_FLAG);
+
+				/*
+				 * documents are encoded into blocks of about BUFFER_VALUES * 4
+				 * bytes, each written as <byte length> <documents>. A document
+				 * is <header> <values>, header is either the number of (topic
+				 * delta, value) pairs that follow or numTopics + 1 for the
+				 * values of all topics
+				 */
+				int blockSize = 4 * BUFFER_VALUES;
+				byte[] buffer = encodeBuffer(blockSize + 5 + 9 * numTopics);
+				int pos = 0;
+
+				for (int j = 0; j < numDocuments; j++) {
+					pos = encodeDocument(j, pos);
+
+					if (pos >= blockSize || j == numDocuments - 1) {
+						WritableUtils.writeVInt(out, pos);
+						out.write(buffer, 0, pos);
+						pos = 0;
+					}
+				}
+			} else {
+				out.writeByte(TOPIC_MAJOR_FLAG);
+
+				// rows are moved through the buffer BUFFER_VALUES at a time
+				byte[] buffer = encodeBuffer(4 * Math.min(numDocuments,
+						BUFFER_VALUES));
+				FloatBuffer values = encodedBuffer.asFloatBuffer();
 
-			// write table
-			for (int i = 0; i < topicsDocumentsTable.length; i++)
-				for (int j = 0; j < topicsDocumentsTable[0].length; j++)
-					out.writeFloat(topicsDocumentsTable[i][j]);
+				for (int i = 0; i < numTopics; i++) {
+					float[] row = topicsDocumentsTable[i];
 
-			// write documentsID, using ArrayWritable as helper class
-			ArrayWritable aw = new ArrayWritable(Text.class);
+					for (int j = 0; j < numDocuments; j += BUFFER_VALUES) {
+						int n = Math.min(BUFFER_VALUES, numDocuments - j);
 
-			Text[] ids = new Text[documentsID.size()];
-			for (int i = 0; i < documentsID.size(); i++) {
-				ids[i] = new Text(documentsID.get(i));
+						values.clear();
+						values.put(row, j, n);
+						out.write(buffer, 0, 4 * n);
+					}
+				}
 			}
 
-			aw.set(ids);
-			aw.write(out);
+			// write documentsID, in the format of an ArrayWritable of Text
+			out.writeInt(numDocuments);
+
+			for (int j = 0; j < numDocuments; j++) {
+				byte[] id = documentsID.get(j).getBytes(UTF8);
+
+				WritableUtils.writeVInt(out, id.length);
+				out.write(id);
+			}
 
 			// write stepSize
 			out.writeInt(stepSize);
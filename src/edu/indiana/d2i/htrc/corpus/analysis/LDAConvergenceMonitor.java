@@ -0,0 +1,187 @@
+/*
+#
+# Copyright 2007 The Trustees of Indiana University
+#
+# Licensed under the Apache License, Version 2.0 (the "License");
+# you may not use this file except in compliance with the License.
+# You may obtain a copy of the License at
+#
+# http://www.apache.org/licenses/LICENSE-2.0
+#
+# Unless required by applicable law or agreed to in writing, software
+# distributed under the License is distributed on an "AS IS" BASIS,
+# WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+# See the License for the specific language governing permissions and
+# limitations under the License.
+#
+ */
+package edu.indiana.d2i.htrc.corpus.analysis;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.mapreduce.Counters;
+import org.apache.hadoop.mapreduce.TaskInputOutputContext;
+
+import edu.indiana.d2i.htrc.Constants;
+
+/**
+ * Decides convergence of LDA analysis from statistics gathered while
+ * sampling (see {@link LDAAnalyzer#getNumReassignedTokens()} and
+ * {@link LDAAnalyzer#getLogLikelihood()}), so the model doesn't need to be
+ * read back after each iteration. Map tasks report the statistics as job
+ * counters, the driver sums them up through the job.
+ *
+ * The analysis is converged when fewer than
+ * lda.analysis.convergence.reassigned of the tokens change topic in an
+ * iteration, or when the log-likelihood per token changes by less than
+ * lda.analysis.convergence.likelihood (relative) from the previous
+ * iteration. A threshold of 0 disables the criterion. The first iteration,
+ * which assigns random topics, never converges. The statistics are only
+ * gathered when a criterion is enabled, see {@link #isEnabled()} and
+ * {@link LDAAnalyzer#setCollectStatistics(boolean)}.
+ *
+ */
+public class LDAConvergenceMonitor {
+
+	public enum Counter {
+		NUM_SAMPLED_TOKENS, NUM_REASSIGNED_TOKENS,
+		/* in units of 1 / LOG_LIKELIHOOD_SCALE */
+		LOG_LIKELIHOOD
+	}
+
+	/* counters are integers, log-likelihood is kept with 3 decimals */
+	public static final double LOG_LIKELIHOOD_SCALE = 1000;
+
+	private double reassignedThreshold;
+	private double likelihoodThreshold;
+
+	private int numIterations = 0;
+	private double reassignedFraction = Double.NaN;
+	private double logLikelihood = Double.NaN;
+	private double previousLogLikelihood = Double.NaN;
+
+	/**
+	 *
+	 * @param reassignedThreshold
+	 *            fraction of reassigned tokens below which the analysis is
+	 *            converged, 0 to disable
+	 * @param likelihoodThreshold
+	 *            relative change of log-likelihood per token below which the
+	 *            analysis is converged, 0 to disable
+	 */
+	public LDAConvergenceMonitor(double reassignedThreshold,
+			double likelihoodThreshold) {
+		this.reassignedThreshold = reassignedThreshold;
+		this.likelihoodThreshold = likelihoodThreshold;
+	}
+
+	/**
+	 * creates a monitor with thresholds of a configuration
+	 *
+	 * @param conf
+	 */
+	public LDAConvergenceMonitor(Configuration conf) {
+		this(Double.parseDouble(conf.get(
+				Constants.LDA_ANALYSIS_CONVERGENCE_REASSIGNED,
+				Constants.LDA_ANALYSIS_DEFAULT_CONVERGENCE_REASSIGNED).trim()),
+				Double.parseDouble(conf.get(
+						Constants.LDA_ANALYSIS_CONVERGENCE_LIKELIHOOD,
+						Constants.LDA_ANALYSIS_DEFAULT_CONVERGENCE_LIKELIHOOD)
+						.trim()));
+	}
+
+	/**
+	 *
+	 * @return whether any criterion is enabled, otherwise the analysis never
+	 *         converges and analyzers need not collect statistics
+	 */
+	public boolean isEnabled() {
+		return reassignedThreshold > 0 || likelihoodThreshold > 0;
+	}
+
+	/**
+	 * adds statistics of an analyzer to the counters of a task
+	 *
+	 * @param analyzer
+	 * @param context
+	 */
+	public static void report(LDAAnalyzer analyzer,
+			TaskInputOutputContext<?, ?, ?, ?> context) {
+		context.getCounter(Counter.NUM_SAMPLED_TOKENS).increment(
+				analyzer.getNumSampledTokens());
+		context.getCounter(Counter.NUM_REASSIGNED_TOKENS).increment(
+				analyzer.getNumReassignedTokens());
+		context.getCounter(Counter.LOG_LIKELIHOOD).increment(
+				Math.round(analyzer.getLogLikelihood() * LOG_LIKELIHOOD_SCALE));
+	}
+
+	/**
+	 * takes statistics of an iteration
+	 *
+	 * @param numSampledTokens
+	 * @param numReassignedTokens
+	 * @param logLikelihood
+	 *            sum over all sampled tokens
+	 * @return whether the analysis is converged
+	 */
+	public boolean update(long numSampledTokens, long numReassignedTokens,
+			double logLikelihood) {
+		numIterations++;
+
+		previousLogLikelihood = this.logLikelihood;
+
+		if (!isEnabled() || numSampledTokens == 0) {
+			reassignedFraction = Double.NaN;
+			this.logLikelihood = Double.NaN;
+			return false;
+		}
+
+		reassignedFraction = (double) numReassignedTokens / numSampledTokens;
+		this.logLikelihood = logLikelihood / numSampledTokens;
+
+		if (numIterations == 1)
+			return false;
+
+		if (reassignedThreshold > 0 && reassignedFraction < reassignedThreshold)
+			return true;
+
+		return likelihoodThreshold > 0
+				&& Math.abs(this.logLikelihood - previousLogLikelihood) < likelihoodThreshold
+						* Math.abs(previousLogLikelihood);
+	}
+
+	/**
+	 * takes statistics of an iteration from counters of its job
+	 *
+	 * @param counters
+	 * @return whether the analysis is converged
+	 */
+	public boolean update(Counters counters) {
+		return update(counters.findCounter(Counter.NUM_SAMPLED_TOKENS)
+				.getValue(), counters.findCounter(Counter.NUM_REASSIGNED_TOKENS)
+				.getValue(), counters.findCounter(Counter.LOG_LIKELIHOOD)
+				.getValue() / LOG_LIKELIHOOD_SCALE);
+	}
+
+	/**
+	 *
+	 * @return fraction of tokens reassigned in the last iteration
+	 */
+	public double getReassignedFraction() {
+		return reassignedFraction;
+	}
+
+	/**
+	 *
+	 * @return log-likelihood per token of the last iteration
+	 */
+	public double getLogLikelihood() {
+		return logLikelihood;
+	}
+
+	@Override
+	public String toString() {
+		return String.format(
+				"reassigned tokens = %.4f, log-likelihood per token = %.6f",
+				reassignedFraction, logLikelihood);
+	}
+}
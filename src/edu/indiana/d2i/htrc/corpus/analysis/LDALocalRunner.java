@@ -0,0 +1,97 @@
+/*
+#
+# Copyright 2007 The Trustees of Indiana University
+#
+# Licensed under the Apache License, Version 2.0 (the "License");
+# you may not use this file except in compliance with the License.
+# You may obtain a copy of the License at
+#
+# http://www.apache.org/licenses/LICENSE-2.0
+#
+# Unless required by applicable law or agreed to in writing, software
+# distributed under the License is distributed on an "AS IS" BASIS,
+# WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+# See the License for the specific language governing permissions and
+# limitations under the License.
+#
+ */
+package edu.indiana.d2i.htrc.corpus.analysis;
+
+import java.io.FileInputStream;
+import java.util.Properties;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.conf.Configured;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.util.GenericOptionsParser;
+import org.apache.hadoop.util.Tool;
+import org.apache.hadoop.util.ToolRunner;
+
+import edu.indiana.d2i.htrc.Constants;
+import edu.indiana.d2i.htrc.corpus.CorpusProcessingUtils;
+
+/**
+ * Runs LDA analysis on a single node without Hadoop jobs. The transformed
+ * corpus (sequence files written by step-3) is read once, all iterations are
+ * run by {@link LDAResidentEngine} on all processors (unless
+ * lda.analysis.num.threads says otherwise), and the final LDA state is
+ * written as &lt;output directory&gt;/part-r-00000, the same file the reducer
+ * of an iteration writes, so that tools reading LDA state work unchanged.
+ *
+ */
+public class LDALocalRunner extends Configured implements Tool {
+
+	@Override
+	public int run(String[] args) throws Exception {
+
+		/**
+		 * Following generic arguments should be specified in command line
+		 *
+		 * -D user.args.mapping.table.filename=</local/path/to/mapping/table>
+		 * -D user.args.topics.filename=</local/path/to/topics> -D
+		 * user.args.topdoctable.capacity.stepsize=<stepSize>
+		 *
+		 */
+		if (args.length != 3) {
+			System.err
+					.printf("Usage: %s [generic options] </path/to/input/directory> </path/to/output/directory> <path/to/property/file>\n",
+							getClass().getSimpleName());
+			ToolRunner.printGenericCommandUsage(System.err);
+			return -1;
+		}
+
+		Configuration conf = getConf();
+
+		// load property file, analysis properties are set as in MapReduce mode
+		Properties prop = new Properties();
+		prop.load(new FileInputStream(args[2]));
+
+		new GenericOptionsParser(conf,
+				LDAAnalysisDriver.generateAnalysisOps(prop));
+
+		int maxIterationNum = Integer.parseInt(prop.getProperty(
+				Constants.LDA_ANALYSIS_MAX_ITER,
+				Constants.LDA_ANALYSIS_DEFAULT_MAX_ITER).trim());
+
+		LDAResidentEngine engine = LDAResidentEngine.newInstance(conf,
+				CorpusProcessingUtils.loadMappingTable(conf
+						.get("user.args.mapping.table.filename")),
+				CorpusProcessingUtils.loadTopics(conf
+						.get("user.args.topics.filename")));
+
+		try {
+			engine.loadCorpus(conf, new Path(args[0]));
+			engine.runIterations(maxIterationNum);
+			engine.writeLDAState(conf, new Path(args[1], "part-r-00000"));
+		} finally {
+			engine.close();
+		}
+
+		return 0;
+	}
+
+	public static void main(String[] args) throws Exception {
+		int exitCode = ToolRunner.run(new LDALocalRunner(), args);
+		System.exit(exitCode);
+	}
+}
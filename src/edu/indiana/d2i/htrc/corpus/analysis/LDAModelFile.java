@@ -0,0 +1,322 @@
+/*
+#
+# Copyright 2007 The Trustees of Indiana University
+#
+# Licensed under the Apache License, Version 2.0 (the "License");
+# you may not use this file except in compliance with the License.
+# You may obtain a copy of the License at
+#
+# http://www.apache.org/licenses/LICENSE-2.0
+#
+# Unless required by applicable law or agreed to in writing, software
+# distributed under the License is distributed on an "AS IS" BASIS,
+# WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+# See the License for the specific language governing permissions and
+# limitations under the License.
+#
+ */
+package edu.indiana.d2i.htrc.corpus.analysis;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.util.List;
+
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.FileUtil;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.fs.PathFilter;
+
+import edu.indiana.d2i.htrc.corpus.analysis.LDAAnalyzer.WordsTopicsTable;
+import edu.indiana.d2i.htrc.exception.DimensionMismatchException;
+
+/**
+ * Words-topics counts of an LDA state in a form map tasks can memory-map.
+ * With lda.analysis.mapped.model=true each reducer writes the words-topics
+ * table of its shard into model-&lt;shard&gt; next to its part file, the
+ * driver puts the files of the previous iteration into the distributed cache
+ * so that they are copied to local disk once per node, and map tasks map
+ * them read-only instead of deserializing the whole LDA state. Pages of the
+ * mapping are shared by all tasks on the node, see {@link WordTopicCounts}
+ * for how rows are copied on write.
+ *
+ * A file holds, all little-endian so that it maps without byte swapping on
+ * x86: magic, number of words (rows), number of topics, total count of each
+ * topic over the rows, and the rows, dense and row-major.
+ *
+ */
+public class LDAModelFile {
+
+	public static final String FILE_PREFIX = "model-";
+
+	private static final int MAGIC = 0x4C44414D;
+
+	/* magic, number of words, number of topics */
+	private static final int HEADER_SIZE = 12;
+
+	/* a single mapping can't exceed 2GB */
+	private static final long MAX_REGION_SIZE = Integer.MAX_VALUE;
+
+	private static final PathFilter MODEL_FILE_FILTER = new PathFilter() {
+
+		@Override
+		public boolean accept(Path path) {
+			return getShard(path.getName()) >= 0;
+		}
+	};
+
+	private File[] files;
+	private int numWords;
+	private int numTopics;
+	private int[] topicCounts;
+
+	private LDAModelFile(File[] files, int numWords, int numTopics,
+			int[] topicCounts) {
+		this.files = files;
+		this.numWords = numWords;
+		this.numTopics = numTopics;
+		this.topicCounts = topicCounts;
+	}
+
+	/**
+	 *
+	 * @param shard
+	 *            shard of LDA state, 0 if not sharded
+	 * @return name of the model file of given shard
+	 */
+	public static String fileName(int shard) {
+		return FILE_PREFIX + shard;
+	}
+
+	/**
+	 *
+	 * @param fileName
+	 * @return shard of a model file, -1 if it's not a model file
+	 */
+	public static int getShard(String fileName) {
+		if (!fileName.startsWith(FILE_PREFIX))
+			return -1;
+
+		try {
+			return Integer.parseInt(fileName.substring(FILE_PREFIX.length()));
+		} catch (NumberFormatException e) {
+			return -1;
+		}
+	}
+
+	/**
+	 * lists model files written along with an LDA state
+	 * 
+	 * @param fs
+	 * @param dir
+	 *            directory of the state files
+	 * @return paths of the model files, empty if there are none
+	 * @throws IOException
+	 */
+	public static Path[] list(FileSystem fs, Path dir) throws IOException {
+		FileStatus[] statuses = fs.listStatus(dir, MODEL_FILE_FILTER);
+
+		return (statuses == null) ? new Path[0] : FileUtil
+				.stat2Paths(statuses);
+	}
+
+	/**
+	 * writes a words-topics table (or a shard of it) as a model file
+	 *
+	 * @param fs
+	 * @param path
+	 * @param table
+	 *            dense or sparse
+	 * @throws IOException
+	 */
+	public static void write(FileSystem fs, Path path, WordsTopicsTable table)
+			throws IOException {
+		int rows = table.getNumWords();
+		int topics = table.getNumTopics();
+
+		int[] row = new int[topics];
+		int[] totals = new int[topics];
+
+		for (int w = 0; w < rows; w++) {
+			table.getRow(w, row, 0);
+
+			for (int k = 0; k < topics; k++)
+				totals[k] += row[k];
+		}
+
+		ByteBuffer buffer = ByteBuffer.allocate(
+				Math.max(HEADER_SIZE, 4 * topics)).order(
+				ByteOrder.LITTLE_ENDIAN);
+		IntBuffer ints = buffer.asIntBuffer();
+
+		FSDataOutputStream out = fs.create(path);
+
+		try {
+			ints.put(MAGIC).put(rows).put(topics);
+			out.write(buffer.array(), 0, HEADER_SIZE);
+
+			ints.clear();
+			ints.put(totals);
+			out.write(buffer.array(), 0, 4 * topics);
+
+			for (int w = 0; w < rows; w++) {
+				table.getRow(w, row, 0);
+
+				ints.clear();
+				ints.put(row);
+				out.write(buffer.array(), 0, 4 * topics);
+			}
+		} finally {
+			out.close();
+		}
+	}
+
+	/**
+	 * reads headers of the model files of all shards of an LDA state
+	 *
+	 * @param files
+	 *            local model files, in any order
+	 * @param numWords
+	 *            number of words of the whole state
+	 * @param numTopics
+	 * @return
+	 * @throws IOException
+	 *             if files of some shards are missing or don't match
+	 */
+	public static LDAModelFile open(List<File> files, int numWords,
+			int numTopics) throws IOException {
+		int numShards = files.size();
+		File[] shards = new File[numShards];
+
+		for (File file : files) {
+			int shard = getShard(file.getName());
+
+			if (shard < 0 || shard >= numShards || shards[shard] != null)
+				throw new IOException(String.format(
+						"Unexpected model file %s among %d model files", file,
+						numShards));
+
+			shards[shard] = file;
+		}
+
+		int[] topicCounts = new int[numTopics];
+
+		for (int s = 0; s < numShards; s++) {
+			int rows = LDAStateUtils.wordShardStart(numWords, numShards, s + 1)
+					- LDAStateUtils.wordShardStart(numWords, numShards, s);
+
+			RandomAccessFile file = new RandomAccessFile(shards[s], "r");
+
+			try {
+				ByteBuffer header = ByteBuffer.allocate(
+						HEADER_SIZE + 4 * numTopics).order(
+						ByteOrder.LITTLE_ENDIAN);
+				file.readFully(header.array());
+
+				if (header.getInt() != MAGIC)
+					throw new IOException("Not a model file: " + shards[s]);
+
+				int fileRows = header.getInt();
+				int fileTopics = header.getInt();
+
+				if (fileRows != rows || fileTopics != numTopics)
+					throw new DimensionMismatchException(
+							String.format(
+									"model file %s with dims = [%d, %d] doesn't match shard %d of [%d] words and [%d] topics",
+									shards[s], fileRows, fileTopics, s,
+									numWords, numTopics));
+
+				if (file.length() != HEADER_SIZE + 4L * numTopics + 4L * rows
+						* numTopics)
+					throw new IOException("Truncated model file: " + shards[s]);
+
+				for (int k = 0; k < numTopics; k++)
+					topicCounts[k] += header.getInt();
+			} finally {
+				file.close();
+			}
+		}
+
+		return new LDAModelFile(shards, numWords, numTopics, topicCounts);
+	}
+
+	public int getNumWords() {
+		return numWords;
+	}
+
+	public int getNumTopics() {
+		return numTopics;
+	}
+
+	/**
+	 *
+	 * @return total count of each topic
+	 */
+	public int[] getTopicCounts() {
+		return topicCounts;
+	}
+
+	/**
+	 * maps the files read-only
+	 *
+	 * @return counts backed by the mappings
+	 * @throws IOException
+	 */
+	WordTopicCounts map() throws IOException {
+		int numShards = files.length;
+		long rowSize = 4L * Math.max(numTopics, 1);
+		int rowsPerRegion = (int) Math.max(MAX_REGION_SIZE / rowSize, 1);
+
+		int numRegions = 0;
+		for (int s = 0; s < numShards; s++)
+			numRegions += regionCount(s, rowsPerRegion);
+
+		IntBuffer[] regions = new IntBuffer[numRegions];
+		int[] regionStarts = new int[numRegions];
+		int r = 0;
+
+		for (int s = 0; s < numShards; s++) {
+			int start = LDAStateUtils.wordShardStart(numWords, numShards, s);
+			int end = LDAStateUtils.wordShardStart(numWords, numShards, s + 1);
+
+			RandomAccessFile file = new RandomAccessFile(files[s], "r");
+
+			try {
+				FileChannel channel = file.getChannel();
+
+				for (int from = start; from < end; from += rowsPerRegion) {
+					int rows = Math.min(rowsPerRegion, end - from);
+
+					// the mapping stays valid after the channel is closed
+					regions[r] = channel
+							.map(MapMode.READ_ONLY,
+									HEADER_SIZE + 4L * numTopics
+											+ (from - start) * rowSize,
+									rows * rowSize)
+							.order(ByteOrder.LITTLE_ENDIAN).asIntBuffer();
+					regionStarts[r++] = from;
+				}
+			} finally {
+				file.close();
+			}
+		}
+
+		return WordTopicCounts.mapped(numWords, numTopics, regions,
+				regionStarts);
+	}
+
+	private int regionCount(int shard, int rowsPerRegion) {
+		int rows = LDAStateUtils.wordShardStart(numWords, files.length,
+				shard + 1)
+				- LDAStateUtils.wordShardStart(numWords, files.length, shard);
+
+		return (rows + rowsPerRegion - 1) / rowsPerRegion;
+	}
+}
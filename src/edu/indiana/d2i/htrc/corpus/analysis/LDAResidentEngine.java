@@ -0,0 +1,566 @@
+/*
+#
+# Copyright 2007 The Trustees of Indiana University
+#
+# Licensed under the Apache License, Version 2.0 (the "License");
+# you may not use this file except in compliance with the License.
+# You may obtain a copy of the License at
+#
+# http://www.apache.org/licenses/LICENSE-2.0
+#
+# Unless required by applicable law or agreed to in writing, software
+# distributed under the License is distributed on an "AS IS" BASIS,
+# WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+# See the License for the specific language governing permissions and
+# limitations under the License.
+#
+ */
+package edu.indiana.d2i.htrc.corpus.analysis;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.fs.PathFilter;
+import org.apache.hadoop.io.IOUtils;
+import org.apache.hadoop.io.SequenceFile;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.Writable;
+import org.apache.hadoop.util.ReflectionUtils;
+
+import edu.indiana.d2i.htrc.Constants;
+import edu.indiana.d2i.htrc.corpus.CorpusProcessingUtils;
+import edu.indiana.d2i.htrc.corpus.CorpusProcessingUtils.MappingTableEntry;
+import edu.indiana.d2i.htrc.corpus.ProjectedVolumeWritable;
+import edu.indiana.d2i.htrc.corpus.TextArrayWritable;
+import edu.indiana.d2i.htrc.corpus.VolumeTokensWritable;
+import edu.indiana.d2i.htrc.corpus.WordIndexRemap;
+import edu.indiana.d2i.htrc.corpus.analysis.LDAAnalyzer.LDAState;
+import edu.indiana.d2i.htrc.corpus.analysis.LDAAnalyzer.SamplerMode;
+import edu.indiana.d2i.htrc.corpus.analysis.LDAAnalyzer.TopicAssignments;
+import edu.indiana.d2i.htrc.corpus.analysis.LDAAnalyzer.TopicsDocumentsTable;
+import edu.indiana.d2i.htrc.corpus.analysis.LDAAnalyzer.WordsTopicsTable;
+
+/**
+ * Runs LDA iterations in a single JVM, keeping the corpus (volumes mapped to
+ * the sub word set and their topic assignments) and the model in memory
+ * across iterations, instead of running a MapReduce job per iteration.
+ *
+ * Volumes are split into contiguous partitions of about the same number of
+ * tokens, each partition is sampled by its own {@link LDAAnalyzer} on a pool
+ * of threads that lives as long as the engine. An analyzer keeps its
+ * sampling counts from one iteration to the next and emits only the changes
+ * of words-topics counts it made (see
+ * {@link LDAAnalyzer#setEmitDeltas(boolean)}). After each sweep every
+ * analyzer applies the changes of the other analyzers, and the words-topics
+ * table of the model gets all of them, so only count deltas move between
+ * iterations.
+ *
+ * The result is the same {@link LDAState} the reducer writes.
+ *
+ */
+public class LDAResidentEngine {
+
+	private static final Log logger = LogFactory
+			.getLog(LDAResidentEngine.class);
+
+	/* skips _SUCCESS, _logs and hidden files of a job output directory */
+	private static final PathFilter DATA_FILE_FILTER = new PathFilter() {
+
+		@Override
+		public boolean accept(Path path) {
+			String name = path.getName();
+			return !name.startsWith("_") && !name.startsWith(".");
+		}
+	};
+
+	private List<MappingTableEntry> mappingTable;
+	private List<String> topics;
+	private WordIndexRemap fullToSub;
+
+	private int stepSize;
+	private double alpha;
+	private double beta;
+	private long seed;
+	private int numThreads;
+
+	private SamplerMode samplerMode = SamplerMode.STANDARD;
+	private TopicsDocumentsTable.Layout layout = TopicsDocumentsTable.Layout.TOPIC_MAJOR;
+
+	/* the corpus, volumes are in the sub word set */
+	private List<String> documentsID = new ArrayList<String>();
+	private List<VolumeTokensWritable> volumes = new ArrayList<VolumeTokensWritable>();
+	private List<TopicAssignments> assignments = new ArrayList<TopicAssignments>();
+
+	/*
+	 * one analyzer per partition, created by the first iteration. Partition
+	 * t holds volumes [bounds[t], bounds[t + 1])
+	 */
+	private LDAAnalyzer[] analyzers = null;
+	private int[] bounds = null;
+
+	/* words-topics counts of the model */
+	private WordsTopicsTable wordsTopicsTable;
+
+	private ExecutorService executor;
+	private int numIterations = 0;
+
+	/* never converges unless set */
+	private LDAConvergenceMonitor convergenceMonitor = new LDAConvergenceMonitor(
+			0, 0);
+
+	/* buffer for parsing volumes of text form */
+	private VolumeTokensWritable volume = new VolumeTokensWritable();
+
+	/**
+	 *
+	 * @param mappingTable
+	 * @param topics
+	 * @param stepSize
+	 *            step size to increase capacity of topics-documents table
+	 * @param alpha
+	 *            prior of document-topic distributions
+	 * @param beta
+	 *            prior of topic-word distributions
+	 * @param seed
+	 *            seed of random number generators
+	 * @param numThreads
+	 *            number of sampling threads, i.e. number of partitions
+	 */
+	public LDAResidentEngine(List<MappingTableEntry> mappingTable,
+			List<String> topics, int stepSize, double alpha, double beta,
+			long seed, int numThreads) {
+		this.mappingTable = mappingTable;
+		this.topics = topics;
+		this.stepSize = stepSize;
+		this.alpha = alpha;
+		this.beta = beta;
+		this.seed = seed;
+		this.numThreads = Math.max(numThreads, 1);
+
+		fullToSub = WordIndexRemap.build(CorpusProcessingUtils
+				.extractIdxFromMappingTable(mappingTable));
+
+		wordsTopicsTable = new WordsTopicsTable(mappingTable.size(),
+				topics.size());
+
+		executor = Executors.newFixedThreadPool(this.numThreads);
+	}
+
+	/**
+	 * creates an engine with LDA analysis properties of a configuration, the
+	 * same ones map tasks use. Number of threads defaults to the number of
+	 * processors
+	 * 
+	 * @param conf
+	 * @param mappingTable
+	 * @param topics
+	 * @return
+	 */
+	public static LDAResidentEngine newInstance(Configuration conf,
+			List<MappingTableEntry> mappingTable, List<String> topics) {
+		LDAResidentEngine engine = new LDAResidentEngine(mappingTable, topics,
+				conf.getInt("user.args.topdoctable.capacity.stepsize",
+						Integer.parseInt(Constants.LDA_ANALYSIS_DEFAULT_STEP_SIZE)),
+				Double.parseDouble(conf.get(Constants.LDA_ANALYSIS_ALPHA,
+						Constants.LDA_ANALYSIS_DEFAULT_ALPHA)),
+				Double.parseDouble(conf.get(Constants.LDA_ANALYSIS_BETA,
+						Constants.LDA_ANALYSIS_DEFAULT_BETA)), conf.getLong(
+						Constants.LDA_ANALYSIS_SEED, System.nanoTime()),
+				Integer.parseInt(conf.get(Constants.LDA_ANALYSIS_NUM_THREADS,
+						String.valueOf(Runtime.getRuntime()
+								.availableProcessors())).trim()));
+
+		engine.setSamplerMode(SamplerMode.valueOf(conf.get(
+				Constants.LDA_ANALYSIS_SAMPLER,
+				Constants.LDA_ANALYSIS_DEFAULT_SAMPLER).trim().toUpperCase()));
+		engine.setTopicsDocumentsLayout(TopicsDocumentsTable.Layout
+				.valueOf(conf.get(Constants.LDA_ANALYSIS_DOCUMENTS_LAYOUT,
+						Constants.LDA_ANALYSIS_DEFAULT_DOCUMENTS_LAYOUT)
+						.trim().toUpperCase()));
+
+		engine.setConvergenceMonitor(new LDAConvergenceMonitor(conf));
+
+		return engine;
+	}
+
+	private void checkNotStarted() {
+		if (analyzers != null)
+			throw new IllegalStateException(
+					"engine can't be changed after sampling started");
+	}
+
+	/**
+	 * switches sampling algorithm, see {@link SamplerMode}. Must be called
+	 * before the first iteration
+	 *
+	 * @param samplerMode
+	 */
+	public void setSamplerMode(SamplerMode samplerMode) {
+		checkNotStarted();
+		this.samplerMode = samplerMode;
+	}
+
+	/**
+	 * chooses layout of the topics-documents table, see
+	 * {@link TopicsDocumentsTable.Layout}. Must be called before the first
+	 * iteration
+	 *
+	 * @param layout
+	 */
+	public void setTopicsDocumentsLayout(TopicsDocumentsTable.Layout layout) {
+		checkNotStarted();
+		this.layout = layout;
+	}
+
+	/**
+	 * sets the monitor that decides convergence in
+	 * {@link #runIterations(int)}
+	 *
+	 * @param convergenceMonitor
+	 */
+	public void setConvergenceMonitor(LDAConvergenceMonitor convergenceMonitor) {
+		this.convergenceMonitor = convergenceMonitor;
+
+		if (analyzers != null)
+			for (LDAAnalyzer analyzer : analyzers)
+				analyzer.setCollectStatistics(convergenceMonitor.isEnabled());
+	}
+
+	/**
+	 * adds a volume to the corpus, must be called before the first iteration
+	 *
+	 * @param documentID
+	 * @param value
+	 *            volume content as read from the transformed corpus, either
+	 *            {@link VolumeTokensWritable} or {@link TextArrayWritable} of
+	 *            indices to full word set, or {@link ProjectedVolumeWritable}
+	 *            of indices to sub word set. It is copied
+	 */
+	public void addVolume(String documentID, Writable value) {
+		checkNotStarted();
+
+		if (value instanceof ProjectedVolumeWritable) {
+			volume.set((VolumeTokensWritable) value);
+
+			if (!volume.isInRange(fullToSub.size()))
+				throw new IllegalArgumentException(String.format(
+						"Volume %s has words out of the sub word set of size %d, the corpus was projected with another mapping table",
+						documentID, fullToSub.size()));
+		} else {
+			if (value instanceof VolumeTokensWritable) {
+				volume.set((VolumeTokensWritable) value);
+			} else {
+				volume.parse((TextArrayWritable) value);
+			}
+
+			CorpusProcessingUtils.fullWordSet2SubWordSet(volume, fullToSub);
+		}
+
+		VolumeTokensWritable tokens = new VolumeTokensWritable();
+		tokens.set(volume);
+
+		documentsID.add(documentID);
+		volumes.add(tokens);
+		assignments.add(new TopicAssignments());
+	}
+
+	/**
+	 * reads all volumes of a transformed corpus, i.e. sequence file(s) of
+	 * (volume id, volume content)
+	 *
+	 * @param conf
+	 * @param input
+	 *            sequence file or directory of sequence files
+	 * @return number of volumes read
+	 * @throws IOException
+	 */
+	public int loadCorpus(Configuration conf, Path input) throws IOException {
+		FileSystem fs = input.getFileSystem(conf);
+		long start = System.currentTimeMillis();
+		int count = 0;
+
+		for (FileStatus status : fs.listStatus(input, DATA_FILE_FILTER)) {
+			if (status.isDir())
+				continue;
+
+			SequenceFile.Reader reader = null;
+
+			try {
+				reader = new SequenceFile.Reader(fs, status.getPath(), conf);
+
+				Text key = new Text();
+				Writable value = (Writable) ReflectionUtils.newInstance(
+						reader.getValueClass(), conf);
+
+				while (reader.next(key, value)) {
+					addVolume(key.toString(), value);
+					count++;
+				}
+			} finally {
+				IOUtils.closeStream(reader);
+			}
+		}
+
+		logger.info(String.format("LDA analysis loaded %d volumes in %d ms",
+				count, System.currentTimeMillis() - start));
+
+		return count;
+	}
+
+	public int getNumVolumes() {
+		return volumes.size();
+	}
+
+	public int getNumIterations() {
+		return numIterations;
+	}
+
+	/**
+	 * splits volumes into partitions of about the same number of tokens and
+	 * creates an analyzer for each
+	 */
+	private void createAnalyzers() {
+		int numVolumes = volumes.size();
+
+		long totalTokens = 0;
+		for (VolumeTokensWritable vol : volumes)
+			totalTokens += vol.getNumTokens();
+
+		bounds = new int[numThreads + 1];
+		long tokens = 0;
+		int chunk = 1;
+		for (int i = 0; i < numVolumes && chunk < numThreads; i++) {
+			tokens += volumes.get(i).getNumTokens();
+
+			while (chunk < numThreads
+					&& tokens * numThreads >= totalTokens * chunk)
+				bounds[chunk++] = i + 1;
+		}
+		while (chunk <= numThreads)
+			bounds[chunk++] = numVolumes;
+
+		analyzers = new LDAAnalyzer[numThreads];
+		for (int t = 0; t < numThreads; t++) {
+			analyzers[t] = new LDAAnalyzer(mappingTable, topics, stepSize,
+					alpha, beta, seed + 7919L * t);
+
+			analyzers[t].setSamplerMode(samplerMode);
+			analyzers[t].setSparseWordsTopicsTable(true);
+			analyzers[t].setEmitDeltas(true);
+			analyzers[t].setTopicsDocumentsLayout(layout);
+			analyzers[t].setCollectStatistics(convergenceMonitor.isEnabled());
+		}
+	}
+
+	/**
+	 * runs tasks on the thread pool and waits for all of them
+	 */
+	private void invokeAll(List<Callable<Void>> tasks) throws IOException,
+			InterruptedException {
+		List<Future<Void>> futures = new ArrayList<Future<Void>>();
+
+		for (Callable<Void> task : tasks)
+			futures.add(executor.submit(task));
+
+		try {
+			for (Future<Void> future : futures)
+				future.get();
+		} catch (ExecutionException e) {
+			for (Future<Void> future : futures)
+				future.cancel(true);
+
+			throw new IOException("Sampling thread failed", e.getCause());
+		}
+	}
+
+	/**
+	 * runs one iteration, i.e. one sweep of Gibbs sampling over all volumes,
+	 * followed by the exchange of count changes among analyzers
+	 *
+	 * @throws IOException
+	 * @throws InterruptedException
+	 */
+	public void runIteration() throws IOException, InterruptedException {
+		if (analyzers == null)
+			createAnalyzers();
+
+		List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+
+		// sample partitions
+		for (int t = 0; t < numThreads; t++) {
+			final LDAAnalyzer analyzer = analyzers[t];
+			final int from = bounds[t];
+			final int to = bounds[t + 1];
+
+			tasks.add(new Callable<Void>() {
+
+				@Override
+				public Void call() throws Exception {
+					analyzer.clearTables();
+
+					for (int i = from; i < to; i++) {
+						analyzer.updateWordsTopicsTable(volumes.get(i),
+								assignments.get(i));
+						analyzer.updateTopcisDocumentsTable(documentsID.get(i),
+								volumes.get(i), assignments.get(i));
+					}
+
+					return null;
+				}
+			});
+		}
+
+		invokeAll(tasks);
+
+		final WordsTopicsTable[] deltas = new WordsTopicsTable[numThreads];
+		for (int t = 0; t < numThreads; t++)
+			deltas[t] = analyzers[t].getLDAState().getWordsTopicsTable();
+
+		/*
+		 * each analyzer applies the changes made by the others. Changes of a
+		 * partition only move counts of its own tokens, so counts never drop
+		 * below zero whatever the order
+		 */
+		tasks.clear();
+		for (int t = 0; t < numThreads; t++) {
+			final LDAAnalyzer analyzer = analyzers[t];
+			final int self = t;
+
+			tasks.add(new Callable<Void>() {
+
+				@Override
+				public Void call() throws Exception {
+					for (int s = 0; s < deltas.length; s++)
+						if (s != self)
+							analyzer.applyDeltas(deltas[s]);
+
+					return null;
+				}
+			});
+		}
+
+		invokeAll(tasks);
+
+		for (int t = 0; t < numThreads; t++)
+			wordsTopicsTable.mergeFrom(deltas[t]);
+
+		numIterations++;
+	}
+
+	/**
+	 * runs iterations until the model is converged (see
+	 * {@link #setConvergenceMonitor(LDAConvergenceMonitor)}) or maximum
+	 * number of iterations is reached
+	 * 
+	 * @param maxIterationNum
+	 * @return number of iterations run
+	 * @throws IOException
+	 * @throws InterruptedException
+	 */
+	public int runIterations(int maxIterationNum) throws IOException,
+			InterruptedException {
+		int iterationCount = 0;
+
+		while (true) {
+			long start = System.currentTimeMillis();
+			runIteration();
+
+			long numSampledTokens = 0;
+			long numReassignedTokens = 0;
+			double logLikelihood = 0;
+			for (LDAAnalyzer analyzer : analyzers) {
+				numSampledTokens += analyzer.getNumSampledTokens();
+				numReassignedTokens += analyzer.getNumReassignedTokens();
+				logLikelihood += analyzer.getLogLikelihood();
+			}
+
+			boolean converged = convergenceMonitor.update(numSampledTokens,
+					numReassignedTokens, logLikelihood);
+
+			logger.info(String.format(
+					"LDA analysis finished iteration %d in %d ms, %s",
+					iterationCount, System.currentTimeMillis() - start,
+					convergenceMonitor));
+
+			if (converged) {
+				logger.info(String.format(
+						"LDA analysis converged at iteration %d",
+						iterationCount));
+				break;
+			}
+
+			if ((iterationCount + 1) >= maxIterationNum) {
+				logger.info(String
+						.format("LDA analysis reached the maximum iteration number %d, going to stop",
+								maxIterationNum));
+				break;
+			}
+
+			iterationCount++;
+		}
+
+		return iterationCount + 1;
+	}
+
+	/**
+	 *
+	 * @return state of the model after the last iteration, documents are
+	 *         sorted by ID as in the output of the reducer
+	 */
+	public LDAState getLDAState() {
+		if (analyzers == null)
+			throw new IllegalStateException("No iteration has been run");
+
+		List<TopicsDocumentsTable> tables = new ArrayList<TopicsDocumentsTable>();
+
+		for (LDAAnalyzer analyzer : analyzers)
+			tables.add(analyzer.getLDAState().getTopicsDocumentsTable());
+
+		TopicsDocumentsTable topicsDocumentsTable = TopicsDocumentsTable
+				.concatenate(tables);
+		topicsDocumentsTable.sortTable();
+
+		return new LDAState(wordsTopicsTable, topicsDocumentsTable);
+	}
+
+	/**
+	 * writes state of the model as a sequence file of a single record, in the
+	 * same format as the output of the reducer
+	 *
+	 * @param conf
+	 * @param path
+	 * @throws IOException
+	 */
+	public void writeLDAState(Configuration conf, Path path)
+			throws IOException {
+		FileSystem fs = path.getFileSystem(conf);
+		SequenceFile.Writer writer = null;
+
+		try {
+			writer = SequenceFile.createWriter(fs, conf, path, Text.class,
+					LDAState.class);
+			writer.append(new Text(LDAStateUtils.LDA_STATE_KEY), getLDAState());
+		} finally {
+			IOUtils.closeStream(writer);
+		}
+	}
+
+	/**
+	 * stops the sampling threads
+	 */
+	public void close() {
+		executor.shutdownNow();
+	}
+}
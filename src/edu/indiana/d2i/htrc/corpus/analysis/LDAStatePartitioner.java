@@ -0,0 +1,38 @@
+/*
+#
+# Copyright 2007 The Trustees of Indiana University
+#
+# Licensed under the Apache License, Version 2.0 (the "License");
+# you may not use this file except in compliance with the License.
+# You may obtain a copy of the License at
+#
+# http://www.apache.org/licenses/LICENSE-2.0
+#
+# Unless required by applicable law or agreed to in writing, software
+# distributed under the License is distributed on an "AS IS" BASIS,
+# WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+# See the License for the specific language governing permissions and
+# limitations under the License.
+#
+ */
+package edu.indiana.d2i.htrc.corpus.analysis;
+
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.mapreduce.Partitioner;
+
+import edu.indiana.d2i.htrc.corpus.analysis.LDAAnalyzer.LDAState;
+
+/**
+ * Sends shard s of LDA state to reducer s (modulo number of reducers), an
+ * unsharded state goes to reducer 0. See {@link LDAStateUtils}
+ *
+ */
+public class LDAStatePartitioner extends Partitioner<Text, LDAState> {
+
+	@Override
+	public int getPartition(Text key, LDAState value, int numPartitions) {
+		int shard = LDAStateUtils.getShard(key);
+
+		return shard < 0 ? 0 : shard % numPartitions;
+	}
+}
@@ -0,0 +1,297 @@
+/*
+#
+# Copyright 2007 The Trustees of Indiana University
+#
+# Licensed under the Apache License, Version 2.0 (the "License");
+# you may not use this file except in compliance with the License.
+# You may obtain a copy of the License at
+#
+# http://www.apache.org/licenses/LICENSE-2.0
+#
+# Unless required by applicable law or agreed to in writing, software
+# distributed under the License is distributed on an "AS IS" BASIS,
+# WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+# See the License for the specific language governing permissions and
+# limitations under the License.
+#
+ */
+package edu.indiana.d2i.htrc.corpus.analysis;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.fs.PathFilter;
+import org.apache.hadoop.io.IOUtils;
+import org.apache.hadoop.io.SequenceFile;
+import org.apache.hadoop.io.Text;
+
+import edu.indiana.d2i.htrc.corpus.analysis.LDAAnalyzer.LDAState;
+import edu.indiana.d2i.htrc.corpus.analysis.LDAAnalyzer.TopicsDocumentsTable;
+import edu.indiana.d2i.htrc.corpus.analysis.LDAAnalyzer.WordsTopicsTable;
+
+/**
+ * Reading and sharding of LDA state.
+ *
+ * An LDA state is either a single record keyed by {@link #LDA_STATE_KEY}, or
+ * split into shards keyed by LDA_STATE_KEY-&lt;shard&gt;, one per reducer. Shard s
+ * holds the words-topics rows of words [{@link #wordShardStart(int, int, int)}
+ * , wordShardStart(s + 1)) and the topics-documents columns of documents
+ * whose {@link #documentShard(String, int)} is s. Each reducer writes one
+ * shard into its own part file of the output directory
+ *
+ */
+public class LDAStateUtils {
+
+	public static final String LDA_STATE_KEY = "LDA_STATE_KEY";
+
+	private static final String SHARD_SEPARATOR = "-";
+
+	/* output files of reducers */
+	private static final PathFilter PART_FILE_FILTER = new PathFilter() {
+
+		@Override
+		public boolean accept(Path path) {
+			return path.getName().startsWith("part-");
+		}
+	};
+
+	/**
+	 *
+	 * @param shard
+	 * @return key of given shard
+	 */
+	public static Text shardKey(int shard) {
+		return new Text(LDA_STATE_KEY + SHARD_SEPARATOR + shard);
+	}
+
+	/**
+	 *
+	 * @param key
+	 * @return shard of given key, -1 if the key is {@link #LDA_STATE_KEY}
+	 */
+	public static int getShard(Text key) {
+		String k = key.toString();
+
+		if (k.equals(LDA_STATE_KEY))
+			return -1;
+
+		if (!k.startsWith(LDA_STATE_KEY + SHARD_SEPARATOR))
+			throw new IllegalArgumentException("Not an LDA state key: " + k);
+
+		return Integer.parseInt(k.substring(LDA_STATE_KEY.length()
+				+ SHARD_SEPARATOR.length()));
+	}
+
+	/**
+	 *
+	 * @param numWords
+	 * @param numShards
+	 * @param shard
+	 * @return index of the first word of given shard, numWords when shard is
+	 *         numShards
+	 */
+	public static int wordShardStart(int numWords, int numShards, int shard) {
+		return (int) ((long) numWords * shard / numShards);
+	}
+
+	/**
+	 *
+	 * @param documentID
+	 * @param numShards
+	 * @return shard that holds given document
+	 */
+	public static int documentShard(String documentID, int numShards) {
+		return (documentID.hashCode() & Integer.MAX_VALUE) % numShards;
+	}
+
+	/**
+	 * splits an LDA state into shards
+	 *
+	 * @param ldaState
+	 * @param numShards
+	 * @return
+	 */
+	public static LDAState[] shard(LDAState ldaState, int numShards) {
+		WordsTopicsTable wordsTopicsTable = ldaState.getWordsTopicsTable();
+		TopicsDocumentsTable topicsDocumentsTable = ldaState
+				.getTopicsDocumentsTable();
+
+		int numWords = wordsTopicsTable.getNumWords();
+		int numTopics = topicsDocumentsTable.getNumTopics();
+
+		TopicsDocumentsTable[] documentShards = new TopicsDocumentsTable[numShards];
+		for (int s = 0; s < numShards; s++)
+			documentShards[s] = new TopicsDocumentsTable(numTopics,
+					topicsDocumentsTable.getStepSize(),
+					topicsDocumentsTable.getLayout());
+
+		List<String> documentsID = topicsDocumentsTable.getDocumentsID();
+		float[] values = new float[numTopics];
+
+		for (int j = 0; j < documentsID.size(); j++) {
+			topicsDocumentsTable.getDocument(j, values);
+
+			String documentID = documentsID.get(j);
+			documentShards[documentShard(documentID, numShards)].setDocument(
+					values, documentID);
+		}
+
+		LDAState[] shards = new LDAState[numShards];
+		for (int s = 0; s < numShards; s++)
+			shards[s] = new LDAState(wordsTopicsTable.slice(
+					wordShardStart(numWords, numShards, s),
+					wordShardStart(numWords, numShards, s + 1)),
+					documentShards[s]);
+
+		return shards;
+	}
+
+	/**
+	 * reads records of all part files in a directory
+	 * 
+	 * @param shard
+	 *            shard to read, -1 to read all shards
+	 * @return states indexed by shard, entries of missing (or not read)
+	 *         shards are null. The size is the number of shards found
+	 */
+	private static List<LDAState> readShards(FileSystem fs, Path directory,
+			Configuration conf, int shard) throws IOException {
+		List<LDAState> shards = new ArrayList<LDAState>();
+		Text key = new Text();
+
+		for (FileStatus status : fs.listStatus(directory, PART_FILE_FILTER)) {
+			SequenceFile.Reader seqFileReader = null;
+
+			try {
+				seqFileReader = new SequenceFile.Reader(fs, status.getPath(),
+						conf);
+
+				/*
+				 * a reducer writes a record for each shard it gets, usually
+				 * one
+				 */
+				while (seqFileReader.next(key)) {
+					int s = getShard(key);
+
+					if (s < 0)
+						throw new IOException(String.format(
+								"LDA state in %s is not sharded",
+								status.getPath()));
+
+					while (shards.size() <= s)
+						shards.add(null);
+
+					if (shard >= 0 && s != shard)
+						continue;
+
+					LDAState ldaState = new LDAState();
+					seqFileReader.getCurrentValue(ldaState);
+					shards.set(s, ldaState);
+				}
+			} finally {
+				IOUtils.closeStream(seqFileReader);
+			}
+		}
+
+		return shards;
+	}
+
+	/**
+	 * reads LDA state written by the reducer(s) of previous iteration. When
+	 * the state is sharded, shards in other part files of the same directory
+	 * are read as well and put together
+	 * 
+	 * @param conf
+	 * @param stateFilePath
+	 *            path of (the first) state file in HDFS
+	 * @return
+	 * @throws IOException
+	 */
+	public static LDAState readLDAState(Configuration conf,
+			String stateFilePath) throws IOException {
+		Path path = new Path(stateFilePath);
+		FileSystem fs = path.getFileSystem(conf);
+
+		SequenceFile.Reader seqFileReader = null;
+		Text key = new Text();
+		LDAState ldaState = new LDAState();
+
+		try {
+			seqFileReader = new SequenceFile.Reader(fs, path, conf);
+
+			if (!seqFileReader.next(key, ldaState))
+				throw new IOException("No LDA state in " + path);
+		} finally {
+			IOUtils.closeStream(seqFileReader);
+		}
+
+		// the sequence file should only have one record
+		if (getShard(key) < 0)
+			return ldaState;
+
+		// sharded state, put shards together in the order of shards
+		List<LDAState> shards = readShards(fs, path.getParent(), conf, -1);
+
+		List<WordsTopicsTable> wordShards = new ArrayList<WordsTopicsTable>();
+		List<TopicsDocumentsTable> documentShards = new ArrayList<TopicsDocumentsTable>();
+
+		for (int s = 0; s < shards.size(); s++) {
+			if (shards.get(s) == null)
+				throw new IOException(String.format(
+						"Shard %d of LDA state is missing in %s", s,
+						path.getParent()));
+
+			wordShards.add(shards.get(s).getWordsTopicsTable());
+			documentShards.add(shards.get(s).getTopicsDocumentsTable());
+		}
+
+		return new LDAState(WordsTopicsTable.concatenate(wordShards),
+				TopicsDocumentsTable.concatenate(documentShards));
+	}
+
+	/**
+	 * reads one shard of LDA state written by the reducer(s) of previous
+	 * iteration. When the state isn't sharded the same way it is read in full
+	 * and split
+	 * 
+	 * @param conf
+	 * @param stateFilePath
+	 *            path of (the first) state file in HDFS
+	 * @param shard
+	 * @param numShards
+	 * @return
+	 * @throws IOException
+	 */
+	public static LDAState readLDAStateShard(Configuration conf,
+			String stateFilePath, int shard, int numShards) throws IOException {
+		Path path = new Path(stateFilePath);
+		FileSystem fs = path.getFileSystem(conf);
+
+		SequenceFile.Reader seqFileReader = null;
+		Text key = new Text();
+
+		try {
+			seqFileReader = new SequenceFile.Reader(fs, path, conf);
+
+			if (!seqFileReader.next(key))
+				throw new IOException("No LDA state in " + path);
+		} finally {
+			IOUtils.closeStream(seqFileReader);
+		}
+
+		if (getShard(key) >= 0) {
+			List<LDAState> shards = readShards(fs, path.getParent(), conf,
+					shard);
+
+			if (shards.size() == numShards && shards.get(shard) != null)
+				return shards.get(shard);
+		}
+
+		return shard(readLDAState(conf, stateFilePath), numShards)[shard];
+	}
+}
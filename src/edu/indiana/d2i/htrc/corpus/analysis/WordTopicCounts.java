@@ -0,0 +1,281 @@
+/*
+#
+# Copyright 2007 The Trustees of Indiana University
+#
+# Licensed under the Apache License, Version 2.0 (the "License");
+# you may not use this file except in compliance with the License.
+# You may obtain a copy of the License at
+#
+# http://www.apache.org/licenses/LICENSE-2.0
+#
+# Unless required by applicable law or agreed to in writing, software
+# distributed under the License is distributed on an "AS IS" BASIS,
+# WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+# See the License for the specific language governing permissions and
+# limitations under the License.
+#
+ */
+package edu.indiana.d2i.htrc.corpus.analysis;
+
+import java.nio.IntBuffer;
+import java.util.Arrays;
+
+/**
+ * Words-topics counts used by {@link LDAAnalyzer} for sampling, numWords x
+ * numTopics. Counts of word w are at {@link #rowIndex(int)} * numTopics of
+ * {@link #array()}.
+ *
+ * Counts are either on heap, all rows in one int array (row index of word w
+ * is w), or backed by read-only mappings of {@link LDAModelFile}s. Mapped
+ * rows are copied on write: a row is copied to the heap array the first time
+ * its row index is asked for, rows never sampled stay in the mapping, whose
+ * pages are shared by all tasks on the node that map the same files.
+ *
+ * The sampler addresses the heap array with row index * numTopics as it did
+ * with word * numTopics, a per-token offset lookup slowed the standard
+ * sampler down by a third.
+ *
+ */
+final class WordTopicCounts {
+	/* row index of a mapped row not copied to heap yet */
+	private static final int NOT_COPIED = -1;
+
+	private final int numWords;
+	private final int numTopics;
+
+	/*
+	 * rows on heap. Heap counts hold all rows, mapped counts hold numRows rows
+	 * copied so far, rowIndices maps words to them
+	 */
+	private int[] array;
+	private int numRows;
+	private final int[] rowIndices;
+
+	/* row indices of the tokens of a volume, see rowIndices(int[], int) */
+	private int[] tokenRows = null;
+
+	/*
+	 * mapped counts, region r holds rows of the words from regionStarts[r]
+	 * on. null for heap counts
+	 */
+	private final IntBuffer[] regions;
+	private final int[] regionStarts;
+	/* region of each word */
+	private final int[] wordRegions;
+
+	private WordTopicCounts(int numWords, int numTopics, IntBuffer[] regions,
+			int[] regionStarts) {
+		this.numWords = numWords;
+		this.numTopics = numTopics;
+		this.regions = regions;
+		this.regionStarts = regionStarts;
+
+		if (regions == null) {
+			array = new int[checkSize(numWords, numTopics)];
+			numRows = numWords;
+			rowIndices = null;
+			wordRegions = null;
+			return;
+		}
+
+		array = new int[Math.max(numTopics, 1024)];
+		numRows = 0;
+		rowIndices = new int[numWords];
+		Arrays.fill(rowIndices, NOT_COPIED);
+
+		wordRegions = new int[numWords];
+
+		for (int r = 0; r < regions.length; r++) {
+			int end = (r + 1 < regions.length) ? regionStarts[r + 1]
+					: numWords;
+
+			for (int w = regionStarts[r]; w < end; w++)
+				wordRegions[w] = r;
+		}
+	}
+
+	/**
+	 *
+	 * @param numWords
+	 * @param numTopics
+	 * @return number of counts of a numWords x numTopics table
+	 * @throws IllegalArgumentException
+	 *             when it exceeds the maximum array size
+	 */
+	static int checkSize(int numWords, int numTopics) {
+		long size = (long) numWords * numTopics;
+
+		if (size > Integer.MAX_VALUE - 8) {
+			throw new IllegalArgumentException(
+					String.format(
+							"WordsTopics table with dims = [%d, %d] exceeds the maximum array size",
+							numWords, numTopics));
+		}
+
+		return (int) size;
+	}
+
+	/**
+	 *
+	 * @param numWords
+	 * @param numTopics
+	 * @return heap counts, all zero
+	 * @throws IllegalArgumentException
+	 *             when the table exceeds the maximum array size
+	 */
+	static WordTopicCounts allocate(int numWords, int numTopics) {
+		checkSize(numWords, numTopics);
+		return new WordTopicCounts(numWords, numTopics, null, null);
+	}
+
+	/**
+	 *
+	 * @param numWords
+	 * @param numTopics
+	 * @param regions
+	 *            read-only mappings, region r holds the rows of the words from
+	 *            regionStarts[r] to regionStarts[r + 1] (numWords for the last
+	 *            one)
+	 * @param regionStarts
+	 * @return mapped counts
+	 */
+	static WordTopicCounts mapped(int numWords, int numTopics,
+			IntBuffer[] regions, int[] regionStarts) {
+		return new WordTopicCounts(numWords, numTopics, regions, regionStarts);
+	}
+
+	/**
+	 *
+	 * @return whether counts are mapped, otherwise {@link #array()} holds all
+	 *         rows indexed by word and is never replaced
+	 */
+	boolean isMapped() {
+		return regions != null;
+	}
+
+	int getNumWords() {
+		return numWords;
+	}
+
+	int getNumTopics() {
+		return numTopics;
+	}
+
+	/**
+	 *
+	 * @return heap array, which is replaced by a larger one when it runs out
+	 *         of space for copied rows
+	 */
+	int[] array() {
+		return array;
+	}
+
+	/**
+	 *
+	 * @param word
+	 * @return index of the row of given word in {@link #array()}, a mapped row
+	 *         is copied to heap first
+	 */
+	int rowIndex(int word) {
+		if (rowIndices == null)
+			return word;
+
+		int row = rowIndices[word];
+
+		return (row == NOT_COPIED) ? copyRow(word) : row;
+	}
+
+	/**
+	 * row indices of given words, rows are copied to heap as needed. The
+	 * returned array is only valid until the next call
+	 *
+	 * @param words
+	 * @param length
+	 *            number of words
+	 * @return words themselves for heap counts, an array holding the row index
+	 *         of each word otherwise
+	 */
+	int[] rowIndices(int[] words, int length) {
+		if (rowIndices == null)
+			return words;
+
+		if (tokenRows == null || tokenRows.length < length)
+			tokenRows = new int[Math.max(length, 64)];
+
+		for (int i = 0; i < length; i++)
+			tokenRows[i] = rowIndex(words[i]);
+
+		return tokenRows;
+	}
+
+	private int copyRow(int word) {
+		long size = (long) (numRows + 1) * numTopics;
+
+		// grows by half, copied rows are only a part of the mapping
+		if (size > array.length)
+			array = Arrays.copyOf(array, (int) Math.min(
+					Math.max(array.length + (array.length >> 1), size),
+					Integer.MAX_VALUE - 8));
+
+		getRow(word, array, numRows * numTopics);
+		rowIndices[word] = numRows;
+
+		return numRows++;
+	}
+
+	/**
+	 * copies counts of given word, without copying a mapped row to heap
+	 *
+	 * @param word
+	 * @param dest
+	 * @param offset
+	 */
+	void getRow(int word, int[] dest, int offset) {
+		int row = (rowIndices == null) ? word : rowIndices[word];
+
+		if (row != NOT_COPIED) {
+			System.arraycopy(array, row * numTopics, dest, offset, numTopics);
+			return;
+		}
+
+		int r = wordRegions[word];
+		IntBuffer region = regions[r].duplicate();
+
+		region.position((word - regionStarts[r]) * numTopics);
+		region.get(dest, offset, numTopics);
+	}
+
+	/**
+	 * sets all counts, mapped rows are all copied to heap
+	 *
+	 * @param counts
+	 *            row-major counts of the same dimensions
+	 */
+	void set(int[] counts) {
+		for (int w = 0; w < numWords; w++)
+			System.arraycopy(counts, w * numTopics, array, rowIndex(w)
+					* numTopics, numTopics);
+	}
+
+	/**
+	 *
+	 * @return counts of the same content. Heap counts are copied, mapped
+	 *         counts share the mappings and copy only the rows copied to heap
+	 *         so far
+	 */
+	WordTopicCounts copy() {
+		WordTopicCounts copy = new WordTopicCounts(numWords, numTopics,
+				regions, regionStarts);
+
+		if (regions == null) {
+			System.arraycopy(array, 0, copy.array, 0, array.length);
+			return copy;
+		}
+
+		copy.array = Arrays.copyOf(array, array.length);
+		copy.numRows = numRows;
+		System.arraycopy(rowIndices, 0, copy.rowIndices, 0, numWords);
+
+		return copy;
+	}
+}
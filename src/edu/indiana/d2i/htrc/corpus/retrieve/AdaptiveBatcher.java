@@ -0,0 +1,157 @@
+/*
+#
+# Copyright 2007 The Trustees of Indiana University
+#
+# Licensed under the Apache License, Version 2.0 (the "License");
+# you may not use this file except in compliance with the License.
+# You may obtain a copy of the License at
+#
+# http://www.apache.org/licenses/LICENSE-2.0
+#
+# Unless required by applicable law or agreed to in writing, software
+# distributed under the License is distributed on an "AS IS" BASIS,
+# WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+# See the License for the specific language governing permissions and
+# limitations under the License.
+#
+ */
+package edu.indiana.d2i.htrc.corpus.retrieve;
+
+/**
+ * Sizes Data API batch requests, in number of volumes, from the latency and
+ * response size observed so far. Volume sizes are only known once they are
+ * retrieved, so the batcher keeps exponentially weighted moving averages of
+ * milliseconds and page bytes per volume over completed requests, and sizes
+ * the next request so that it is expected to take targetMillis and hold
+ * targetBytes, within [minSize, maxSize].
+ *
+ * Per-volume latency includes the fixed cost of a request, with cost a + b *
+ * n of n volumes the size converges to the n where a + b * n is the target.
+ * The size at most doubles per request, so that a few small volumes do not
+ * make the next request huge, there is no such limit on shrinking
+ *
+ */
+public class AdaptiveBatcher {
+
+	/* weight of the latest request in the moving averages */
+	public static final double DEFAULT_WEIGHT = 0.3;
+
+	private final int minSize;
+	private final int maxSize;
+	private final long targetMillis;
+	private final long targetBytes;
+	private final double weight;
+
+	private int batchSize;
+
+	/* moving averages, negative until a request is observed */
+	private double millisPerVolume = -1;
+	private double bytesPerVolume = -1;
+
+	/**
+	 *
+	 * @param initialSize
+	 *            size of the first requests, until one completes
+	 * @param minSize
+	 * @param maxSize
+	 *            also bounds the length of request URLs
+	 * @param targetMillis
+	 *            latency to keep requests near, 0 for no latency target
+	 * @param targetBytes
+	 *            page bytes to keep responses near, 0 for no size target
+	 */
+	public AdaptiveBatcher(int initialSize, int minSize, int maxSize,
+			long targetMillis, long targetBytes) {
+		this(initialSize, minSize, maxSize, targetMillis, targetBytes,
+				DEFAULT_WEIGHT);
+	}
+
+	public AdaptiveBatcher(int initialSize, int minSize, int maxSize,
+			long targetMillis, long targetBytes, double weight) {
+		if (minSize < 1 || maxSize < minSize)
+			throw new IllegalArgumentException(String.format(
+					"Invalid batch size bounds [%d, %d]", minSize, maxSize));
+
+		if (weight <= 0 || weight > 1)
+			throw new IllegalArgumentException("Invalid weight " + weight);
+
+		this.minSize = minSize;
+		this.maxSize = maxSize;
+		this.targetMillis = targetMillis;
+		this.targetBytes = targetBytes;
+		this.weight = weight;
+
+		// without a target the configured size is kept as is
+		batchSize = isAdaptive() ? clamp(initialSize) : initialSize;
+	}
+
+	/**
+	 *
+	 * @return whether batch size changes at all, i.e. there is a latency or
+	 *         size target
+	 */
+	public boolean isAdaptive() {
+		return targetMillis > 0 || targetBytes > 0;
+	}
+
+	/**
+	 *
+	 * @return number of volumes of the next request
+	 */
+	public int getBatchSize() {
+		return batchSize;
+	}
+
+	/**
+	 * records a completed request and resizes the next ones
+	 *
+	 * @param numRequested
+	 *            volumes in the request
+	 * @param numReceived
+	 *            volumes in the response, fewer when the request failed
+	 * @param millis
+	 *            latency of the request
+	 * @param bytes
+	 *            page bytes of the received volumes
+	 */
+	public void observe(int numRequested, int numReceived, long millis,
+			long bytes) {
+		if (!isAdaptive() || numRequested <= 0)
+			return;
+
+		// a failed request counts for its latency, it says nothing of size
+		millisPerVolume = average(millisPerVolume, (double) millis
+				/ numRequested);
+
+		if (numReceived > 0)
+			bytesPerVolume = average(bytesPerVolume, (double) bytes
+					/ numReceived);
+
+		double size = maxSize;
+
+		if (targetMillis > 0 && millisPerVolume > 0)
+			size = Math.min(size, targetMillis / millisPerVolume);
+
+		if (targetBytes > 0 && bytesPerVolume > 0)
+			size = Math.min(size, targetBytes / bytesPerVolume);
+
+		batchSize = clamp((int) Math.min(size, 2L * batchSize));
+	}
+
+	public double getMillisPerVolume() {
+		return millisPerVolume;
+	}
+
+	public double getBytesPerVolume() {
+		return bytesPerVolume;
+	}
+
+	private double average(double average, double sample) {
+		return (average < 0) ? sample : weight * sample + (1 - weight)
+				* average;
+	}
+
+	private int clamp(int size) {
+		return Math.max(minSize, Math.min(maxSize, size));
+	}
+}
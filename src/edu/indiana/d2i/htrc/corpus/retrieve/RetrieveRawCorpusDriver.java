@@ -36,6 +36,7 @@ import org.apache.hadoop.util.ToolRunner;
 
 import edu.indiana.d2i.htrc.Constants;
 import edu.indiana.d2i.htrc.corpus.TextArrayWritable;
+import edu.indiana.d2i.htrc.dataapi.DataAPIWrapper;
 
 public class RetrieveRawCorpusDriver extends Configured implements Tool {
 
@@ -79,6 +80,26 @@ public class RetrieveRawCorpusDriver extends Configured implements Tool {
 				prop.getProperty(Constants.DATA_API_PAGE_PREFIX));
 		conf.set(Constants.DATA_API_REQ_SIZE,
 				prop.getProperty(Constants.DATA_API_REQ_SIZE));
+		conf.set(Constants.DATA_API_REQ_TARGET_MILLIS, prop.getProperty(
+				Constants.DATA_API_REQ_TARGET_MILLIS,
+				Constants.DATA_API_DEFAULT_REQ_TARGET_MILLIS));
+		conf.set(Constants.DATA_API_REQ_TARGET_BYTES, prop.getProperty(
+				Constants.DATA_API_REQ_TARGET_BYTES,
+				Constants.DATA_API_DEFAULT_REQ_TARGET_BYTES));
+		conf.set(Constants.DATA_API_REQ_MIN_SIZE, prop.getProperty(
+				Constants.DATA_API_REQ_MIN_SIZE,
+				Constants.DATA_API_DEFAULT_REQ_MIN_SIZE));
+		conf.set(Constants.DATA_API_REQ_MAX_SIZE, prop.getProperty(
+				Constants.DATA_API_REQ_MAX_SIZE,
+				Constants.DATA_API_DEFAULT_REQ_MAX_SIZE));
+		conf.set(Constants.DATA_API_MAX_INFLIGHT, prop.getProperty(
+				Constants.DATA_API_MAX_INFLIGHT,
+				Constants.DATA_API_DEFAULT_MAX_INFLIGHT));
+		setMaxKeepAliveConnections(conf, Integer.parseInt(conf.get(
+				Constants.DATA_API_MAX_INFLIGHT).trim()));
+		conf.set(Constants.DATA_API_ACCEPT_ENCODING, prop.getProperty(
+				Constants.DATA_API_ACCEPT_ENCODING,
+				Constants.DATA_API_DEFAULT_ACCEPT_ENCODING));
 
 		// oauth2 related parameters
 		conf.set(Constants.OAUTH2_EPR, prop.getProperty(Constants.OAUTH2_EPR));
@@ -119,6 +140,34 @@ public class RetrieveRawCorpusDriver extends Configured implements Tool {
 
 	}
 
+	/**
+	 * passes http.maxConnections to the map task JVMs on their command line,
+	 * the JDK reads it once per JVM so the mapper cannot raise it in a JVM
+	 * that is reused or has already made a connection. Options that already
+	 * give it are kept as they are
+	 *
+	 * @param conf
+	 * @param maxConnections
+	 *            persistent connections to keep per host, nothing is added
+	 *            when the JDK default is enough
+	 */
+	static void setMaxKeepAliveConnections(Configuration conf,
+			int maxConnections) {
+		if (maxConnections <= DataAPIWrapper.DEFAULT_MAX_CONNECTIONS)
+			return;
+
+		// map specific options, when given, override mapred.child.java.opts
+		String optsKey = (conf.get("mapred.map.child.java.opts") != null) ? "mapred.map.child.java.opts"
+				: "mapred.child.java.opts";
+		String opts = conf.get(optsKey, "-Xmx200m");
+
+		if (!opts.contains("-D" + DataAPIWrapper.MAX_CONNECTIONS_PROPERTY
+				+ "="))
+			conf.set(optsKey, opts + " -D"
+					+ DataAPIWrapper.MAX_CONNECTIONS_PROPERTY + "="
+					+ maxConnections);
+	}
+
 	public static void main(String[] args) throws Exception {
 		int exitCode = ToolRunner.run(new RetrieveRawCorpusDriver(), args);
 		System.exit(exitCode);
@@ -21,9 +21,16 @@ import java.io.IOException;
 import java.security.KeyManagementException;
 import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.List;
-import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 
 import org.apache.amber.oauth2.common.exception.OAuthProblemException;
 import org.apache.amber.oauth2.common.exception.OAuthSystemException;
@@ -35,28 +42,99 @@ import org.apache.hadoop.io.Text;
 import org.apache.hadoop.mapreduce.Mapper;
 
 import edu.indiana.d2i.htrc.Constants;
-import edu.indiana.d2i.htrc.corpus.CorpusProcessingUtils;
 import edu.indiana.d2i.htrc.corpus.TextArrayWritable;
 import edu.indiana.d2i.htrc.dataapi.DataAPIWrapper;
+import edu.indiana.d2i.htrc.dataapi.DataAPIWrapper.VolumeHandler;
 
 public class RetrieveRawCorpusMapper extends
 		Mapper<LongWritable, Text, Text, TextArrayWritable> {
 
 	enum HTRC_CORPUS {
-		NUM_RETRIEVED_VOLUMES
+		NUM_RETRIEVED_VOLUMES, NUM_WIRE_BYTES, NUM_DECODED_BYTES, NUM_REQUESTS
+	}
+
+	/**
+	 * volumes of a batch request and their contents, filled by a fetcher
+	 * thread. Pages are copied out of the decoder's reused buffers once
+	 */
+	private static class FetchedBatch implements VolumeHandler {
+		private final List<String> volumeIDs;
+		private final List<String> fetchedIDs = new ArrayList<String>();
+		private final List<Text[]> fetchedPages = new ArrayList<Text[]>();
+		/* latency of the request and page bytes received */
+		private long millis = 0;
+		private long bytes = 0;
+
+		private FetchedBatch(List<String> volumeIDs) {
+			this.volumeIDs = volumeIDs;
+		}
+
+		@Override
+		public void handleVolume(String volumeID, String[] pageSeqs,
+				Text[] pages) {
+			Text[] copies = new Text[pages.length];
+
+			for (int i = 0; i < pages.length; i++) {
+				copies[i] = new Text(pages[i]);
+				bytes += pages[i].getLength();
+			}
+
+			fetchedIDs.add(volumeID);
+			fetchedPages.add(copies);
+		}
+	}
+
+	/**
+	 * writes each volume as soon as it is decoded, from the decoder's reused
+	 * buffers
+	 */
+	private class VolumeWriter implements VolumeHandler {
+		private Context context;
+		/* volumes and page bytes written for the current request */
+		private int numVolumes = 0;
+		private long bytes = 0;
+
+		private VolumeWriter(Context context) {
+			this.context = context;
+		}
+
+		@Override
+		public void handleVolume(String volumeID, String[] pageSeqs,
+				Text[] pages) throws IOException, InterruptedException {
+			numVolumes++;
+			for (Text page : pages)
+				bytes += page.getLength();
+
+			writeVolume(context, volumeID, pages);
+		}
 	}
 
 	private static final Log logger = LogFactory
 			.getLog(RetrieveRawCorpusMapper.class);
+	/* how long to wait for a batch before reporting progress again */
+	private static final long POLL_SECONDS = 10;
+
 	private DataAPIWrapper dataAPIAgent;
-	private int numVolsPerReq;
+	/* # of volumes per request, fixed unless a target is configured */
+	private AdaptiveBatcher batcher;
 
-	private List<String> vols = new ArrayList<String>();
-	/**
-	 * <volume_id, <"WHOLE_CONTENT", whole_volume_content>> when concat=true OR
-	 * <volume_id, <page_id, page_content>> when concat=false
+	/*
+	 * with data.api.max.inflight > 1 batches are fetched by a pool of that
+	 * many threads while the map thread writes fetched batches. At most
+	 * maxInFlight batches are being fetched or waiting to be written at any
+	 * time, so the results held in memory stay bounded
 	 */
-	private Map<String, Map<String, String>> volPageContents = new HashMap<String, Map<String, String>>();
+	private int maxInFlight;
+	private ExecutorService fetchers = null;
+	private CompletionService<FetchedBatch> fetched = null;
+	private int numInFlight = 0;
+
+	/* transfer byte counts of dataAPIAgent already added to the counters */
+	private long reportedWireBytes = 0;
+	private long reportedDecodedBytes = 0;
+
+	private List<String> vols = new ArrayList<String>();
+	private VolumeWriter volumeWriter = null;
 
 	/* volume id */
 	private Text key = new Text();
@@ -68,6 +146,26 @@ public class RetrieveRawCorpusMapper extends
 			InterruptedException {
 		Configuration conf = context.getConfiguration();
 
+		// # of batch requests in flight
+		maxInFlight = Integer.parseInt(conf.get(
+				Constants.DATA_API_MAX_INFLIGHT,
+				Constants.DATA_API_DEFAULT_MAX_INFLIGHT));
+
+		/*
+		 * a persistent connection should be kept for each request in flight,
+		 * the driver passes http.maxConnections to the task JVM, as it cannot
+		 * be changed once the JVM (possibly reused) made a connection
+		 */
+		int maxConnections = DataAPIWrapper.getMaxKeepAliveConnections();
+		if (maxConnections < maxInFlight)
+			logger.warn(String.format(
+					"%s=%d is below %s=%d, connections beyond %d are closed after each request, "
+							+ "add -D%s=%d to mapred.child.java.opts",
+					DataAPIWrapper.MAX_CONNECTIONS_PROPERTY, maxConnections,
+					Constants.DATA_API_MAX_INFLIGHT, maxInFlight,
+					maxConnections, DataAPIWrapper.MAX_CONNECTIONS_PROPERTY,
+					maxInFlight));
+
 		boolean success = false;
 		try {
 			dataAPIAgent = new DataAPIWrapper(conf.get(Constants.DATA_API_EPR),
@@ -105,9 +203,38 @@ public class RetrieveRawCorpusMapper extends
 			System.exit(-1);
 		}
 
+		dataAPIAgent.setAcceptEncoding(conf.get(
+				Constants.DATA_API_ACCEPT_ENCODING,
+				Constants.DATA_API_DEFAULT_ACCEPT_ENCODING));
+
 		// # of volumes per request
-		numVolsPerReq = Integer.parseInt(conf.get(Constants.DATA_API_REQ_SIZE,
-				Constants.DATA_API_DEFAULT_REQ_SIZE));
+		batcher = new AdaptiveBatcher(Integer.parseInt(conf.get(
+				Constants.DATA_API_REQ_SIZE,
+				Constants.DATA_API_DEFAULT_REQ_SIZE)), Integer.parseInt(conf
+				.get(Constants.DATA_API_REQ_MIN_SIZE,
+						Constants.DATA_API_DEFAULT_REQ_MIN_SIZE)),
+				Integer.parseInt(conf.get(Constants.DATA_API_REQ_MAX_SIZE,
+						Constants.DATA_API_DEFAULT_REQ_MAX_SIZE)),
+				Long.parseLong(conf.get(Constants.DATA_API_REQ_TARGET_MILLIS,
+						Constants.DATA_API_DEFAULT_REQ_TARGET_MILLIS)),
+				Long.parseLong(conf.get(Constants.DATA_API_REQ_TARGET_BYTES,
+						Constants.DATA_API_DEFAULT_REQ_TARGET_BYTES)));
+
+		volumeWriter = new VolumeWriter(context);
+
+		if (maxInFlight > 1) {
+			fetchers = Executors.newFixedThreadPool(maxInFlight,
+					new ThreadFactory() {
+
+						@Override
+						public Thread newThread(Runnable r) {
+							Thread thread = new Thread(r, "data-api-fetcher");
+							thread.setDaemon(true);
+							return thread;
+						}
+					});
+			fetched = new ExecutorCompletionService<FetchedBatch>(fetchers);
+		}
 	}
 
 	private void processVolumes(Context context) throws IOException,
@@ -115,50 +242,146 @@ public class RetrieveRawCorpusMapper extends
 
 		if (vols.size() > 0) {
 
-			dataAPIAgent.retrieveVolContents(vols, volPageContents, false);
+			if (fetchers != null) {
+				// wait for a slot, writing fetched batches meanwhile
+				while (numInFlight >= maxInFlight)
+					writeFetchedBatch(context);
 
-			for (Map.Entry<String, Map<String, String>> volume : volPageContents
-					.entrySet()) {
+				final List<String> batch = vols;
+				vols = new ArrayList<String>();
 
-				/* set volume id */
-				key.set(volume.getKey());
+				fetched.submit(new Callable<FetchedBatch>() {
 
-				Text[] pages = new Text[volume.getValue().size()];
+					@Override
+					public FetchedBatch call() throws IOException,
+							InterruptedException {
+						FetchedBatch fetchedBatch = new FetchedBatch(batch);
+						long start = System.currentTimeMillis();
+						dataAPIAgent.retrieveVolContents(batch, fetchedBatch);
+						fetchedBatch.millis = System.currentTimeMillis()
+								- start;
+						return fetchedBatch;
+					}
+				});
+				numInFlight++;
 
-				/**
-				 * sort map by page order, e.g., 000001, 000002,...
-				 */
-				Map<String, String> sotred = CorpusProcessingUtils
-						.sortPages(volume.getValue());
-
-				int idx = 0;
-				for (Map.Entry<String, String> page : sotred.entrySet()) {
+				return;
+			}
 
-					pages[idx++] = new Text(page.getValue());
+			// volumes are written as they are decoded
+			volumeWriter.numVolumes = 0;
+			volumeWriter.bytes = 0;
+			long start = System.currentTimeMillis();
+			dataAPIAgent.retrieveVolContents(vols, volumeWriter);
 
-				}
-
-				/* set volume content in form of a list of pages */
-				value.set(pages);
-				context.write(key, value);
-			}
+			// latency includes writing, which only buffers the output
+			batcher.observe(vols.size(), volumeWriter.numVolumes,
+					System.currentTimeMillis() - start, volumeWriter.bytes);
 
 			// report progress
 			context.getCounter(HTRC_CORPUS.NUM_RETRIEVED_VOLUMES).increment(
 					vols.size());
+			context.getCounter(HTRC_CORPUS.NUM_REQUESTS).increment(1);
+			reportTransferredBytes(context);
 
 			// release space
 			vols.clear();
-			volPageContents.clear();
 		}
 
 	}
 
+	/**
+	 * waits for the next batch request to complete and writes its volumes
+	 */
+	private void writeFetchedBatch(Context context) throws IOException,
+			InterruptedException {
+		Future<FetchedBatch> result = null;
+
+		while ((result = fetched.poll(POLL_SECONDS, TimeUnit.SECONDS)) == null)
+			context.progress();
+
+		numInFlight--;
+
+		FetchedBatch batch = null;
+		try {
+			batch = result.get();
+		} catch (ExecutionException e) {
+			throw new IOException("Failed to retrieve volumes", e.getCause());
+		}
+
+		/*
+		 * batches submitted meanwhile were sized without this one, the size
+		 * lags by up to maxInFlight requests
+		 */
+		batcher.observe(batch.volumeIDs.size(), batch.fetchedIDs.size(),
+				batch.millis, batch.bytes);
+
+		for (int i = 0; i < batch.fetchedIDs.size(); i++)
+			writeVolume(context, batch.fetchedIDs.get(i),
+					batch.fetchedPages.get(i));
+
+		// report progress
+		context.getCounter(HTRC_CORPUS.NUM_RETRIEVED_VOLUMES).increment(
+				batch.volumeIDs.size());
+		context.getCounter(HTRC_CORPUS.NUM_REQUESTS).increment(1);
+		reportTransferredBytes(context);
+	}
+
+	/**
+	 * adds response bytes received since last call, on the wire and after
+	 * content decoding, to the counters. Fetcher threads only update the
+	 * totals of the agent, counters are updated by the map thread
+	 */
+	private void reportTransferredBytes(Context context) {
+		long wireBytes = dataAPIAgent.getWireBytes();
+		long decodedBytes = dataAPIAgent.getDecodedBytes();
+
+		context.getCounter(HTRC_CORPUS.NUM_WIRE_BYTES).increment(
+				wireBytes - reportedWireBytes);
+		context.getCounter(HTRC_CORPUS.NUM_DECODED_BYTES).increment(
+				decodedBytes - reportedDecodedBytes);
+
+		reportedWireBytes = wireBytes;
+		reportedDecodedBytes = decodedBytes;
+	}
+
+	/**
+	 * 
+	 * @param context
+	 * @param volumeID
+	 * @param pages
+	 *            pages sorted by page order, e.g., 000001, 000002,...
+	 */
+	private void writeVolume(Context context, String volumeID, Text[] pages)
+			throws IOException, InterruptedException {
+		/* set volume id */
+		key.set(volumeID);
+
+		/* set volume content in form of a list of pages */
+		value.set(pages);
+		context.write(key, value);
+	}
+
 	@Override
 	protected void cleanup(Context context) throws IOException,
 			InterruptedException {
 		// processing remaining volumes
 		processVolumes(context);
+
+		if (fetchers != null) {
+			try {
+				while (numInFlight > 0)
+					writeFetchedBatch(context);
+			} finally {
+				fetchers.shutdownNow();
+			}
+		}
+
+		if (batcher.isAdaptive())
+			logger.info(String.format(
+					"Final batch size %d, %.1f ms and %.0f page bytes per volume",
+					batcher.getBatchSize(), batcher.getMillisPerVolume(),
+					batcher.getBytesPerVolume()));
 	}
 
 	@Override
@@ -170,7 +393,7 @@ public class RetrieveRawCorpusMapper extends
 		vols.add(value.toString());
 
 		// Invoke data API to access the volume
-		if (vols.size() >= numVolsPerReq) {
+		if (vols.size() >= batcher.getBatchSize()) {
 			processVolumes(context);
 		}
 	}
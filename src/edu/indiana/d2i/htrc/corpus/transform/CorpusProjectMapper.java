@@ -0,0 +1,93 @@
+/*
+#
+# Copyright 2007 The Trustees of Indiana University
+#
+# Licensed under the Apache License, Version 2.0 (the "License");
+# you may not use this file except in compliance with the License.
+# You may obtain a copy of the License at
+#
+# http://www.apache.org/licenses/LICENSE-2.0
+#
+# Unless required by applicable law or agreed to in writing, software
+# distributed under the License is distributed on an "AS IS" BASIS,
+# WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+# See the License for the specific language governing permissions and
+# limitations under the License.
+#
+ */
+package edu.indiana.d2i.htrc.corpus.transform;
+
+import java.io.IOException;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.Writable;
+import org.apache.hadoop.mapreduce.Mapper;
+
+import edu.indiana.d2i.htrc.corpus.CorpusProcessingUtils;
+import edu.indiana.d2i.htrc.corpus.ProjectedVolumeWritable;
+import edu.indiana.d2i.htrc.corpus.TextArrayWritable;
+import edu.indiana.d2i.htrc.corpus.VolumeTokensWritable;
+import edu.indiana.d2i.htrc.corpus.WordIndexRemap;
+
+/**
+ * Projects a transformed corpus (indices to full word set, of either form)
+ * onto the sub word set of a mapping table, so that LDA iterations read
+ * volumes that are already in the sub word set. Words not in the sub set are
+ * dropped, and so are pages and volumes left empty
+ *
+ */
+public class CorpusProjectMapper extends
+		Mapper<Text, Writable, Text, Writable> {
+
+	enum HTRC_CORPUS {
+		NUM_PROJECTED_VOLUMES, NUM_DROPPED_VOLUMES
+	}
+
+	/* maps index in full word set to index in sub word set */
+	private WordIndexRemap fullToSub = null;
+
+	private ProjectedVolumeWritable projected = new ProjectedVolumeWritable();
+
+	@Override
+	protected void setup(Context context) throws IOException,
+			InterruptedException {
+		/**
+		 * mapping table file is distributed to each node via distributed
+		 * cache mechanism
+		 */
+		Configuration conf = context.getConfiguration();
+
+		fullToSub = WordIndexRemap.build(CorpusProcessingUtils
+				.extractIdxFromMappingTable(CorpusProcessingUtils
+						.loadMappingTable(conf
+								.get("user.args.mapping.table.filename"))));
+	}
+
+	@Override
+	public void map(Text key, Writable value, Context context)
+			throws IOException, InterruptedException {
+		// key is volume id, value is volume content of transformed corpus
+
+		if (value instanceof ProjectedVolumeWritable)
+			throw new IOException("Volume " + key + " is projected already");
+
+		if (value instanceof VolumeTokensWritable)
+			projected.set((VolumeTokensWritable) value);
+		else
+			projected.parse((TextArrayWritable) value);
+
+		CorpusProcessingUtils.fullWordSet2SubWordSet(projected, fullToSub);
+		projected.removeEmptyPages();
+
+		if (projected.getNumTokens() == 0) {
+			context.getCounter(HTRC_CORPUS.NUM_DROPPED_VOLUMES).increment(1);
+			return;
+		}
+
+		context.write(key, projected);
+
+		// report progress
+		context.getCounter(HTRC_CORPUS.NUM_PROJECTED_VOLUMES).increment(1);
+	}
+}
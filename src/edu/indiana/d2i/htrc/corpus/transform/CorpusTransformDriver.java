@@ -31,7 +31,9 @@ import org.apache.hadoop.mapreduce.lib.output.SequenceFileOutputFormat;
 import org.apache.hadoop.util.Tool;
 import org.apache.hadoop.util.ToolRunner;
 
+import edu.indiana.d2i.htrc.corpus.ProjectedVolumeWritable;
 import edu.indiana.d2i.htrc.corpus.TextArrayWritable;
+import edu.indiana.d2i.htrc.corpus.VolumeTokensWritable;
 
 public class CorpusTransformDriver extends Configured implements Tool {
 
@@ -45,7 +47,14 @@ public class CorpusTransformDriver extends Configured implements Tool {
 		 * whether compression is used through -D user.args.compression=true,
 		 * use -D user.args.wordset.filename=<wordset_filename> to set wordset
 		 * filename, use -files </local/path/to/wordset_file> to distribute
-		 * wordset_file to each compute node
+		 * wordset_file to each compute node. Specify -D
+		 * user.args.transform.binary=true to write volumes as
+		 * VolumeTokensWritable (varint encoded token ids) instead of
+		 * TextArrayWritable. Specify -D user.args.transform.project=true and
+		 * -D user.args.mapping.table.filename=<mappingtable_filename> (with
+		 * -files </local/path/to/mappingtable_file>) to project a transformed
+		 * corpus onto the sub word set of the mapping table instead, the
+		 * input directory is then the transformed corpus
 		 */
 		if (args.length != 2) {
 			System.err
@@ -62,8 +71,12 @@ public class CorpusTransformDriver extends Configured implements Tool {
 		FileInputFormat.addInputPath(job, new Path(args[0]));
 		FileOutputFormat.setOutputPath(job, new Path(args[1]));
 
+		boolean isProjection = conf.getBoolean("user.args.transform.project",
+				false);
+
 		job.setJarByClass(CorpusTransformDriver.class);
-		job.setMapperClass(CorpusTransformMapper.class);
+		job.setMapperClass(isProjection ? CorpusProjectMapper.class
+				: CorpusTransformMapper.class);
 		job.setReducerClass(CorpusTransformReducer.class);
 
 		if (conf.getBoolean("user.args.compression", false)) {
@@ -76,7 +89,12 @@ public class CorpusTransformDriver extends Configured implements Tool {
 		}
 
 		job.setOutputKeyClass(Text.class);
-		job.setOutputValueClass(TextArrayWritable.class);
+		if (isProjection)
+			job.setOutputValueClass(ProjectedVolumeWritable.class);
+		else if (conf.getBoolean("user.args.transform.binary", false))
+			job.setOutputValueClass(VolumeTokensWritable.class);
+		else
+			job.setOutputValueClass(TextArrayWritable.class);
 
 		job.setInputFormatClass(SequenceFileInputFormat.class);
 		job.setOutputFormatClass(SequenceFileOutputFormat.class);
@@ -17,28 +17,31 @@
  */
 package edu.indiana.d2i.htrc.corpus.transform;
 
-import java.io.BufferedReader;
-import java.io.FileInputStream;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.util.ArrayList;
-import java.util.List;
 
 import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.Writable;
 import org.apache.hadoop.mapreduce.Mapper;
 
 import edu.indiana.d2i.htrc.corpus.CorpusProcessingUtils;
 import edu.indiana.d2i.htrc.corpus.TextArrayWritable;
+import edu.indiana.d2i.htrc.corpus.VocabularyIndex;
+import edu.indiana.d2i.htrc.corpus.VolumeTokensWritable;
 
 public class CorpusTransformMapper extends
-		Mapper<Text, TextArrayWritable, Text, TextArrayWritable> {
+		Mapper<Text, TextArrayWritable, Text, Writable> {
 
 	enum HTRC_CORPUS {
 		NUM_TRANSFORMED_VOLUMES
 	}
 
-	private List<String> wordSet = new ArrayList<String>();
+	/* index of word set, maps a word to its line number in word set file */
+	private VocabularyIndex wordSetIndex = null;
+
+	/* whether to emit volumes as VolumeTokensWritable */
+	private boolean isBinary = false;
+	private VolumeTokensWritable transformed = new VolumeTokensWritable();
 
 	@Override
 	protected void setup(Context context) throws IOException,
@@ -50,21 +53,9 @@ public class CorpusTransformMapper extends
 		Configuration conf = context.getConfiguration();
 		String wordSetFileName = conf.get("user.args.wordset.filename");
 
-		BufferedReader reader = null;
-		String line = null;
-
-		try {
-			reader = new BufferedReader(new InputStreamReader(
-					new FileInputStream(wordSetFileName)));
-
-			/* each line is a word */
-			while ((line = reader.readLine()) != null)
-				wordSet.add(line.trim());
+		wordSetIndex = VocabularyIndex.load(wordSetFileName);
 
-		} finally {
-			if (reader != null)
-				reader.close();
-		}
+		isBinary = conf.getBoolean("user.args.transform.binary", false);
 	}
 
 	@Override
@@ -73,9 +64,16 @@ public class CorpusTransformMapper extends
 		// key is volume id, value is volume content (list of pages), key and
 		// value are extracted from sequence file
 
-		CorpusProcessingUtils.transformVolume(value, wordSet);
+		if (isBinary) {
+			CorpusProcessingUtils.transformVolume(value, wordSetIndex,
+					transformed);
+
+			context.write(key, transformed);
+		} else {
+			CorpusProcessingUtils.transformVolume(value, wordSetIndex);
 
-		context.write(key, value);
+			context.write(key, value);
+		}
 
 		// report progress
 		context.getCounter(HTRC_CORPUS.NUM_TRANSFORMED_VOLUMES).increment(1);
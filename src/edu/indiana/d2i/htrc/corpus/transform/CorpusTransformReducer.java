@@ -20,22 +20,24 @@ package edu.indiana.d2i.htrc.corpus.transform;
 import java.io.IOException;
 
 import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.Writable;
 import org.apache.hadoop.mapreduce.Reducer;
 
-import edu.indiana.d2i.htrc.corpus.TextArrayWritable;
-
 public class CorpusTransformReducer extends
-		Reducer<Text, TextArrayWritable, Text, TextArrayWritable> {
+		Reducer<Text, Writable, Text, Writable> {
 
 	@Override
-	public void reduce(Text key, Iterable<TextArrayWritable> values,
-			Context context) throws IOException, InterruptedException {
-		/* key is volume id, value is pages */
+	public void reduce(Text key, Iterable<Writable> values, Context context)
+			throws IOException, InterruptedException {
+		/*
+		 * key is volume id, value is pages, either TextArrayWritable or
+		 * VolumeTokensWritable
+		 */
 
 		/**
 		 * The iterator should only have a single element
 		 */
-		for (TextArrayWritable pages : values) {
+		for (Writable pages : values) {
 			context.write(key, pages);
 			context.progress();
 			break;
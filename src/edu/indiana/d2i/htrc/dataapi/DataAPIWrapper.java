@@ -25,17 +25,21 @@ import java.net.HttpURLConnection;
 import java.net.MalformedURLException;
 import java.net.URL;
 import java.net.URLConnection;
-import java.nio.charset.Charset;
 import java.security.KeyManagementException;
 import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.InflaterInputStream;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipInputStream;
 
 import javax.net.ssl.HttpsURLConnection;
 import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSocketFactory;
 import javax.net.ssl.TrustManager;
 import javax.net.ssl.X509TrustManager;
 
@@ -48,8 +52,10 @@ import org.apache.amber.oauth2.common.exception.OAuthProblemException;
 import org.apache.amber.oauth2.common.exception.OAuthSystemException;
 import org.apache.amber.oauth2.common.message.types.GrantType;
 import org.apache.amber.oauth2.common.utils.OAuthUtils;
+import org.apache.commons.io.input.CountingInputStream;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.io.Text;
 
 public class DataAPIWrapper {
 	private static final Log log = LogFactory.getLog(DataAPIWrapper.class);
@@ -61,6 +67,9 @@ public class DataAPIWrapper {
 	 * retrieving volumes
 	 */
 	public static final String ERROR_FNAME = "ERROR.err";
+	/* JVM-wide limit of idle persistent connections kept per host */
+	public static final String MAX_CONNECTIONS_PROPERTY = "http.maxConnections";
+	public static final int DEFAULT_MAX_CONNECTIONS = 5;
 
 	private String dataAPIEPR = null;
 	private String dataAPIPagePrefix = null;
@@ -74,10 +83,34 @@ public class DataAPIWrapper {
 	private String passwd = null;
 	private boolean isSelfSigned = false;
 
-	private String oauth2Token = null;
+	/* renewed by whichever request thread gets a 500 response */
+	private volatile String oauth2Token = null;
 
 	private boolean isSecureConn = false;
 
+	/*
+	 * socket factory of the SSL context trusting self-signed certificates,
+	 * created once so that HTTPS connections can be kept alive and TLS
+	 * sessions resumed across requests. null when the default one is used
+	 */
+	private SSLSocketFactory sslSocketFactory = null;
+
+	/* buffer for draining the unread rest of a response */
+	private static final int DRAIN_BUFFER_SIZE = 8 * 1024;
+
+	/* content codings asked for by default, both decoded while streaming */
+	public static final String DEFAULT_ACCEPT_ENCODING = "gzip, deflate";
+
+	/* Accept-Encoding of requests, not sent when null or empty */
+	private String acceptEncoding = DEFAULT_ACCEPT_ENCODING;
+
+	/*
+	 * response body bytes as received (after any content coding) and after
+	 * content decoding, i.e. of the zip stream, over all requests
+	 */
+	private final AtomicLong wireBytes = new AtomicLong();
+	private final AtomicLong decodedBytes = new AtomicLong();
+
 	public DataAPIWrapper(String dataAPIEPR, String dataAPIPagePrefix,
 			String dataAPIVolPrefix, String delimiter, boolean isConcat,
 			String oauth2EPR, String username, String passwd,
@@ -101,9 +134,51 @@ public class DataAPIWrapper {
 		authenticate();
 	}
 
-	private void initSSL(boolean isSelfSigned) throws NoSuchAlgorithmException,
-			KeyManagementException {
-		if (isSelfSigned) {
+	/**
+	 * 
+	 * @param acceptEncoding
+	 *            content codings to ask Data API for, e.g. "gzip, deflate"
+	 *            (the default), null or empty for none. Responses in gzip or
+	 *            deflate coding are decoded while the zip stream is read
+	 */
+	public void setAcceptEncoding(String acceptEncoding) {
+		this.acceptEncoding = acceptEncoding;
+	}
+
+	/**
+	 * 
+	 * @return response body bytes received so far, headers not included
+	 */
+	public long getWireBytes() {
+		return wireBytes.get();
+	}
+
+	/**
+	 * 
+	 * @return response body bytes received so far after content decoding,
+	 *         same as {@link #getWireBytes()} when responses are not coded
+	 */
+	public long getDecodedBytes() {
+		return decodedBytes.get();
+	}
+
+	/**
+	 * how many idle persistent connections per host the JDK keeps for reuse,
+	 * which should be at least the number of concurrent requests. The JDK
+	 * reads it once, at the first HTTP connection of the JVM, so it has to be
+	 * given when the JVM starts (-Dhttp.maxConnections=<n>), setting it later
+	 * has no effect
+	 * 
+	 * @return the value of http.maxConnections, 5 by default
+	 */
+	public static int getMaxKeepAliveConnections() {
+		return Integer.getInteger(MAX_CONNECTIONS_PROPERTY,
+				DEFAULT_MAX_CONNECTIONS);
+	}
+
+	private synchronized void initSSL(boolean isSelfSigned)
+			throws NoSuchAlgorithmException, KeyManagementException {
+		if (isSelfSigned && sslSocketFactory == null) {
 			TrustManager[] trustAllCerts = new TrustManager[] { new X509TrustManager() {
 				public java.security.cert.X509Certificate[] getAcceptedIssuers() {
 					return null;
@@ -135,12 +210,12 @@ public class DataAPIWrapper {
 			SSLContext sslContext = SSLContext.getInstance("SSL");
 			sslContext.init(null, trustAllCerts,
 					new java.security.SecureRandom());
-			HttpsURLConnection.setDefaultSSLSocketFactory(sslContext
-					.getSocketFactory());
+			sslSocketFactory = sslContext.getSocketFactory();
+			HttpsURLConnection.setDefaultSSLSocketFactory(sslSocketFactory);
 		}
 	}
 
-	private void authenticate() throws NoSuchAlgorithmException,
+	private synchronized void authenticate() throws NoSuchAlgorithmException,
 			KeyManagementException, OAuthSystemException, OAuthProblemException {
 
 		if (oauth2EPR.startsWith("https")) {
@@ -206,27 +281,107 @@ public class DataAPIWrapper {
 		return dataAPIEPR + dataAPIVolPrefix + builder.toString();
 	}
 
-	public long retrievePageContents(
-			Map<String, List<String>> volPageSequences,
-			Map<String, Map<String, String>> volPageContents) {
-		// TODO Auto-generated method stub
+	/**
+	 * receives the volumes of a request one at a time, as soon as all pages of
+	 * a volume are decoded from the zip stream
+	 */
+	public interface VolumeHandler {
 
-		String requestURL = makePagesURL(volPageSequences);
+		/**
+		 * 
+		 * @param volumeID
+		 * @param pageSeqs
+		 *            page sequences, e.g., 00000001, in page order, or
+		 *            {@link DataAPIWrapper#WHOLE_CONTENT} when pages are
+		 *            concatenated
+		 * @param pages
+		 *            page contents (UTF-8, lines ended by '\n') in page order.
+		 *            The Text objects are reused for the next volume once the
+		 *            call returns
+		 * @throws IOException
+		 * @throws InterruptedException
+		 */
+		void handleVolume(String volumeID, String[] pageSeqs, Text[] pages)
+				throws IOException, InterruptedException;
+	}
 
-		if (log.isDebugEnabled())
-			log.debug("requestURL = " + requestURL);
+	/**
+	 * carries an exception thrown by a VolumeHandler through the error
+	 * handling of retrieveContents, which only logs IOExceptions of the
+	 * connection
+	 */
+	private static class HandlerException extends RuntimeException {
+		private static final long serialVersionUID = 1L;
+
+		private HandlerException(Exception cause) {
+			super(cause);
+		}
+
+		private void rethrow() throws IOException, InterruptedException {
+			if (getCause() instanceof InterruptedException)
+				throw (InterruptedException) getCause();
 
-		return retrieveContents(requestURL, volPageContents);
+			throw (IOException) getCause();
+		}
 	}
 
-	private static void openZipStream(InputStream inputStream,
-			Map<String, Map<String, String>> volPageContents, boolean isConcat)
-			throws IOException {
-		ZipInputStream zipInputStream = new ZipInputStream(inputStream);
-		ZipEntry zipEntry = null;
-		String currentVolID = null;
+	/**
+	 * builds the <volume_id, <page_id, page_content>> map of the map based
+	 * retrieve methods
+	 */
+	private static class MapVolumeHandler implements VolumeHandler {
+		private Map<String, Map<String, String>> volPageContents;
+
+		private MapVolumeHandler(
+				Map<String, Map<String, String>> volPageContents) {
+			this.volPageContents = volPageContents;
+		}
+
+		@Override
+		public void handleVolume(String volumeID, String[] pageSeqs,
+				Text[] pages) {
+			Map<String, String> contents = new HashMap<String, String>();
+
+			for (int i = 0; i < pages.length; i++)
+				contents.put(pageSeqs[i], pages[i].toString());
+
+			volPageContents.put(volumeID, contents);
+		}
+	}
+
+	/**
+	 * decodes the zip stream of a request page by page into reusable
+	 * buffers. Only the pages of the current volume are held, so memory is
+	 * bounded by the largest volume instead of by the whole request. One
+	 * decoder per thread, requests may be issued concurrently
+	 */
+	private static class ZipVolumeDecoder {
+		private static final ThreadLocal<ZipVolumeDecoder> DECODERS = new ThreadLocal<ZipVolumeDecoder>() {
+
+			@Override
+			protected ZipVolumeDecoder initialValue() {
+				return new ZipVolumeDecoder();
+			}
+		};
+
+		private byte[] readBuffer = new byte[64 * 1024];
+		/* page being decoded, grows to the largest page */
+		private byte[] pageBuffer = new byte[64 * 1024];
+
+		/* pages of current volume, pool grows to the largest volume */
+		private String currentVolID = null;
+		private String[] pageSeqs = new String[16];
+		private Text[] pages = new Text[16];
+		private int numPages = 0;
+
+		private void decode(InputStream inputStream, boolean isConcat,
+				VolumeHandler handler) throws IOException {
+			ZipInputStream zipInputStream = new ZipInputStream(inputStream);
+			ZipEntry zipEntry = null;
+
+			currentVolID = null;
+			numPages = 0;
 
-		if (!isConcat) {
 			while ((zipEntry = zipInputStream.getNextEntry()) != null) {
 				String name = zipEntry.getName();
 
@@ -234,102 +389,191 @@ public class DataAPIWrapper {
 				 * check whether encounter ERROR.err
 				 */
 				if (ERROR_FNAME.equals(name)) {
-					log.error("Encountered ERROR.err file in the zip stream");
-					// log the content of ERROR.err file
-					log.error("*************** Start of Content of ERROR.err ***************");
-					StringBuilder sb = new StringBuilder();
-					BufferedReader reader = new BufferedReader(
-							new InputStreamReader(zipInputStream));
-					String line = null;
-					while ((line = reader.readLine()) != null)
-						sb.append(line + "\n");
-
-					log.error(sb.toString());
-					log.error("*************** End of Content of ERROR.err ***************");
-
+					logErrorEntry(zipInputStream);
 					continue;
 				}
 
-				if (zipEntry.isDirectory()) {
+				if (isConcat) {
+					assert !zipEntry.isDirectory();
+
+					int idx = name.indexOf(".txt");
+					String cleanedVolId = name.substring(0, idx);
+
+					if (log.isDebugEnabled())
+						log.debug("Encounter volueme whole entry : "
+								+ cleanedVolId);
+
+					currentVolID = cleanedVolId;
+					readPage(zipInputStream, DataAPIWrapper.WHOLE_CONTENT);
+					finishVolume(handler);
+
+				} else if (zipEntry.isDirectory()) {
+					finishVolume(handler);
+
 					// get volume name
 					currentVolID = name.split("/")[0];
-					volPageContents.put(currentVolID,
-							new HashMap<String, String>());
 
 					if (log.isDebugEnabled())
 						log.debug("Encounter volueme directory : "
 								+ currentVolID);
 
 				} else {
-					String[] names = name.split("/");
-
 					// each page is a separate entry
-//					assert names.length == 2;
-//					assert names[0].equals(currentVolID);
-
-					// get page(s) content
-					StringBuilder sb = new StringBuilder();
-					BufferedReader reader = new BufferedReader(
-							new InputStreamReader(zipInputStream,
-									Charset.forName("UTF-8")));
-					String line = null;
-					while ((line = reader.readLine()) != null)
-						sb.append(line + "\n");
+					String[] names = name.split("/");
 
-					Map<String, String> contents = volPageContents
-							.get(currentVolID);
+					if (!names[0].equals(currentVolID)) {
+						finishVolume(handler);
+						currentVolID = names[0];
+					}
 
 					int idx = names[1].indexOf(".txt");
-//					assert idx != -1;
+					readPage(zipInputStream, names[1].substring(0, idx));
+				}
+			}
+
+			finishVolume(handler);
+		}
 
-					contents.put(names[1].substring(0, idx), sb.toString());
+		/**
+		 * reads a zip entry as the next page of current volume. Line ends
+		 * are normalized to '\n' and the last line is ended by '\n', as
+		 * reading the page line by line did
+		 */
+		private void readPage(InputStream in, String pageSeq)
+				throws IOException {
+			int length = 0;
+			boolean afterCR = false;
+			int n;
+
+			while ((n = in.read(readBuffer)) > 0) {
+				if (length + n + 1 > pageBuffer.length)
+					pageBuffer = Arrays.copyOf(pageBuffer,
+							Math.max(2 * pageBuffer.length, length + n + 1));
+
+				for (int i = 0; i < n; i++) {
+					byte b = readBuffer[i];
+
+					if (b == '\r') {
+						pageBuffer[length++] = '\n';
+						afterCR = true;
+					} else {
+						if (b != '\n' || !afterCR)
+							pageBuffer[length++] = b;
+
+						afterCR = false;
+					}
 				}
 			}
-		} else {
-			while ((zipEntry = zipInputStream.getNextEntry()) != null) {
-				assert !zipEntry.isDirectory();
-				String name = zipEntry.getName();
 
-				/**
-				 * check whether encounter ERROR.err
-				 */
-				if (ERROR_FNAME.equals(name)) {
-					log.error("Encountered ERROR.err file in the zip stream");
-					// log the content of ERROR.err file
-					log.error("*************** Start of Content of ERROR.err ***************");
-					StringBuilder sb = new StringBuilder();
-					BufferedReader reader = new BufferedReader(
-							new InputStreamReader(zipInputStream));
-					String line = null;
-					while ((line = reader.readLine()) != null)
-						sb.append(line + "\n");
-
-					log.error(sb.toString());
-					log.error("*************** End of Content of ERROR.err ***************");
+			if (length > 0 && pageBuffer[length - 1] != '\n')
+				pageBuffer[length++] = '\n';
 
-					continue;
+			if (numPages == pages.length) {
+				pages = Arrays.copyOf(pages, 2 * numPages);
+				pageSeqs = Arrays.copyOf(pageSeqs, 2 * numPages);
+			}
+
+			if (pages[numPages] == null)
+				pages[numPages] = new Text();
+
+			pages[numPages].set(pageBuffer, 0, length);
+			pageSeqs[numPages++] = pageSeq;
+		}
+
+		/**
+		 * hands current volume, pages sorted by page sequence, to the handler
+		 */
+		private void finishVolume(VolumeHandler handler) {
+			if (currentVolID == null)
+				return;
+
+			// pages usually come in order, insertion sort is then linear
+			for (int i = 1; i < numPages; i++) {
+				String seq = pageSeqs[i];
+				Text page = pages[i];
+				int j = i - 1;
+
+				for (; j >= 0 && comparePageSeqs(pageSeqs[j], seq) > 0; j--) {
+					pageSeqs[j + 1] = pageSeqs[j];
+					pages[j + 1] = pages[j];
 				}
 
-				int idx = name.indexOf(".txt");
-//				assert idx != -1;
-				String cleanedVolId = name.substring(0, idx);
+				pageSeqs[j + 1] = seq;
+				pages[j + 1] = page;
+			}
 
-				if (log.isDebugEnabled())
-					log.debug("Encounter volueme whole entry : " + cleanedVolId);
+			try {
+				handler.handleVolume(currentVolID,
+						Arrays.copyOf(pageSeqs, numPages),
+						Arrays.copyOf(pages, numPages));
+			} catch (IOException e) {
+				throw new HandlerException(e);
+			} catch (InterruptedException e) {
+				throw new HandlerException(e);
+			}
 
-				StringBuilder sb = new StringBuilder();
-				BufferedReader reader = new BufferedReader(
-						new InputStreamReader(zipInputStream,
-								Charset.forName("UTF-8")));
-				String line = null;
-				while ((line = reader.readLine()) != null)
-					sb.append(line + "\n");
+			currentVolID = null;
+			numPages = 0;
+		}
 
-				HashMap<String, String> concatContent = new HashMap<String, String>();
-				concatContent.put(DataAPIWrapper.WHOLE_CONTENT, sb.toString());
-				volPageContents.put(cleanedVolId, concatContent);
+		private static int comparePageSeqs(String seq1, String seq2) {
+			try {
+				return Integer.valueOf(seq1).compareTo(Integer.valueOf(seq2));
+			} catch (NumberFormatException e) {
+				return seq1.compareTo(seq2);
 			}
 		}
+
+		private static void logErrorEntry(InputStream in) throws IOException {
+			log.error("Encountered ERROR.err file in the zip stream");
+			// log the content of ERROR.err file
+			log.error("*************** Start of Content of ERROR.err ***************");
+			StringBuilder sb = new StringBuilder();
+			BufferedReader reader = new BufferedReader(new InputStreamReader(in));
+			String line = null;
+			while ((line = reader.readLine()) != null)
+				sb.append(line + "\n");
+
+			log.error(sb.toString());
+			log.error("*************** End of Content of ERROR.err ***************");
+		}
+	}
+
+	public long retrievePageContents(
+			Map<String, List<String>> volPageSequences,
+			Map<String, Map<String, String>> volPageContents) {
+		// TODO Auto-generated method stub
+
+		String requestURL = makePagesURL(volPageSequences);
+
+		if (log.isDebugEnabled())
+			log.debug("requestURL = " + requestURL);
+
+		return retrieveContents(requestURL, new MapVolumeHandler(
+				volPageContents));
+	}
+
+	/**
+	 * decodes a zip stream as returned by Data API, volumes are handed to the
+	 * handler one at a time
+	 * 
+	 * @param inputStream
+	 * @param isConcat
+	 *            whether pages of each volume are concatenated
+	 * @param handler
+	 * @throws IOException
+	 * @throws InterruptedException
+	 *             if thrown by the handler
+	 */
+	public static void readZipStream(InputStream inputStream,
+			boolean isConcat, VolumeHandler handler) throws IOException,
+			InterruptedException {
+		try {
+			ZipVolumeDecoder.DECODERS.get().decode(inputStream, isConcat,
+					handler);
+		} catch (HandlerException e) {
+			e.rethrow();
+		}
 	}
 
 	public long retrieveVolContents(List<String> volumeIDs,
@@ -341,11 +585,73 @@ public class DataAPIWrapper {
 		if (log.isDebugEnabled())
 			log.debug("requestURL = " + requestURL);
 
-		return retrieveContents(requestURL, volPageContents);
+		return retrieveContents(requestURL, new MapVolumeHandler(
+				volPageContents));
 	}
 
-	private long retrieveContents(String requestURL,
-			Map<String, Map<String, String>> volPageContents) {
+	/**
+	 * retrieves volumes without holding the whole request in memory, each
+	 * volume is handed to the handler as soon as it is decoded. Errors of the
+	 * request are logged as by
+	 * {@link #retrieveVolContents(List, Map, boolean)}, volumes that failed
+	 * are not handed to the handler
+	 * 
+	 * @param volumeIDs
+	 * @param handler
+	 * @return time spent on the request in milliseconds
+	 * @throws IOException
+	 * @throws InterruptedException
+	 *             if thrown by the handler
+	 */
+	public long retrieveVolContents(List<String> volumeIDs,
+			VolumeHandler handler) throws IOException, InterruptedException {
+		String requestURL = makeVolumesURL(volumeIDs);
+
+		if (log.isDebugEnabled())
+			log.debug("requestURL = " + requestURL);
+
+		try {
+			return retrieveContents(requestURL, handler);
+		} catch (HandlerException e) {
+			e.rethrow();
+			return 0;
+		}
+	}
+
+	/**
+	 * 
+	 * @param inputStream
+	 *            response body
+	 * @param contentEncoding
+	 *            Content-Encoding of the response
+	 * @return stream decoding the content coding
+	 * @throws IOException
+	 */
+	private static InputStream decodeContent(InputStream inputStream,
+			String contentEncoding) throws IOException {
+		if (contentEncoding == null
+				|| "identity".equalsIgnoreCase(contentEncoding.trim()))
+			return inputStream;
+
+		if ("gzip".equalsIgnoreCase(contentEncoding.trim())
+				|| "x-gzip".equalsIgnoreCase(contentEncoding.trim()))
+			return new GZIPInputStream(inputStream, DRAIN_BUFFER_SIZE);
+
+		if ("deflate".equalsIgnoreCase(contentEncoding.trim()))
+			return new InflaterInputStream(inputStream);
+
+		throw new IOException("Unsupported Content-Encoding : "
+				+ contentEncoding);
+	}
+
+	private static void drain(InputStream inputStream) throws IOException {
+		byte[] buffer = new byte[DRAIN_BUFFER_SIZE];
+
+		while (inputStream.read(buffer) != -1)
+			;
+	}
+
+	private long retrieveContents(String requestURL, VolumeHandler handler) {
 		long totalTime = 0;
 		long startTime = 0;
 		long endTime = 0;
@@ -364,17 +670,54 @@ public class DataAPIWrapper {
 			connection.addRequestProperty("Authorization", "Bearer "
 					+ oauth2Token);
 
-			if (isSecureConn)
+			if (acceptEncoding != null && acceptEncoding.length() > 0)
+				connection.addRequestProperty("Accept-Encoding",
+						acceptEncoding);
+
+			if (isSecureConn) {
 				assert connection instanceof HttpsURLConnection;
-			else
+
+				/*
+				 * kept-alive HTTPS connections are only reused with the same
+				 * socket factory
+				 */
+				if (sslSocketFactory != null)
+					((HttpsURLConnection) connection)
+							.setSSLSocketFactory(sslSocketFactory);
+			} else
 				assert connection instanceof HttpURLConnection;
 
 			HttpURLConnection httpURLConnection = (HttpURLConnection) connection;
 			httpURLConnection.setRequestMethod("GET");
 
 			if (httpURLConnection.getResponseCode() == 200) {
-				inputStream = httpURLConnection.getInputStream();
-				openZipStream(inputStream, volPageContents, isConcat);
+				CountingInputStream wireStream = new CountingInputStream(
+						httpURLConnection.getInputStream());
+				CountingInputStream decodedStream = null;
+
+				try {
+					decodedStream = new CountingInputStream(decodeContent(
+							wireStream, httpURLConnection.getContentEncoding()));
+					// closing it closes the wire stream too
+					inputStream = decodedStream;
+
+					ZipVolumeDecoder.DECODERS.get().decode(decodedStream,
+							isConcat, handler);
+
+					/*
+					 * the zip central directory is left unread, a connection
+					 * only goes back to the keep-alive cache when the response
+					 * is read to the end
+					 */
+					drain(decodedStream);
+					drain(wireStream);
+				} finally {
+					wireBytes.addAndGet(wireStream.getByteCount());
+					if (decodedStream != null)
+						decodedBytes.addAndGet(decodedStream.getByteCount());
+					else
+						inputStream = wireStream;
+				}
 
 				endTime = System.currentTimeMillis();
 				totalTime = endTime - startTime;
@@ -382,9 +725,10 @@ public class DataAPIWrapper {
 			} else {
 				int responseCode = httpURLConnection.getResponseCode();
 				log.error("Server response code : " + responseCode);
-				inputStream = httpURLConnection.getInputStream();
-				String responseBody = OAuthUtils
-						.saveStreamAsString(inputStream);
+				// getInputStream() throws on error responses
+				inputStream = httpURLConnection.getErrorStream();
+				String responseBody = (inputStream != null) ? OAuthUtils
+						.saveStreamAsString(inputStream) : "";
 
 				log.error(responseBody);
 
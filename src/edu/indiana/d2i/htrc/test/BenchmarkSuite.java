@@ -0,0 +1,1594 @@
+/*
+#
+# Copyright 2007 The Trustees of Indiana University
+#
+# Licensed under the Apache License, Version 2.0 (the "License");
+# you may not use this file except in compliance with the License.
+# You may obtain a copy of the License at
+#
+# http://www.apache.org/licenses/LICENSE-2.0
+#
+# Unless required by applicable law or agreed to in writing, software
+# distributed under the License is distributed on an "AS IS" BASIS,
+# WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+# See the License for the specific language governing permissions and
+# limitations under the License.
+#
+ */
+package edu.indiana.d2i.htrc.test;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+import java.util.zip.ZipOutputStream;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.FileUtil;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.DataInputBuffer;
+import org.apache.hadoop.io.DataOutputBuffer;
+import org.apache.hadoop.io.SequenceFile;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.Writable;
+import org.apache.hadoop.util.GenericOptionsParser;
+import org.apache.hadoop.util.ToolRunner;
+
+import edu.indiana.d2i.htrc.Constants;
+import edu.indiana.d2i.htrc.corpus.CorpusProcessingUtils;
+import edu.indiana.d2i.htrc.corpus.CorpusProcessingUtils.MappingTableEntry;
+import edu.indiana.d2i.htrc.corpus.TextArrayWritable;
+import edu.indiana.d2i.htrc.corpus.VocabularyIndex;
+import edu.indiana.d2i.htrc.corpus.VolumeTokensWritable;
+import edu.indiana.d2i.htrc.corpus.WordIndexRemap;
+import edu.indiana.d2i.htrc.corpus.analysis.LDAAnalysisDriver;
+import edu.indiana.d2i.htrc.corpus.analysis.LDAAnalyzer;
+import edu.indiana.d2i.htrc.corpus.analysis.LDAAnalyzer.LDAState;
+import edu.indiana.d2i.htrc.corpus.analysis.LDAAnalyzer.SamplerMode;
+import edu.indiana.d2i.htrc.corpus.analysis.LDAAnalyzer.TopicAssignments;
+import edu.indiana.d2i.htrc.corpus.analysis.LDAAnalyzer.TopicsDocumentsTable;
+import edu.indiana.d2i.htrc.corpus.analysis.LDAAnalyzer.TopicsDocumentsTable.Layout;
+import edu.indiana.d2i.htrc.corpus.analysis.LDAAnalyzer.WordsTopicsTable;
+import edu.indiana.d2i.htrc.corpus.analysis.LDALocalRunner;
+import edu.indiana.d2i.htrc.corpus.analysis.LDAModelFile;
+import edu.indiana.d2i.htrc.corpus.analysis.LDAResidentEngine;
+import edu.indiana.d2i.htrc.corpus.analysis.LDAStateUtils;
+import edu.indiana.d2i.htrc.corpus.retrieve.AdaptiveBatcher;
+import edu.indiana.d2i.htrc.dataapi.DataAPIWrapper;
+import edu.indiana.d2i.htrc.dataapi.DataAPIWrapper.VolumeHandler;
+
+/**
+ * Micro benchmarks on synthetic data, run as
+ *
+ * java edu.indiana.d2i.htrc.test.BenchmarkSuite <benchmark name>
+ *
+ */
+public class BenchmarkSuite {
+
+	private static String syntheticWord(int i) {
+		return "w" + Integer.toString(i, 36);
+	}
+
+	/**
+	 * compares List.indexOf() against {@link VocabularyIndex} on a synthetic
+	 * vocabulary of 1M words
+	 */
+	public static void benchmarkVocabularyIndex() {
+		int vocabularySize = 1000000;
+		Random random = new Random(0);
+
+		List<String> wordSet = new ArrayList<String>(vocabularySize);
+		for (int i = 0; i < vocabularySize; i++)
+			wordSet.add(syntheticWord(i));
+
+		/* half of the lookups miss, as stop words and typos would */
+		String[] tokens = new String[2000000];
+		for (int i = 0; i < tokens.length; i++)
+			tokens[i] = syntheticWord(random.nextInt(2 * vocabularySize));
+
+		// before: List.indexOf, only a small sample since it is O(vocabulary)
+		int numListLookups = 500;
+		long checksum = 0;
+		long start = System.nanoTime();
+		for (int i = 0; i < numListLookups; i++)
+			checksum += wordSet.indexOf(tokens[i]);
+		double listNanos = (double) (System.nanoTime() - start)
+				/ numListLookups;
+
+		// after: build index once, then look up all tokens
+		start = System.nanoTime();
+		VocabularyIndex index = VocabularyIndex.fromWordSet(wordSet);
+		long buildNanos = System.nanoTime() - start;
+
+		for (int round = 0; round < 3; round++) {
+			start = System.nanoTime();
+			for (int i = 0; i < tokens.length; i++)
+				checksum += index.indexOf(tokens[i]);
+		}
+		double indexNanos = (double) (System.nanoTime() - start)
+				/ tokens.length;
+
+		System.out.println(String.format(
+				"vocabulary size = %d, checksum = %d", vocabularySize,
+				checksum));
+		System.out.println(String.format(
+				"List.indexOf          : %.1f ns/lookup", listNanos));
+		System.out.println(String.format(
+				"VocabularyIndex build : %.1f ms", buildNanos / 1e6));
+		System.out.println(String.format(
+				"VocabularyIndex       : %.1f ns/lookup", indexNanos));
+		System.out.println(String.format("speedup               : %.0fx",
+				listNanos / indexNanos));
+	}
+
+	/**
+	 * compares size and parse cost of transformed volumes in text form
+	 * (TextArrayWritable) and binary form (VolumeTokensWritable)
+	 */
+	public static void benchmarkVolumeEncoding() throws IOException {
+		int vocabularySize = 1000000;
+		int numVolumes = 200;
+		int pagesPerVolume = 300;
+		int tokensPerPage = 250;
+		Random random = new Random(0);
+
+		TextArrayWritable[] textVolumes = new TextArrayWritable[numVolumes];
+		VolumeTokensWritable[] binaryVolumes = new VolumeTokensWritable[numVolumes];
+
+		for (int v = 0; v < numVolumes; v++) {
+			Text[] pages = new Text[pagesPerVolume];
+			binaryVolumes[v] = new VolumeTokensWritable();
+
+			for (int p = 0; p < pagesPerVolume; p++) {
+				StringBuilder sb = new StringBuilder();
+
+				for (int t = 0; t < tokensPerPage; t++) {
+					/* Zipf-like skew towards frequent words */
+					int token = (int) (vocabularySize * Math.pow(
+							random.nextDouble(), 4));
+
+					if (t > 0)
+						sb.append(' ');
+					sb.append(token);
+
+					binaryVolumes[v].addToken(token);
+				}
+
+				pages[p] = new Text(sb.toString());
+				binaryVolumes[v].endPage();
+			}
+
+			textVolumes[v] = new TextArrayWritable();
+			textVolumes[v].set(pages);
+		}
+
+		DataOutputBuffer textOut = new DataOutputBuffer();
+		DataOutputBuffer binaryOut = new DataOutputBuffer();
+		for (int v = 0; v < numVolumes; v++) {
+			textVolumes[v].write(textOut);
+			binaryVolumes[v].write(binaryOut);
+		}
+
+		DataInputBuffer in = new DataInputBuffer();
+		VolumeTokensWritable volume = new VolumeTokensWritable();
+		long checksum = 0;
+
+		long textNanos = 0;
+		long binaryNanos = 0;
+		for (int round = 0; round < 5; round++) {
+			// text form: deserialize then split and parse, as the LDA stage
+			// used to do
+			long start = System.nanoTime();
+			in.reset(textOut.getData(), textOut.getLength());
+			TextArrayWritable textVolume = new TextArrayWritable();
+			for (int v = 0; v < numVolumes; v++) {
+				textVolume.readFields(in);
+				for (Writable page : textVolume.get()) {
+					for (String idx : page.toString().split(" "))
+						checksum += Integer.parseInt(idx);
+				}
+			}
+			textNanos = System.nanoTime() - start;
+
+			// binary form: deserialize only
+			start = System.nanoTime();
+			in.reset(binaryOut.getData(), binaryOut.getLength());
+			for (int v = 0; v < numVolumes; v++) {
+				volume.readFields(in);
+				checksum += volume.getNumTokens();
+			}
+			binaryNanos = System.nanoTime() - start;
+		}
+
+		long numTokens = (long) numVolumes * pagesPerVolume * tokensPerPage;
+		System.out.println(String.format(
+				"%d volumes, %d tokens, checksum = %d", numVolumes,
+				numTokens, checksum));
+		System.out.println(String.format(
+				"TextArrayWritable    : %d bytes, %.1f ns/token to read",
+				textOut.getLength(), (double) textNanos / numTokens));
+		System.out.println(String.format(
+				"VolumeTokensWritable : %d bytes, %.1f ns/token to read",
+				binaryOut.getLength(), (double) binaryNanos / numTokens));
+	}
+
+	/**
+	 * generates volumes with 10 pages each, tokens are drawn from a
+	 * Zipf-like distribution over the vocabulary
+	 */
+	private static VolumeTokensWritable[] syntheticVolumes(int numVolumes,
+			int tokensPerVolume, int vocabularySize, Random random) {
+		VolumeTokensWritable[] volumes = new VolumeTokensWritable[numVolumes];
+
+		for (int v = 0; v < numVolumes; v++) {
+			volumes[v] = new VolumeTokensWritable();
+
+			for (int t = 0; t < tokensPerVolume; t++) {
+				volumes[v].addToken((int) (vocabularySize * Math.pow(
+						random.nextDouble(), 3)));
+
+				if ((t + 1) % (tokensPerVolume / 10) == 0)
+					volumes[v].endPage();
+			}
+		}
+
+		return volumes;
+	}
+
+	/**
+	 * generates volumes from LDA's generative process, each volume mixes 3
+	 * topics and each topic favors its own slice of the vocabulary, so that
+	 * the sampler converges to sparse counts as it would on a real corpus
+	 */
+	private static VolumeTokensWritable[] syntheticLDAVolumes(
+			int numVolumes, int tokensPerVolume, int vocabularySize,
+			int numTopics, Random random) {
+		VolumeTokensWritable[] volumes = new VolumeTokensWritable[numVolumes];
+		int sliceSize = Math.max(vocabularySize / numTopics, 1);
+
+		for (int v = 0; v < numVolumes; v++) {
+			volumes[v] = new VolumeTokensWritable();
+
+			int[] volumeTopics = { random.nextInt(numTopics),
+					random.nextInt(numTopics), random.nextInt(numTopics) };
+
+			for (int t = 0; t < tokensPerVolume; t++) {
+				int topic = volumeTopics[random.nextInt(volumeTopics.length)];
+				int offset = (int) (4 * sliceSize * Math.pow(
+						random.nextDouble(), 2));
+
+				volumes[v].addToken((topic * sliceSize + offset)
+						% vocabularySize);
+			}
+
+			volumes[v].endPage();
+		}
+
+		return volumes;
+	}
+
+	private static List<MappingTableEntry> syntheticMappingTable(
+			int vocabularySize) {
+		List<MappingTableEntry> mappingTable = new ArrayList<MappingTableEntry>();
+
+		for (int i = 0; i < vocabularySize; i++)
+			mappingTable.add(new MappingTableEntry(syntheticWord(i), i));
+
+		return mappingTable;
+	}
+
+	private static List<String> syntheticTopics(int numTopics) {
+		List<String> topics = new ArrayList<String>();
+
+		for (int i = 0; i < numTopics; i++)
+			topics.add("topic-" + i);
+
+		return topics;
+	}
+
+	/**
+	 * reports tokens sampled per second by {@link LDAAnalyzer}
+	 */
+	public static void benchmarkGibbsSampler() {
+		int vocabularySize = 20000;
+		int numTopics = 100;
+		int numVolumes = 200;
+		int tokensPerVolume = 20000;
+		int numSweeps = 10;
+
+		VolumeTokensWritable[] volumes = syntheticVolumes(numVolumes,
+				tokensPerVolume, vocabularySize, new Random(0));
+		TopicAssignments[] assignments = new TopicAssignments[numVolumes];
+		for (int v = 0; v < numVolumes; v++)
+			assignments[v] = new TopicAssignments();
+
+		LDAAnalyzer analyzer = new LDAAnalyzer(
+				syntheticMappingTable(vocabularySize),
+				syntheticTopics(numTopics), numVolumes, 0.1, 0.01, 0);
+
+		// first sweep assigns random topics
+		for (int v = 0; v < numVolumes; v++)
+			analyzer.updateWordsTopicsTable(volumes[v], assignments[v]);
+
+		for (int sweep = 0; sweep < numSweeps; sweep++) {
+			long start = System.nanoTime();
+
+			for (int v = 0; v < numVolumes; v++)
+				analyzer.updateWordsTopicsTable(volumes[v], assignments[v]);
+
+			double seconds = (System.nanoTime() - start) / 1e9;
+
+			System.out.println(String.format(
+					"sweep %d: K = %d, %.2f M tokens/s", sweep, numTopics,
+					(double) numVolumes * tokensPerVolume / seconds / 1e6));
+		}
+	}
+
+	/**
+	 * compares throughput of sampler modes at K = 100, 1000 and 5000, on a
+	 * synthetic corpus drawn from LDA's generative process. Throughput is
+	 * measured after burn-in sweeps since SparseLDA benefits from the
+	 * sparsity that develops as the sampler converges
+	 */
+	public static void benchmarkSamplerModes() {
+		int vocabularySize = 20000;
+		int numVolumes = 400;
+		int tokensPerVolume = 1000;
+		int numBurnInSweeps = 5;
+		int numSweeps = 3;
+
+		for (int numTopics : new int[] { 100, 1000, 5000 }) {
+			VolumeTokensWritable[] volumes = syntheticLDAVolumes(numVolumes,
+					tokensPerVolume, vocabularySize, numTopics, new Random(0));
+
+			for (SamplerMode mode : SamplerMode.values()) {
+				TopicAssignments[] assignments = new TopicAssignments[numVolumes];
+				for (int v = 0; v < numVolumes; v++)
+					assignments[v] = new TopicAssignments();
+
+				LDAAnalyzer analyzer = new LDAAnalyzer(
+						syntheticMappingTable(vocabularySize),
+						syntheticTopics(numTopics), numVolumes,
+						50.0 / numTopics, 0.01, 0);
+				analyzer.setSamplerMode(mode);
+
+				for (int sweep = 0; sweep <= numBurnInSweeps; sweep++)
+					for (int v = 0; v < numVolumes; v++)
+						analyzer.updateWordsTopicsTable(volumes[v],
+								assignments[v]);
+
+				long start = System.nanoTime();
+				for (int sweep = 0; sweep < numSweeps; sweep++)
+					for (int v = 0; v < numVolumes; v++)
+						analyzer.updateWordsTopicsTable(volumes[v],
+								assignments[v]);
+				double seconds = (System.nanoTime() - start) / 1e9;
+
+				System.out.println(String.format(
+						"K = %4d, %-8s : %.3f M tokens/s", numTopics, mode,
+						(double) numSweeps * numVolumes * tokensPerVolume
+								/ seconds / 1e6));
+			}
+		}
+	}
+
+	/**
+	 * reducer-side merge of words-topics tables, nested float[][] with
+	 * bounds checked getValue() (the former layout) against the flat
+	 * {@link WordsTopicsTable}, 100k words by 1000 topics
+	 */
+	public static void benchmarkTableMerge() {
+		int numWords = 100000;
+		int numTopics = 1000;
+		int numTables = 4;
+
+		Random random = new Random(0);
+
+		// former layout
+		float[][] nestedSum = new float[numWords][numTopics];
+		float[][] nested = new float[numWords][numTopics];
+		for (int i = 0; i < numWords; i++)
+			for (int j = 0; j < numTopics; j++)
+				nested[i][j] = random.nextInt(4);
+
+		long start = System.nanoTime();
+		for (int t = 0; t < numTables; t++)
+			for (int i = 0; i < nestedSum.length; i++)
+				for (int j = 0; j < nestedSum[0].length; j++)
+					nestedSum[i][j] += nestedValue(nested, i, j);
+		double nestedSeconds = (System.nanoTime() - start) / 1e9;
+
+		nestedSum = null;
+		nested = null;
+
+		WordsTopicsTable flatSum = new WordsTopicsTable(numWords, numTopics);
+		WordsTopicsTable flat = new WordsTopicsTable(numWords, numTopics);
+		int[] counts = flat.getWordsTopicsTable();
+		for (int i = 0; i < counts.length; i++)
+			counts[i] = random.nextInt(4);
+
+		start = System.nanoTime();
+		for (int t = 0; t < numTables; t++)
+			flatSum.mergeFrom(flat);
+		double flatSeconds = (System.nanoTime() - start) / 1e9;
+
+		System.out.println(String.format(
+				"merge %d tables of [%d, %d], float[][] : %.3f s, flat int[] : %.3f s",
+				numTables, numWords, numTopics, nestedSeconds, flatSeconds));
+	}
+
+	private static float nestedValue(float[][] table, int i, int j) {
+		if (!(i >= 0 && i < table.length) || !(j >= 0 && j < table[0].length))
+			throw new IndexOutOfBoundsException(String.format(
+					"Index [%d, %d] out of boundary", i, j));
+
+		return table[i][j];
+	}
+
+	/**
+	 * size of the words-topics table emitted by one map task (400 volumes of
+	 * a 50k words, 1000 topics corpus), compared to the former fixed size of
+	 * 4 bytes per entry, with the table kept dense and sparse
+	 */
+	public static void benchmarkTableSize() throws IOException {
+		int vocabularySize = 50000;
+		int numTopics = 1000;
+		int numVolumes = 400;
+		int tokensPerVolume = 1000;
+		int numSweeps = 5;
+
+		VolumeTokensWritable[] volumes = syntheticLDAVolumes(numVolumes,
+				tokensPerVolume, vocabularySize, numTopics, new Random(0));
+
+		System.out.println(String.format("former format : %.1f MB",
+				(8 + 4.0 * vocabularySize * numTopics) / 1e6));
+
+		for (boolean sparse : new boolean[] { false, true }) {
+			TopicAssignments[] assignments = new TopicAssignments[numVolumes];
+			for (int v = 0; v < numVolumes; v++)
+				assignments[v] = new TopicAssignments();
+
+			LDAAnalyzer analyzer = null;
+			for (int sweep = 0; sweep < numSweeps; sweep++) {
+				// new analyzer each sweep, as a map task of an iteration
+				analyzer = new LDAAnalyzer(
+						syntheticMappingTable(vocabularySize),
+						syntheticTopics(numTopics), numVolumes,
+						50.0 / numTopics, 0.01, sweep);
+				analyzer.setSamplerMode(SamplerMode.SPARSE);
+				analyzer.setSparseWordsTopicsTable(sparse);
+
+				for (int v = 0; v < numVolumes; v++)
+					analyzer.updateWordsTopicsTable(volumes[v],
+							assignments[v]);
+			}
+
+			WordsTopicsTable table = analyzer.getLDAState()
+					.getWordsTopicsTable();
+
+			DataOutputBuffer out = new DataOutputBuffer();
+			long start = System.nanoTime();
+			table.write(out);
+			double writeSeconds = (System.nanoTime() - start) / 1e9;
+
+			DataInputBuffer in = new DataInputBuffer();
+			in.reset(out.getData(), out.getLength());
+			start = System.nanoTime();
+			new WordsTopicsTable().readFields(in);
+			double readSeconds = (System.nanoTime() - start) / 1e9;
+
+			System.out.println(String.format(
+					"%-6s table : %.1f MB, write %.3f s, read %.3f s",
+					sparse ? "sparse" : "dense", out.getLength() / 1e6,
+					writeSeconds, readSeconds));
+		}
+	}
+
+	/**
+	 * size of the words-topics table a map task emits in each iteration, full
+	 * counts against deltas (lda.analysis.emit.deltas). Both analyzers of an
+	 * iteration start from the same state with the same seed, so they sample
+	 * identically
+	 */
+	public static void benchmarkDeltaEmission() throws IOException {
+		int vocabularySize = 20000;
+		int numTopics = 100;
+		int numVolumes = 400;
+		int tokensPerVolume = 1000;
+		int numIterations = 60;
+
+		VolumeTokensWritable[] volumes = syntheticLDAVolumes(numVolumes,
+				tokensPerVolume, vocabularySize, numTopics, new Random(0));
+		TopicAssignments[] assignments = new TopicAssignments[numVolumes];
+		for (int v = 0; v < numVolumes; v++)
+			assignments[v] = new TopicAssignments();
+
+		List<MappingTableEntry> mappingTable = syntheticMappingTable(vocabularySize);
+		List<String> topics = syntheticTopics(numTopics);
+
+		LDAState state = null;
+
+		for (int iter = 0; iter < numIterations; iter++) {
+			long[] bytes = new long[2];
+			LDAState[] states = new LDAState[2];
+
+			for (int mode = 0; mode < 2; mode++) {
+				LDAAnalyzer analyzer = (state == null) ? new LDAAnalyzer(
+						mappingTable, topics, numVolumes, 0.5, 0.01, iter)
+						: new LDAAnalyzer(state.getWordsTopicsTable(),
+								state.getTopicsDocumentsTable(), mappingTable,
+								topics, 0.5, 0.01, iter);
+				analyzer.setSparseWordsTopicsTable(true);
+				analyzer.setEmitDeltas(mode == 1);
+
+				for (int v = 0; v < numVolumes; v++) {
+					TopicAssignments z = assignments[v];
+
+					// the other mode samples from the same assignments
+					if (mode == 0) {
+						z = new TopicAssignments();
+						z.set(assignments[v]);
+					}
+
+					analyzer.updateWordsTopicsTable(volumes[v], z);
+					analyzer.updateTopcisDocumentsTable(
+							Integer.toString(v), volumes[v], z);
+				}
+
+				states[mode] = analyzer.getLDAState();
+
+				DataOutputBuffer out = new DataOutputBuffer();
+				states[mode].getWordsTopicsTable().write(out);
+				bytes[mode] = out.getLength();
+			}
+
+			// next state is the full counts, the reducer's job
+			states[0].getTopicsDocumentsTable().sortTable();
+			state = states[0];
+
+			if (iter == 0 || (iter + 1) % 10 == 0)
+				System.out.println(String.format(
+						"iteration %2d: full %.1f KB, deltas %.1f KB",
+						iter + 1, bytes[0] / 1e3, bytes[1] / 1e3));
+		}
+	}
+
+	/**
+	 * sorting a topics-documents table by document ID, the former
+	 * indexOf-based sort (at 20k documents only, it is quadratic) against
+	 * {@link TopicsDocumentsTable#sortTable()} at 20k and 1M documents
+	 */
+	public static void benchmarkSortTable() {
+		int numTopics = 50;
+
+		for (int numDocuments : new int[] { 20000, 1000000 }) {
+			if (numDocuments <= 20000) {
+				TopicsDocumentsTable table = syntheticTopicsDocumentsTable(
+						numTopics, numDocuments, new Random(0));
+
+				long start = System.nanoTime();
+				indexOfSort(table.getTopicsDocumentsTable(),
+						table.getDocumentsID());
+				System.out.println(String.format(
+						"D = %7d, indexOf sort : %.3f s", numDocuments,
+						(System.nanoTime() - start) / 1e9));
+			}
+
+			TopicsDocumentsTable table = syntheticTopicsDocumentsTable(
+					numTopics, numDocuments, new Random(0));
+
+			long start = System.nanoTime();
+			table.sortTable();
+			System.out.println(String.format(
+					"D = %7d, argsort      : %.3f s", numDocuments,
+					(System.nanoTime() - start) / 1e9));
+		}
+	}
+
+	private static TopicsDocumentsTable syntheticTopicsDocumentsTable(
+			int numTopics, int numDocuments, Random random) {
+		TopicsDocumentsTable table = new TopicsDocumentsTable(numTopics,
+				numDocuments);
+		float[] values = new float[numTopics];
+
+		for (int j = 0; j < numDocuments; j++) {
+			for (int i = 0; i < numTopics; i++)
+				values[i] = random.nextInt(100);
+
+			table.setDocument(values, "vol." + random.nextInt(Integer.MAX_VALUE));
+		}
+
+		return table;
+	}
+
+	/* former TopicsDocumentsTable.sortTable() */
+	private static float[][] indexOfSort(float[][] table,
+			List<String> documentsID) {
+		List<String> unsortedDocumentsID = new ArrayList<String>();
+		unsortedDocumentsID.addAll(documentsID);
+
+		List<String> sortedDocumentsID = new ArrayList<String>(documentsID);
+		Collections.sort(sortedDocumentsID);
+
+		float[][] newTable = new float[table.length][table[0].length];
+
+		for (int j = 0; j < sortedDocumentsID.size(); j++) {
+			int idx = unsortedDocumentsID.indexOf(sortedDocumentsID.get(j));
+
+			for (int i = 0; i < newTable.length; i++)
+				newTable[i][j] = table[i][idx];
+		}
+
+		return newTable;
+	}
+
+	/**
+	 * filling a topics-documents table with 50k documents with the former
+	 * fixed step growth against {@link TopicsDocumentsTable#setDocument}, and
+	 * concatenating 200 partial tables of 1000 documents one by one against
+	 * {@link TopicsDocumentsTable#concatenate(List)}
+	 */
+	public static void benchmarkTopicsDocumentsGrowth() {
+		int numTopics = 100;
+		int numDocuments = 50000;
+		int stepSize = 50;
+
+		float[] values = new float[numTopics];
+		Arrays.fill(values, 1);
+
+		// former growth, capacity increased by stepSize each time
+		long start = System.nanoTime();
+		float[][] table = new float[numTopics][stepSize];
+		for (int j = 0; j < numDocuments; j++) {
+			if (j >= table[0].length) {
+				float[][] newTable = new float[numTopics][table[0].length
+						+ stepSize];
+				for (int i = 0; i < numTopics; i++)
+					for (int k = 0; k < table[0].length; k++)
+						newTable[i][k] = table[i][k];
+				table = newTable;
+			}
+
+			for (int i = 0; i < numTopics; i++)
+				table[i][j] = values[i];
+		}
+		System.out.println(String.format(
+				"fill %d documents, fixed step  : %.3f s", numDocuments,
+				(System.nanoTime() - start) / 1e9));
+		table = null;
+
+		start = System.nanoTime();
+		TopicsDocumentsTable filled = new TopicsDocumentsTable(numTopics,
+				stepSize);
+		for (int j = 0; j < numDocuments; j++)
+			filled.setDocument(values, Integer.toString(j));
+		System.out.println(String.format(
+				"fill %d documents, geometric   : %.3f s", numDocuments,
+				(System.nanoTime() - start) / 1e9));
+		filled = null;
+
+		int numTables = 200;
+		int documentsPerTable = 1000;
+		List<TopicsDocumentsTable> tables = new ArrayList<TopicsDocumentsTable>();
+		for (int t = 0; t < numTables; t++) {
+			TopicsDocumentsTable partial = new TopicsDocumentsTable(numTopics,
+					stepSize);
+			for (int j = 0; j < documentsPerTable; j++)
+				partial.setDocument(values, t + "." + j);
+			tables.add(partial);
+		}
+
+		start = System.nanoTime();
+		TopicsDocumentsTable concatenated = new TopicsDocumentsTable();
+		for (TopicsDocumentsTable partial : tables)
+			concatenated.concatenateTables(partial);
+		System.out.println(String.format(
+				"concatenate %d tables one by one : %.3f s", numTables,
+				(System.nanoTime() - start) / 1e9));
+		concatenated = null;
+
+		start = System.nanoTime();
+		TopicsDocumentsTable.concatenate(tables);
+		System.out.println(String.format(
+				"concatenate %d tables at once    : %.3f s", numTables,
+				(System.nanoTime() - start) / 1e9));
+	}
+
+	/**
+	 * fills, concatenates, sorts and serializes topics-documents tables of
+	 * 1000 topics and 50k documents with 20 nonzero topics each, in
+	 * {@link Layout#TOPIC_MAJOR} and {@link Layout#DOCUMENT_MAJOR} layout
+	 */
+	public static void benchmarkDocumentsLayout() throws IOException {
+		int numTopics = 1000;
+		int numTables = 50;
+		int documentsPerTable = 1000;
+		int nonzeros = 20;
+
+		for (Layout layout : Layout.values()) {
+			Random random = new Random(0);
+			float[] values = new float[numTopics];
+
+			long start = System.nanoTime();
+			List<TopicsDocumentsTable> tables = new ArrayList<TopicsDocumentsTable>();
+			for (int t = 0; t < numTables; t++) {
+				TopicsDocumentsTable partial = new TopicsDocumentsTable(
+						numTopics, 50, layout);
+
+				for (int j = 0; j < documentsPerTable; j++) {
+					Arrays.fill(values, 0);
+					for (int n = 0; n < nonzeros; n++)
+						values[random.nextInt(numTopics)] += 1;
+
+					partial.setDocument(values,
+							"vol." + random.nextInt(Integer.MAX_VALUE));
+				}
+
+				tables.add(partial);
+			}
+			long filled = System.nanoTime();
+
+			TopicsDocumentsTable table = TopicsDocumentsTable
+					.concatenate(tables);
+			tables = null;
+			long concatenated = System.nanoTime();
+
+			table.sortTable();
+			long sorted = System.nanoTime();
+
+			DataOutputBuffer out = new DataOutputBuffer();
+			table.write(out);
+			long written = System.nanoTime();
+
+			System.out.println(String.format(
+					"%-14s: fill %.3f s, concatenate %.3f s, sort %.3f s, "
+							+ "write %.3f s, %.1f MB", layout,
+					(filled - start) / 1e9, (concatenated - filled) / 1e9,
+					(sorted - concatenated) / 1e9, (written - sorted) / 1e9,
+					out.getLength() / 1e6));
+		}
+	}
+
+	/**
+	 * runs 5 iterations on a synthetic corpus of 2000 volumes (1000 tokens
+	 * each, 5000 words, 50 topics) as MapReduce jobs in Hadoop local mode
+	 * against {@link LDAResidentEngine} (which {@link LDALocalRunner} uses),
+	 * with the same number of sampling threads
+	 */
+	public static void benchmarkLocalRunner() throws Exception {
+		int numVolumes = 2000;
+		int tokensPerVolume = 1000;
+		int numWords = 5000;
+		int numTopics = 50;
+		int numIterations = 5;
+		int numThreads = Runtime.getRuntime().availableProcessors();
+
+		File dir = File.createTempFile("lda-benchmark", "");
+		dir.delete();
+		dir.mkdirs();
+
+		try {
+			Configuration conf = new Configuration();
+			FileSystem fs = FileSystem.getLocal(conf);
+
+			File mappingTableFile = new File(dir, "mapping-table");
+			File topicsFile = new File(dir, "topics");
+			PrintWriter writer = new PrintWriter(mappingTableFile);
+			for (int i = 0; i < numWords; i++)
+				writer.println(syntheticWord(i) + " " + i);
+			writer.close();
+
+			writer = new PrintWriter(topicsFile);
+			for (int k = 0; k < numTopics; k++)
+				writer.println("topic" + k);
+			writer.close();
+
+			// word frequencies are skewed towards small indices
+			Random random = new Random(0);
+			Path corpus = new Path(dir.getPath(), "corpus");
+			SequenceFile.Writer corpusWriter = SequenceFile.createWriter(fs,
+					conf, new Path(corpus, "part-r-00000"), Text.class,
+					VolumeTokensWritable.class);
+			VolumeTokensWritable volume = new VolumeTokensWritable();
+			for (int j = 0; j < numVolumes; j++) {
+				volume.clear();
+				for (int i = 0; i < tokensPerVolume; i++) {
+					double u = random.nextDouble();
+					volume.addToken((int) (numWords * u * u));
+				}
+				volume.endPage();
+
+				corpusWriter.append(new Text("vol." + j), volume);
+			}
+			corpusWriter.close();
+
+			String[] ops = { "-D",
+					"user.args.mapping.table.filename=" + mappingTableFile,
+					"-D", "user.args.topics.filename=" + topicsFile, "-D",
+					Constants.LDA_ANALYSIS_NUM_THREADS + "=" + numThreads,
+					"-D", Constants.LDA_ANALYSIS_SEED + "=7" };
+
+			long start = System.nanoTime();
+			String statePath = null;
+			for (int it = 0; it < numIterations; it++) {
+				List<String> args = new ArrayList<String>(Arrays.asList(ops));
+				if (statePath != null) {
+					args.add("-D");
+					args.add("user.args.lda.state.filepath=" + statePath);
+				}
+
+				String output = new File(dir, "mapreduce-iter-" + it)
+						.getPath();
+				args.add(corpus.toString());
+				args.add(output);
+
+				ToolRunner.run(new Configuration(), new LDAAnalysisDriver(),
+						args.toArray(new String[0]));
+				statePath = output + File.separator + "part-r-00000";
+			}
+			long mapReduce = System.nanoTime() - start;
+
+			start = System.nanoTime();
+			Configuration engineConf = new Configuration();
+			new GenericOptionsParser(engineConf, ops);
+			LDAResidentEngine engine = LDAResidentEngine.newInstance(
+					engineConf, CorpusProcessingUtils
+							.loadMappingTable(mappingTableFile.getPath()),
+					CorpusProcessingUtils.loadTopics(topicsFile.getPath()));
+			engine.loadCorpus(engineConf, corpus);
+			for (int it = 0; it < numIterations; it++)
+				engine.runIteration();
+			engine.writeLDAState(engineConf, new Path(dir.getPath(),
+					"resident/part-r-00000"));
+			engine.close();
+			long resident = System.nanoTime() - start;
+
+			System.out.println(String.format(
+					"%d iterations, %d threads, Hadoop local mode : %.3f s",
+					numIterations, numThreads, mapReduce / 1e9));
+			System.out.println(String.format(
+					"%d iterations, %d threads, resident engine   : %.3f s",
+					numIterations, numThreads, resident / 1e9));
+		} finally {
+			FileUtil.fullyDelete(dir);
+		}
+	}
+
+	/**
+	 * remaps 1000 volumes of 10k tokens each from full to sub word set (100k
+	 * words), with a dense remap (full word set of 1M words) and a hashed one
+	 * (full indices spread over 2^30), and for volumes of text form, string
+	 * lookups of {@link VocabularyIndex} against parsing and remapping
+	 */
+	public static void benchmarkWordIndexRemap() {
+		int subSetSize = 100000;
+		int numVolumes = 1000;
+		int tokensPerVolume = 10000;
+
+		for (int fullSetSize : new int[] { 1000000, 1 << 30 }) {
+			Random random = new Random(0);
+
+			List<Integer> mappingIndices = new ArrayList<Integer>(subSetSize);
+			for (int i = 0; i < subSetSize; i++)
+				mappingIndices.add(random.nextInt(fullSetSize));
+
+			// half of the tokens are in the sub set
+			int[] tokens = new int[tokensPerVolume];
+			for (int i = 0; i < tokensPerVolume; i++)
+				tokens[i] = (i % 2 == 0) ? mappingIndices.get(random
+						.nextInt(subSetSize)) : random.nextInt(fullSetSize);
+
+			WordIndexRemap remap = WordIndexRemap.build(mappingIndices);
+			VolumeTokensWritable volume = new VolumeTokensWritable();
+
+			long start = System.nanoTime();
+			long kept = 0;
+			for (int v = 0; v < numVolumes; v++) {
+				volume.clear();
+				for (int i = 0; i < tokensPerVolume; i++)
+					volume.addToken(tokens[i]);
+				volume.endPage();
+
+				CorpusProcessingUtils.fullWordSet2SubWordSet(volume, remap);
+				kept += volume.getNumTokens();
+			}
+			double seconds = (System.nanoTime() - start) / 1e9;
+
+			System.out.println(String.format(
+					"binary, full set %10d, %-6s remap : %.1f M tokens/s (%d kept)",
+					fullSetSize, remap.isDense() ? "dense" : "hashed",
+					(double) numVolumes * tokensPerVolume / seconds / 1e6,
+					kept));
+
+			if (!remap.isDense())
+				continue;
+
+			StringBuilder page = new StringBuilder();
+			for (int i = 0; i < tokensPerVolume; i++) {
+				if (i > 0)
+					page.append(' ');
+				page.append(tokens[i]);
+			}
+			String text = page.toString();
+
+			VocabularyIndex index = CorpusProcessingUtils
+					.indexMappingIndices(mappingIndices);
+
+			for (int path = 0; path < 2; path++) {
+				start = System.nanoTime();
+				for (int v = 0; v < numVolumes / 10; v++) {
+					TextArrayWritable pages = new TextArrayWritable();
+					pages.set(new Text[] { new Text(text) });
+
+					if (path == 0)
+						CorpusProcessingUtils.fullWordSet2SubWordSet(pages,
+								index);
+					else
+						CorpusProcessingUtils.fullWordSet2SubWordSet(pages,
+								remap);
+				}
+				seconds = (System.nanoTime() - start) / 1e9;
+
+				System.out.println(String.format(
+						"text,   full set %10d, %-12s: %.1f M tokens/s",
+						fullSetSize, path == 0 ? "string index" : "parse+remap",
+						(double) numVolumes / 10 * tokensPerVolume / seconds
+								/ 1e6));
+			}
+		}
+	}
+
+	/**
+	 * writes and reads topics-documents tables of 1000 topics and 50k
+	 * documents (a third of the values nonzero) to and from a local file, in
+	 * both layouts, against writing the values one writeFloat() call at a
+	 * time (the former serialization)
+	 */
+	public static void benchmarkTableSerialization() throws IOException {
+		int numTopics = 1000;
+		int numDocuments = 50000;
+
+		Configuration conf = new Configuration();
+		FileSystem fs = FileSystem.getLocal(conf);
+		File file = File.createTempFile("lda-benchmark", "");
+		Path path = new Path(file.getPath());
+
+		try {
+			for (Layout layout : Layout.values()) {
+				Random random = new Random(0);
+				float[] values = new float[numTopics];
+
+				TopicsDocumentsTable table = new TopicsDocumentsTable(
+						numTopics, 50, layout);
+				for (int j = 0; j < numDocuments; j++) {
+					for (int i = 0; i < numTopics; i++)
+						values[i] = (random.nextInt(3) == 0) ? random
+								.nextInt(50) : 0;
+
+					table.setDocument(values, "vol." + j);
+				}
+
+				if (layout == Layout.TOPIC_MAJOR) {
+					float[][] rows = table.getTopicsDocumentsTable();
+
+					long start = System.nanoTime();
+					FSDataOutputStream out = fs.create(path, true);
+					for (int i = 0; i < numTopics; i++)
+						for (int j = 0; j < numDocuments; j++)
+							out.writeFloat(rows[i][j]);
+					out.close();
+					double seconds = (System.nanoTime() - start) / 1e9;
+
+					System.out.println(String.format(
+							"%-14s: writeFloat() per value, write %.3f s, %.0f MB/s",
+							layout, seconds, 4e-6 * numTopics * numDocuments
+									/ seconds));
+				}
+
+				for (int rep = 0; rep < 3; rep++) {
+					long start = System.nanoTime();
+					FSDataOutputStream out = fs.create(path, true);
+					table.write(out);
+					out.close();
+					long written = System.nanoTime();
+
+					FSDataInputStream in = fs.open(path);
+					new TopicsDocumentsTable().readFields(in);
+					in.close();
+					long read = System.nanoTime();
+
+					double size = fs.getFileStatus(path).getLen() / 1e6;
+
+					System.out.println(String.format(
+							"%-14s: %.1f MB, write %.3f s (%.0f MB/s), "
+									+ "read %.3f s (%.0f MB/s)", layout, size,
+							(written - start) / 1e9, size
+									/ ((written - start) / 1e9),
+							(read - written) / 1e9, size
+									/ ((read - written) / 1e9)));
+				}
+			}
+		} finally {
+			fs.delete(path, false);
+		}
+	}
+
+	private static long usedHeap() {
+		Runtime runtime = Runtime.getRuntime();
+
+		for (int i = 0; i < 3; i++)
+			System.gc();
+
+		return runtime.totalMemory() - runtime.freeMemory();
+	}
+
+	/**
+	 * sets up a map task's analyzer from the LDA state of previous iteration
+	 * (100k words, 200 topics, 20k documents) by deserializing the state
+	 * against memory-mapping its model file, and samples a split of 100
+	 * volumes (1000 tokens each, word frequencies skewed towards small
+	 * indices) with each. Heap is measured after setup and after sampling,
+	 * which copies the rows of sampled words to heap in mapped setup
+	 */
+	public static void benchmarkMappedModel() throws IOException {
+		int numWords = 100000;
+		int numTopics = 200;
+		int numDocuments = 20000;
+		int numVolumes = 100;
+		int tokensPerVolume = 1000;
+		int numSweeps = 3;
+
+		File dir = File.createTempFile("lda-benchmark", "");
+		dir.delete();
+		dir.mkdirs();
+
+		try {
+			Configuration conf = new Configuration();
+			FileSystem fs = FileSystem.getLocal(conf);
+			Random random = new Random(0);
+
+			WordsTopicsTable wordsTopicsTable = new WordsTopicsTable(numWords,
+					numTopics);
+			for (int w = 0; w < numWords; w++)
+				for (int n = 0; n < 20; n++)
+					wordsTopicsTable.increment(w, random.nextInt(numTopics));
+
+			TopicsDocumentsTable topicsDocumentsTable = new TopicsDocumentsTable(
+					numTopics, 50);
+			float[] values = new float[numTopics];
+			for (int j = 0; j < numDocuments; j++) {
+				Arrays.fill(values, 0);
+				for (int n = 0; n < 100; n++)
+					values[random.nextInt(numTopics)] += 1;
+
+				topicsDocumentsTable.setDocument(values, "vol." + j);
+			}
+
+			Path statePath = new Path(dir.getPath(), "part-r-00000");
+			SequenceFile.Writer writer = SequenceFile.createWriter(fs, conf,
+					statePath, Text.class, LDAState.class);
+			writer.append(new Text(LDAStateUtils.LDA_STATE_KEY), new LDAState(
+					wordsTopicsTable, topicsDocumentsTable));
+			writer.close();
+			LDAModelFile.write(fs, new Path(dir.getPath(),
+					LDAModelFile.fileName(0)), wordsTopicsTable);
+
+			wordsTopicsTable = null;
+			topicsDocumentsTable = null;
+
+			VolumeTokensWritable[] volumes = new VolumeTokensWritable[numVolumes];
+			for (int v = 0; v < numVolumes; v++) {
+				volumes[v] = new VolumeTokensWritable();
+				for (int i = 0; i < tokensPerVolume; i++) {
+					double u = random.nextDouble();
+					volumes[v].addToken((int) (numWords * u * u * u));
+				}
+				volumes[v].endPage();
+			}
+
+			List<MappingTableEntry> mappingTable = syntheticMappingTable(numWords);
+			List<String> topics = syntheticTopics(numTopics);
+
+			for (String setup : new String[] { "deserialized", "mapped" }) {
+				long baseline = usedHeap();
+				long start = System.nanoTime();
+
+				LDAAnalyzer analyzer = null;
+				if ("mapped".equals(setup)) {
+					analyzer = new LDAAnalyzer(LDAModelFile.open(
+							Arrays.asList(new File(dir, LDAModelFile
+									.fileName(0))), numWords, numTopics),
+							mappingTable, topics, 50, 0.1, 0.01, 0);
+				} else {
+					LDAState state = LDAStateUtils.readLDAState(conf,
+							statePath.toString());
+					analyzer = new LDAAnalyzer(state.getWordsTopicsTable(),
+							state.getTopicsDocumentsTable(), mappingTable,
+							topics, 0.1, 0.01, 0);
+				}
+				// a dense table to emit would take as much heap as the model
+				analyzer.setSparseWordsTopicsTable(true);
+
+				double setupSeconds = (System.nanoTime() - start) / 1e9;
+				long setupHeap = usedHeap() - baseline;
+
+				TopicAssignments[] assignments = new TopicAssignments[numVolumes];
+				for (int v = 0; v < numVolumes; v++)
+					assignments[v] = new TopicAssignments();
+
+				start = System.nanoTime();
+				for (int sweep = 0; sweep < numSweeps; sweep++)
+					for (int v = 0; v < numVolumes; v++)
+						analyzer.updateWordsTopicsTable(volumes[v],
+								assignments[v]);
+				double seconds = (System.nanoTime() - start) / 1e9;
+
+				long sampledHeap = usedHeap() - baseline;
+
+				System.out.println(String.format(
+						"%-12s: setup %.3f s, heap %.1f MB, %.3f M tokens/s, "
+								+ "heap after sampling %.1f MB", setup,
+						setupSeconds, setupHeap / 1e6,
+						analyzer.getNumSampledTokens() / seconds / 1e6,
+						sampledHeap / 1e6));
+			}
+		} finally {
+			FileUtil.fullyDelete(dir);
+		}
+	}
+
+	/**
+	 * @param args
+	 */
+	/**
+	 * compares decoding a synthetic Data API zip stream (25 volumes of 400
+	 * pages) line by line into Strings held for the whole request, as
+	 * DataAPIWrapper did, against
+	 * {@link DataAPIWrapper#readZipStream(InputStream, boolean, VolumeHandler)}
+	 * into reused Text buffers. Both serialize each volume as the mapper does
+	 */
+	public static void benchmarkZipDecode() throws IOException,
+			InterruptedException {
+		int numVolumes = 25;
+		int numPages = 400;
+		int pageLines = 35;
+
+		Random random = new Random(0);
+		ByteArrayOutputStream zipped = new ByteArrayOutputStream();
+		ZipOutputStream zip = new ZipOutputStream(zipped);
+		long volumeBytes = 0;
+
+		for (int v = 0; v < numVolumes; v++) {
+			String volumeID = "vol." + v;
+			zip.putNextEntry(new ZipEntry(volumeID + "/"));
+			zip.closeEntry();
+
+			for (int p = 1; p <= numPages; p++) {
+				StringBuilder page = new StringBuilder();
+				for (int l = 0; l < pageLines; l++) {
+					for (int w = 0; w < 10; w++)
+						page.append(syntheticWord(random.nextInt(100000)))
+								.append(w == 9 ? "" : " ");
+					page.append(random.nextInt(10) == 0 ? " \u00e9t\u00e9\r\n"
+							: "\n");
+				}
+
+				byte[] bytes = page.toString().getBytes("UTF-8");
+				volumeBytes = Math.max(volumeBytes, (long) numPages
+						* bytes.length);
+
+				zip.putNextEntry(new ZipEntry(String.format("%s/%08d.txt",
+						volumeID, p)));
+				zip.write(bytes);
+				zip.closeEntry();
+			}
+		}
+		zip.close();
+		final byte[] stream = zipped.toByteArray();
+
+		final DataOutputBuffer out = new DataOutputBuffer();
+		final Text key = new Text();
+		final TextArrayWritable value = new TextArrayWritable();
+
+		for (int rep = 0; rep < 5; rep++) {
+			long start = System.nanoTime();
+
+			// line by line into Strings, all volumes held until written
+			Map<String, Map<String, String>> volPageContents = new HashMap<String, Map<String, String>>();
+			ZipInputStream zipIn = new ZipInputStream(new ByteArrayInputStream(
+					stream));
+			ZipEntry entry = null;
+			String currentVolID = null;
+			long heldChars = 0;
+			while ((entry = zipIn.getNextEntry()) != null) {
+				String[] names = entry.getName().split("/");
+				if (entry.isDirectory()) {
+					currentVolID = names[0];
+					volPageContents.put(currentVolID,
+							new HashMap<String, String>());
+					continue;
+				}
+
+				StringBuilder sb = new StringBuilder();
+				BufferedReader reader = new BufferedReader(
+						new InputStreamReader(zipIn, Charset.forName("UTF-8")));
+				String line = null;
+				while ((line = reader.readLine()) != null)
+					sb.append(line + "\n");
+
+				heldChars += sb.length();
+				volPageContents.get(currentVolID).put(
+						names[1].substring(0, names[1].indexOf(".txt")),
+						sb.toString());
+			}
+
+			long total = 0;
+			for (Map.Entry<String, Map<String, String>> volume : volPageContents
+					.entrySet()) {
+				Map<String, String> sorted = CorpusProcessingUtils
+						.sortPages(volume.getValue());
+				Text[] pages = new Text[sorted.size()];
+				int idx = 0;
+				for (String page : sorted.values())
+					pages[idx++] = new Text(page);
+
+				key.set(volume.getKey());
+				value.set(pages);
+				out.reset();
+				key.write(out);
+				value.write(out);
+				total += out.getLength();
+			}
+			long strings = System.nanoTime();
+
+			// streamed into reused Text buffers, one volume at a time
+			final long[] streamedTotal = new long[1];
+			DataAPIWrapper.readZipStream(new ByteArrayInputStream(stream),
+					false, new VolumeHandler() {
+
+						@Override
+						public void handleVolume(String volumeID,
+								String[] pageSeqs, Text[] pages)
+								throws IOException {
+							key.set(volumeID);
+							value.set(pages);
+							out.reset();
+							key.write(out);
+							value.write(out);
+							streamedTotal[0] += out.getLength();
+						}
+					});
+			long streamed = System.nanoTime();
+
+			if (total != streamedTotal[0])
+				throw new IllegalStateException(String.format(
+						"Decoded volumes differ, %d vs %d bytes", total,
+						streamedTotal[0]));
+
+			double mb = total / 1e6;
+			System.out.println(String.format(
+					"%.1f MB: line by line %.3f s (%.0f MB/s, holds %.1f M chars), "
+							+ "streaming %.3f s (%.0f MB/s, holds %.1f MB)",
+					mb, (strings - start) / 1e9, mb
+							/ ((strings - start) / 1e9), heldChars / 1e6,
+					(streamed - strings) / 1e9, mb
+							/ ((streamed - strings) / 1e9), volumeBytes / 1e6));
+		}
+	}
+
+	/**
+	 * retrieves 200 batches of 25 volumes from a {@link StubDataAPIServer}
+	 * with 1 and 4 concurrent requests, and reports connections the server
+	 * saw opened. HTTPS when a key store (and its password) is given
+	 */
+	public static void benchmarkConnectionReuse(String keyStorePath,
+			String password) throws Exception {
+		int numBatches = 200;
+		final int batchSize = 25;
+
+		final StubDataAPIServer stub = new StubDataAPIServer(0, 0,
+				keyStorePath != null ? StubDataAPIServer.serverSSLContext(
+						keyStorePath, password) : null);
+		stub.start();
+
+		try {
+			final DataAPIWrapper dataAPIAgent = new DataAPIWrapper(
+					stub.getEPR(), "", StubDataAPIServer.VOL_PREFIX,
+					StubDataAPIServer.DELIMITER, false, stub.getEPR()
+							+ StubDataAPIServer.OAUTH2_PATH, "user", "password",
+					true);
+
+			final VolumeHandler handler = new VolumeHandler() {
+
+				@Override
+				public void handleVolume(String volumeID, String[] pageSeqs,
+						Text[] pages) {
+				}
+			};
+
+			for (final int numThreads : new int[] { 1, 4 }) {
+				int requests = stub.getRequestsServed();
+				int connections = stub.getConnectionsOpened();
+				final AtomicInteger nextBatch = new AtomicInteger(0);
+				final int batches = numBatches;
+
+				ExecutorService executor = Executors
+						.newFixedThreadPool(numThreads);
+				List<Future<Void>> futures = new ArrayList<Future<Void>>();
+
+				long start = System.nanoTime();
+				for (int t = 0; t < numThreads; t++)
+					futures.add(executor.submit(new Callable<Void>() {
+
+						@Override
+						public Void call() throws Exception {
+							int batch;
+							while ((batch = nextBatch.getAndIncrement()) < batches) {
+								List<String> volumeIDs = new ArrayList<String>();
+								for (int i = 0; i < batchSize; i++)
+									volumeIDs.add("vol." + batch + "." + i);
+
+								dataAPIAgent.retrieveVolContents(volumeIDs,
+										handler);
+							}
+							return null;
+						}
+					}));
+
+				for (Future<Void> future : futures)
+					future.get();
+				double seconds = (System.nanoTime() - start) / 1e9;
+				executor.shutdown();
+
+				System.out.println(String.format(
+						"%s, %d thread(s): %d requests in %.2f s, %d new connections",
+						stub.getEPR(), numThreads, stub.getRequestsServed()
+								- requests, seconds, stub.getConnectionsOpened()
+								- connections));
+			}
+		} finally {
+			stub.stop();
+		}
+	}
+
+	/**
+	 * retrieves 40 batches of 25 volumes (20 pages of about 2KB each) from a
+	 * {@link StubDataAPIServer} with and without content coding, for zip
+	 * entries stored as is (as Data API does) and deflated, and reports
+	 * response bytes on the wire against decoded bytes
+	 */
+	public static void benchmarkContentCoding() throws Exception {
+		int numBatches = 40;
+		int batchSize = 25;
+
+		StubDataAPIServer stub = new StubDataAPIServer(0, 0, null);
+		stub.setNumPages(20);
+		stub.setPageSize(2000);
+		stub.start();
+
+		try {
+			DataAPIWrapper dataAPIAgent = new DataAPIWrapper(stub.getEPR(),
+					"", StubDataAPIServer.VOL_PREFIX,
+					StubDataAPIServer.DELIMITER, false, stub.getEPR()
+							+ StubDataAPIServer.OAUTH2_PATH, "user",
+					"password", false);
+
+			final long[] pageBytes = new long[1];
+			VolumeHandler handler = new VolumeHandler() {
+
+				@Override
+				public void handleVolume(String volumeID, String[] pageSeqs,
+						Text[] pages) {
+					for (Text page : pages)
+						pageBytes[0] += page.getLength();
+				}
+			};
+
+			for (int zipLevel : new int[] { 0, Deflater.DEFAULT_COMPRESSION }) {
+				stub.setZipLevel(zipLevel);
+
+				for (String acceptEncoding : new String[] { "", "gzip",
+						"deflate" }) {
+					dataAPIAgent.setAcceptEncoding(acceptEncoding);
+
+					long wire = dataAPIAgent.getWireBytes();
+					long decoded = dataAPIAgent.getDecodedBytes();
+					pageBytes[0] = 0;
+
+					long start = System.nanoTime();
+					for (int b = 0; b < numBatches; b++) {
+						List<String> volumeIDs = new ArrayList<String>();
+						for (int i = 0; i < batchSize; i++)
+							volumeIDs.add("vol." + b + "." + i);
+
+						dataAPIAgent.retrieveVolContents(volumeIDs, handler);
+					}
+					double seconds = (System.nanoTime() - start) / 1e9;
+
+					wire = dataAPIAgent.getWireBytes() - wire;
+					decoded = dataAPIAgent.getDecodedBytes() - decoded;
+
+					System.out.println(String.format(
+							"zip level %2d, Accept-Encoding %-9s: wire %.2f MB, "
+									+ "decoded %.2f MB (%.2fx), pages %.2f MB, %.2f s",
+							zipLevel, "'" + acceptEncoding + "'", wire / 1e6,
+							decoded / 1e6, (double) decoded / wire,
+							pageBytes[0] / 1e6, seconds));
+				}
+			}
+		} finally {
+			stub.stop();
+		}
+	}
+
+	/**
+	 * fixed versus adaptive batch sizes against a stub whose volumes range
+	 * from 10 to 2000 pages and whose latency grows with pages served. Input
+	 * is either in random order or sorted by pages, as when volumes of a
+	 * collection come together
+	 */
+	public static void benchmarkAdaptiveBatching() throws Exception {
+		int numVolumes = 1500;
+		long targetMillis = 500;
+
+		StubDataAPIServer stub = new StubDataAPIServer(0, 30, null);
+		stub.setNumPages(10);
+		stub.setMaxPages(2000);
+		stub.setMillisPerPage(0.05);
+		stub.start();
+
+		try {
+			DataAPIWrapper dataAPIAgent = new DataAPIWrapper(stub.getEPR(),
+					"", StubDataAPIServer.VOL_PREFIX,
+					StubDataAPIServer.DELIMITER, false, stub.getEPR()
+							+ StubDataAPIServer.OAUTH2_PATH, "user",
+					"password", false);
+
+			final int[] numReceived = new int[1];
+			final long[] pageBytes = new long[1];
+			VolumeHandler handler = new VolumeHandler() {
+
+				@Override
+				public void handleVolume(String volumeID, String[] pageSeqs,
+						Text[] pages) {
+					numReceived[0]++;
+					for (Text page : pages)
+						pageBytes[0] += page.getLength();
+				}
+			};
+
+			List<String> shuffled = new ArrayList<String>();
+			for (int i = 0; i < numVolumes; i++)
+				shuffled.add("vol." + i);
+
+			final StubDataAPIServer sizes = stub;
+			List<String> sorted = new ArrayList<String>(shuffled);
+			Collections.sort(sorted, new Comparator<String>() {
+
+				@Override
+				public int compare(String v1, String v2) {
+					return sizes.getNumPages(v1) - sizes.getNumPages(v2);
+				}
+			});
+
+			for (String order : new String[] { "shuffled", "sorted" }) {
+				List<String> volumeIDs = "sorted".equals(order) ? sorted
+						: shuffled;
+
+				for (String mode : new String[] { "fixed 25", "fixed 100",
+						"adaptive" }) {
+					AdaptiveBatcher batcher = "adaptive".equals(mode) ? new AdaptiveBatcher(
+							25, 1, 100, targetMillis, 0) : new AdaptiveBatcher(
+							Integer.parseInt(mode.substring(6)), 1, 100, 0, 0);
+
+					List<Long> latencies = new ArrayList<Long>();
+					long start = System.nanoTime();
+
+					for (int v = 0; v < volumeIDs.size();) {
+						int end = Math.min(v + batcher.getBatchSize(),
+								volumeIDs.size());
+						List<String> batch = volumeIDs.subList(v, end);
+
+						numReceived[0] = 0;
+						pageBytes[0] = 0;
+						long requestStart = System.currentTimeMillis();
+						dataAPIAgent.retrieveVolContents(batch, handler);
+						long millis = System.currentTimeMillis()
+								- requestStart;
+
+						batcher.observe(batch.size(), numReceived[0], millis,
+								pageBytes[0]);
+						latencies.add(millis);
+						v = end;
+					}
+					double seconds = (System.nanoTime() - start) / 1e9;
+
+					Collections.sort(latencies);
+					long sum = 0;
+					for (long millis : latencies)
+						sum += millis;
+
+					System.out.println(String.format(
+							"%-8s %-9s: %4d requests, latency mean %4d ms, "
+									+ "p95 %4d ms, max %4d ms, %.2f s",
+							order, mode, latencies.size(),
+							sum / latencies.size(),
+							latencies.get((int) (latencies.size() * 0.95)),
+							latencies.get(latencies.size() - 1), seconds));
+				}
+			}
+		} finally {
+			stub.stop();
+		}
+	}
+
+	public static void main(String[] args) throws Exception {
+		String benchmark = args.length > 0 ? args[0] : "vocabulary";
+
+		if ("vocabulary".equals(benchmark)) {
+			benchmarkVocabularyIndex();
+		} else if ("encoding".equals(benchmark)) {
+			benchmarkVolumeEncoding();
+		} else if ("sampler".equals(benchmark)) {
+			benchmarkGibbsSampler();
+		} else if ("samplermodes".equals(benchmark)) {
+			benchmarkSamplerModes();
+		} else if ("merge".equals(benchmark)) {
+			benchmarkTableMerge();
+		} else if ("tablesize".equals(benchmark)) {
+			benchmarkTableSize();
+		} else if ("deltas".equals(benchmark)) {
+			benchmarkDeltaEmission();
+		} else if ("sorttable".equals(benchmark)) {
+			benchmarkSortTable();
+		} else if ("growth".equals(benchmark)) {
+			benchmarkTopicsDocumentsGrowth();
+		} else if ("layout".equals(benchmark)) {
+			benchmarkDocumentsLayout();
+		} else if ("localrunner".equals(benchmark)) {
+			benchmarkLocalRunner();
+		} else if ("mappedmodel".equals(benchmark)) {
+			benchmarkMappedModel();
+		} else if ("serialization".equals(benchmark)) {
+			benchmarkTableSerialization();
+		} else if ("remap".equals(benchmark)) {
+			benchmarkWordIndexRemap();
+		} else if ("zipdecode".equals(benchmark)) {
+			benchmarkZipDecode();
+		} else if ("contentcoding".equals(benchmark)) {
+			benchmarkContentCoding();
+		} else if ("batching".equals(benchmark)) {
+			benchmarkAdaptiveBatching();
+		} else if ("connections".equals(benchmark)) {
+			benchmarkConnectionReuse(args.length > 2 ? args[1] : null,
+					args.length > 2 ? args[2] : null);
+		} else {
+			System.err.println("Unknown benchmark: " + benchmark);
+			System.exit(-1);
+		}
+	}
+}
@@ -0,0 +1,412 @@
+/*
+#
+# Copyright 2007 The Trustees of Indiana University
+#
+# Licensed under the Apache License, Version 2.0 (the "License");
+# you may not use this file except in compliance with the License.
+# You may obtain a copy of the License at
+#
+# http://www.apache.org/licenses/LICENSE-2.0
+#
+# Unless required by applicable law or agreed to in writing, software
+# distributed under the License is distributed on an "AS IS" BASIS,
+# WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+# See the License for the specific language governing permissions and
+# limitations under the License.
+#
+ */
+package edu.indiana.d2i.htrc.test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.security.KeyStore;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import com.sun.net.httpserver.HttpsConfigurator;
+import com.sun.net.httpserver.HttpsServer;
+
+/**
+ * Local stand-in for Data API and its OAuth2 token endpoint, for testing
+ * retrieval without the volume store. Volumes requested from
+ * {@link #VOL_PREFIX} are made up (a directory entry and numPages page
+ * entries per volume) and returned as a zip stream, after a configurable
+ * latency, gzip or deflate coded when the request accepts it. The server
+ * counts requests served and TCP connections opened (by distinct client
+ * address and port), so that connection reuse of a client can be checked,
+ * run as
+ *
+ * java edu.indiana.d2i.htrc.test.StubDataAPIServer <port> [latency ms]
+ * [keystore password]
+ *
+ * Volume ids are split on ',' (the JDK HTTP server rejects '|' in a request
+ * URI), i.e. data.api.delimiter=,
+ *
+ */
+public class StubDataAPIServer {
+
+	public static final String OAUTH2_PATH = "/oauth2/token";
+	public static final String VOL_PREFIX = "/data-api/volumes?volumeIDs=";
+	public static final String DELIMITER = ",";
+
+	private HttpServer server;
+	private ExecutorService executor;
+	private String scheme;
+
+	private long latencyMillis;
+	private int numPages = 10;
+	/*
+	 * when greater than numPages, pages of a volume are spread between
+	 * numPages and maxPages, evenly on a log scale
+	 */
+	private int maxPages = 0;
+	/* latency added per page served, as for fetching it from the store */
+	private double millisPerPage = 0;
+	/* approximate size of each page, at least one line */
+	private int pageSize = 0;
+	/* compression level of zip entries, Data API stores them nearly as is */
+	private int zipLevel = Deflater.DEFAULT_COMPRESSION;
+	/* whether to code responses as the request's Accept-Encoding allows */
+	private boolean contentCoding = true;
+
+	private int requestsServed = 0;
+	private Set<InetSocketAddress> connections = new HashSet<InetSocketAddress>();
+
+	/**
+	 *
+	 * @param port
+	 *            0 for any free port
+	 * @param latencyMillis
+	 *            delay before each volumes response
+	 * @param sslContext
+	 *            serves HTTPS with given context, HTTP if null
+	 * @throws IOException
+	 */
+	public StubDataAPIServer(int port, long latencyMillis,
+			SSLContext sslContext) throws IOException {
+		this.latencyMillis = latencyMillis;
+
+		/*
+		 * the JDK server writes headers and body separately, with Nagle's
+		 * algorithm every response then waits for a delayed ACK. Only read
+		 * when the first server is created
+		 */
+		if (System.getProperty("sun.net.httpserver.nodelay") == null)
+			System.setProperty("sun.net.httpserver.nodelay", "true");
+
+		InetSocketAddress address = new InetSocketAddress("127.0.0.1", port);
+
+		if (sslContext != null) {
+			HttpsServer httpsServer = HttpsServer.create(address, 64);
+			httpsServer.setHttpsConfigurator(new HttpsConfigurator(sslContext));
+			server = httpsServer;
+			scheme = "https";
+		} else {
+			server = HttpServer.create(address, 64);
+			scheme = "http";
+		}
+
+		server.createContext(OAUTH2_PATH, new HttpHandler() {
+
+			@Override
+			public void handle(HttpExchange exchange) throws IOException {
+				countRequest(exchange);
+
+				byte[] body = "{\"access_token\":\"stub-token\",\"expires_in\":3600}"
+						.getBytes("UTF-8");
+				exchange.getResponseHeaders().add("Content-Type",
+						"application/json");
+				respond(exchange, body);
+			}
+		});
+
+		server.createContext(VOL_PREFIX.substring(0, VOL_PREFIX.indexOf('?')),
+				new HttpHandler() {
+
+					@Override
+					public void handle(HttpExchange exchange)
+							throws IOException {
+						countRequest(exchange);
+
+						String query = URLDecoder.decode(exchange
+								.getRequestURI().getRawQuery(), "UTF-8");
+						String[] volumeIDs = query.substring(
+								query.indexOf('=') + 1).replace(
+								"&concat=true", "").split(DELIMITER);
+
+						int pages = 0;
+						for (String volumeID : volumeIDs)
+							pages += getNumPages(volumeID);
+
+						try {
+							Thread.sleep(StubDataAPIServer.this.latencyMillis
+									+ (long) (pages * millisPerPage));
+						} catch (InterruptedException e) {
+							Thread.currentThread().interrupt();
+						}
+
+						byte[] zipped = zipVolumes(volumeIDs);
+						List<String> accepted = exchange.getRequestHeaders()
+								.get("Accept-Encoding");
+						String acceptEncoding = (accepted != null && contentCoding) ? accepted
+								.toString() : "";
+
+						if (acceptEncoding.contains("gzip")) {
+							exchange.getResponseHeaders().add(
+									"Content-Encoding", "gzip");
+							ByteArrayOutputStream coded = new ByteArrayOutputStream();
+							GZIPOutputStream gzip = new GZIPOutputStream(coded);
+							gzip.write(zipped);
+							gzip.close();
+							zipped = coded.toByteArray();
+						} else if (acceptEncoding.contains("deflate")) {
+							exchange.getResponseHeaders().add(
+									"Content-Encoding", "deflate");
+							ByteArrayOutputStream coded = new ByteArrayOutputStream();
+							DeflaterOutputStream deflate = new DeflaterOutputStream(
+									coded);
+							deflate.write(zipped);
+							deflate.close();
+							zipped = coded.toByteArray();
+						}
+
+						respond(exchange, zipped);
+					}
+				});
+
+		executor = Executors.newCachedThreadPool();
+		server.setExecutor(executor);
+	}
+
+	public void start() {
+		server.start();
+	}
+
+	public void stop() {
+		server.stop(0);
+		executor.shutdownNow();
+	}
+
+	/**
+	 *
+	 * @return endpoint to use as data.api.epr, e.g. http://127.0.0.1:8080
+	 */
+	public String getEPR() {
+		return String.format("%s://127.0.0.1:%d", scheme, server.getAddress()
+				.getPort());
+	}
+
+	public void setNumPages(int numPages) {
+		this.numPages = numPages;
+	}
+
+	/**
+	 * 
+	 * @param maxPages
+	 *            volumes have between numPages and maxPages pages when greater
+	 *            than numPages, few of them many pages
+	 */
+	public void setMaxPages(int maxPages) {
+		this.maxPages = maxPages;
+	}
+
+	/**
+	 * 
+	 * @param millisPerPage
+	 *            latency added to a volumes response per page it holds
+	 */
+	public void setMillisPerPage(double millisPerPage) {
+		this.millisPerPage = millisPerPage;
+	}
+
+	/**
+	 * 
+	 * @param volumeID
+	 * @return number of pages served for given volume, always the same
+	 */
+	public int getNumPages(String volumeID) {
+		if (maxPages <= numPages)
+			return numPages;
+
+		// hash codes of ids like vol.1, vol.2 are close, spread them
+		double u = new Random(volumeID.hashCode() * 0x9E3779B97F4A7C15L)
+				.nextDouble();
+
+		return (int) Math.round(numPages
+				* Math.pow((double) maxPages / numPages, u));
+	}
+
+	/**
+	 * 
+	 * @param pageSize
+	 *            approximate bytes of made-up text per page, 0 for a single
+	 *            line
+	 */
+	public void setPageSize(int pageSize) {
+		this.pageSize = pageSize;
+	}
+
+	/**
+	 * 
+	 * @param zipLevel
+	 *            compression level of zip entries, 0 stores text as is
+	 */
+	public void setZipLevel(int zipLevel) {
+		this.zipLevel = zipLevel;
+	}
+
+	/**
+	 * 
+	 * @param contentCoding
+	 *            whether responses are gzip or deflate coded when the request
+	 *            accepts it
+	 */
+	public void setContentCoding(boolean contentCoding) {
+		this.contentCoding = contentCoding;
+	}
+
+	public synchronized int getRequestsServed() {
+		return requestsServed;
+	}
+
+	/**
+	 *
+	 * @return number of distinct client connections requests came from
+	 */
+	public synchronized int getConnectionsOpened() {
+		return connections.size();
+	}
+
+	private synchronized void countRequest(HttpExchange exchange) {
+		requestsServed++;
+		connections.add(exchange.getRemoteAddress());
+	}
+
+	private static void respond(HttpExchange exchange, byte[] body)
+			throws IOException {
+		// drain request body so that the connection can be reused
+		while (exchange.getRequestBody().read() != -1)
+			;
+
+		exchange.sendResponseHeaders(200, body.length);
+		OutputStream out = exchange.getResponseBody();
+		out.write(body);
+		out.close();
+	}
+
+	private byte[] zipVolumes(String[] volumeIDs) throws IOException {
+		ByteArrayOutputStream zipped = new ByteArrayOutputStream();
+		ZipOutputStream zip = new ZipOutputStream(zipped);
+		zip.setLevel(zipLevel);
+
+		for (String volumeID : volumeIDs) {
+			zip.putNextEntry(new ZipEntry(volumeID + "/"));
+			zip.closeEntry();
+
+			// same volume, same text
+			Random random = new Random(volumeID.hashCode());
+
+			int volumePages = getNumPages(volumeID);
+
+			for (int p = 1; p <= volumePages; p++) {
+				StringBuilder page = new StringBuilder(String.format(
+						"page %d of %s\n", p, volumeID));
+
+				// made-up words of a Zipf-like vocabulary
+				while (page.length() < pageSize) {
+					for (int w = 0; w < 10; w++) {
+						int word = (int) Math.pow(50000, random.nextDouble());
+						page.append(Integer.toString(word, 36)).append(
+								w < 9 ? ' ' : '\n');
+					}
+				}
+
+				zip.putNextEntry(new ZipEntry(String.format("%s/%08d.txt",
+						volumeID, p)));
+				zip.write(page.toString().getBytes("UTF-8"));
+				zip.closeEntry();
+			}
+		}
+
+		zip.close();
+		return zipped.toByteArray();
+	}
+
+	/**
+	 *
+	 * @param keyStorePath
+	 *            JKS key store holding the server certificate
+	 * @param password
+	 *            of the key store and the key
+	 * @return
+	 * @throws Exception
+	 */
+	public static SSLContext serverSSLContext(String keyStorePath,
+			String password) throws Exception {
+		KeyStore keyStore = KeyStore.getInstance("JKS");
+		FileInputStream in = new FileInputStream(keyStorePath);
+		try {
+			keyStore.load(in, password.toCharArray());
+		} finally {
+			in.close();
+		}
+
+		KeyManagerFactory keyManagerFactory = KeyManagerFactory
+				.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+		keyManagerFactory.init(keyStore, password.toCharArray());
+
+		SSLContext sslContext = SSLContext.getInstance("TLS");
+		sslContext.init(keyManagerFactory.getKeyManagers(), null, null);
+		return sslContext;
+	}
+
+	public static void main(String[] args) throws Exception {
+		if (args.length != 1 && args.length != 2 && args.length != 4) {
+			System.err
+					.printf("Usage: %s <port> [latency ms] [</path/to/keystore> <password>]\n",
+							StubDataAPIServer.class.getSimpleName());
+			System.exit(-1);
+		}
+
+		SSLContext sslContext = (args.length == 4) ? serverSSLContext(
+				args[2], args[3]) : null;
+
+		final StubDataAPIServer stub = new StubDataAPIServer(
+				Integer.parseInt(args[0]), args.length > 1 ? Long
+						.parseLong(args[1]) : 0, sslContext);
+		stub.start();
+
+		System.out.println(String.format(
+				"data.api.epr=%s, data.api.vol.prefix=%s, "
+						+ "data.api.delimiter=%s, oauth2.epr=%s%s",
+				stub.getEPR(), VOL_PREFIX, DELIMITER, stub.getEPR(),
+				OAUTH2_PATH));
+
+		// report every few seconds until killed
+		while (true) {
+			Thread.sleep(5000);
+			System.out.println(String.format(
+					"requests served = %d, connections opened = %d",
+					stub.getRequestsServed(), stub.getConnectionsOpened()));
+		}
+	}
+}
@@ -19,16 +19,80 @@ package edu.indiana.d2i.htrc.test;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
 
 import org.apache.commons.cli.CommandLine;
 import org.apache.commons.cli.Option;
 import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.FileUtil;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.ArrayWritable;
+import org.apache.hadoop.io.DataInputBuffer;
+import org.apache.hadoop.io.DataOutputBuffer;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.Writable;
 import org.apache.hadoop.util.GenericOptionsParser;
 
+import edu.indiana.d2i.htrc.corpus.CorpusProcessingUtils;
+import edu.indiana.d2i.htrc.corpus.CorpusProcessingUtils.MappingTableEntry;
+import edu.indiana.d2i.htrc.corpus.TextArrayWritable;
+import edu.indiana.d2i.htrc.corpus.VolumeTokensWritable;
+import edu.indiana.d2i.htrc.corpus.WordIndexRemap;
 import edu.indiana.d2i.htrc.corpus.analysis.LDAAnalysisDriver;
+import edu.indiana.d2i.htrc.corpus.analysis.LDAAnalyzer;
+import edu.indiana.d2i.htrc.corpus.analysis.LDAAnalyzer.TopicAssignments;
+import edu.indiana.d2i.htrc.corpus.analysis.LDAAnalyzer.TopicsDocumentsTable;
+import edu.indiana.d2i.htrc.corpus.analysis.LDAAnalyzer.TopicsDocumentsTable.Layout;
+import edu.indiana.d2i.htrc.corpus.analysis.LDAAnalyzer.WordsTopicsTable;
+import edu.indiana.d2i.htrc.corpus.analysis.LDAModelFile;
+import edu.indiana.d2i.htrc.corpus.analysis.LDAStateUtils;
 
+/**
+ * Checks of the code logic, run as
+ *
+ * java edu.indiana.d2i.htrc.test.TestSuite [test name]
+ *
+ * Round-trip tests write synthetic values in a binary format, read them back
+ * and throw IllegalStateException on the first mismatch, "formats" (the
+ * default) runs all of them
+ *
+ */
 public class TestSuite {
 
+	private static void check(boolean condition, String format,
+			Object... args) {
+		if (!condition)
+			throw new IllegalStateException(String.format(format, args));
+	}
+
+	/**
+	 * writes a Writable and reads it into another one, which must consume
+	 * all bytes written
+	 *
+	 * @return bytes written
+	 */
+	private static byte[] roundTrip(Writable from, Writable to)
+			throws IOException {
+		DataOutputBuffer out = new DataOutputBuffer();
+		from.write(out);
+
+		DataInputBuffer in = new DataInputBuffer();
+		in.reset(out.getData(), out.getLength());
+		to.readFields(in);
+
+		check(in.getPosition() == out.getLength(),
+				"%s read %d of %d bytes", to.getClass().getSimpleName(),
+				in.getPosition(), out.getLength());
+
+		return Arrays.copyOf(out.getData(), out.getLength());
+	}
+
 	public static void testCommandLineParser(String[] args) throws IOException {
 		GenericOptionsParser parser = new GenericOptionsParser(
 				new Configuration(), args);
@@ -74,27 +138,509 @@ public class TestSuite {
 		}
 	}
 
+	/**
+	 * volumes of random pages, empty pages and an empty volume included, are
+	 * read back into one reused instance
+	 */
+	public static void testVolumeTokens() throws IOException {
+		Random random = new Random(0);
+		VolumeTokensWritable read = new VolumeTokensWritable();
+
+		for (int v = 0; v < 200; v++) {
+			VolumeTokensWritable volume = new VolumeTokensWritable();
+			int numPages = (v == 0) ? 0 : random.nextInt(20);
+
+			for (int p = 0; p < numPages; p++) {
+				int numTokens = (random.nextInt(4) == 0) ? 0 : random
+						.nextInt(500);
+
+				// ids of all varint lengths
+				for (int t = 0; t < numTokens; t++)
+					volume.addToken(random.nextInt(Integer.MAX_VALUE) >>> random
+							.nextInt(31));
+
+				volume.endPage();
+			}
+
+			roundTrip(volume, read);
+
+			check(read.getNumPages() == volume.getNumPages()
+					&& read.getNumTokens() == volume.getNumTokens(),
+					"volume %d: %d pages, %d tokens read, %d, %d written", v,
+					read.getNumPages(), read.getNumTokens(),
+					volume.getNumPages(), volume.getNumTokens());
+
+			for (int p = 0; p < volume.getNumPages(); p++)
+				check(read.getPageStart(p) == volume.getPageStart(p)
+						&& read.getPageEnd(p) == volume.getPageEnd(p),
+						"volume %d: bounds of page %d differ", v, p);
+
+			for (int t = 0; t < volume.getNumTokens(); t++)
+				check(read.getTokens()[t] == volume.getTokens()[t],
+						"volume %d: token %d differs", v, t);
+		}
+	}
+
+	public static void testTopicAssignments() throws IOException {
+		Random random = new Random(0);
+		TopicAssignments read = new TopicAssignments();
+
+		for (int size : new int[] { 0, 1, 1000, 100000, 10 }) {
+			TopicAssignments assignments = new TopicAssignments();
+			assignments.resize(size);
+
+			for (int i = 0; i < size; i++)
+				assignments.getTopics()[i] = random.nextInt(1 << 20) >>> random
+						.nextInt(20);
+
+			roundTrip(assignments, read);
+
+			check(read.size() == size, "%d assignments read, %d written",
+					read.size(), size);
+			for (int i = 0; i < size; i++)
+				check(read.getTopics()[i] == assignments.getTopics()[i],
+						"assignment %d of %d differs", i, size);
+		}
+	}
+
+	/**
+	 * dense and sparse tables with rows of all encodings (empty, pairs,
+	 * dense, and dense rows of a sparse table), with and without negative
+	 * counts, which are zigzag encoded
+	 */
+	public static void testWordsTopicsTable() throws IOException {
+		int numWords = 500;
+		int numTopics = 40;
+
+		for (boolean sparse : new boolean[] { false, true }) {
+			for (boolean deltas : new boolean[] { false, true }) {
+				Random random = new Random(0);
+				WordsTopicsTable table = new WordsTopicsTable(numWords,
+						numTopics, sparse);
+
+				for (int w = 0; w < numWords; w++) {
+					int nonZeros = (w % 4 == 0) ? 0 : (w % 4 == 1) ? 2 : (w % 4 == 2) ? numTopics / 3
+							: numTopics;
+
+					for (int n = 0; n < nonZeros; n++) {
+						int count = 1 + random.nextInt(1000);
+
+						table.add(w, random.nextInt(numTopics),
+								(deltas && random.nextBoolean()) ? -count
+										: count);
+					}
+				}
+
+				// extremes of the varint and zigzag encodings
+				table.setValue(1, 0, Integer.MAX_VALUE);
+				if (deltas)
+					table.setValue(2, 0, Integer.MIN_VALUE);
+
+				WordsTopicsTable read = new WordsTopicsTable();
+				byte[] written = roundTrip(table, read);
+
+				String name = (sparse ? "sparse" : "dense")
+						+ (deltas ? " deltas" : "");
+
+				check(read.isSparse() == sparse
+						&& read.getNumWords() == numWords
+						&& read.getNumTopics() == numTopics,
+						"%s table read with other form or dimensions", name);
+
+				for (int w = 0; w < numWords; w++)
+					for (int k = 0; k < numTopics; k++)
+						check(read.getValue(w, k) == table.getValue(w, k),
+								"%s table: count of word %d, topic %d is %d, %d written",
+								name, w, k, read.getValue(w, k),
+								table.getValue(w, k));
+
+				// the encoding doesn't depend on how rows are held
+				check(Arrays.equals(roundTrip(read, new WordsTopicsTable()),
+						written), "%s table encoded differently when re-read",
+						name);
+			}
+		}
+	}
+
+	private static TopicsDocumentsTable syntheticTopicsDocumentsTable(
+			int numTopics, int numDocuments, Layout layout, Random random) {
+		TopicsDocumentsTable table = new TopicsDocumentsTable(numTopics, 50,
+				layout);
+		float[] values = new float[numTopics];
+
+		for (int j = 0; j < numDocuments; j++) {
+			// mostly zero documents are encoded as pairs, others in full
+			int nonZeros = (j % 3 == 0) ? numTopics : random.nextInt(4);
+
+			Arrays.fill(values, 0);
+			for (int n = 0; n < nonZeros; n++)
+				values[random.nextInt(numTopics)] = random.nextFloat() * 100;
+
+			// IDs of other lengths than their chars in UTF-8
+			table.setDocument(values, (j % 5 == 0) ? "" : "mdp.390\u00e9"
+					+ j + (j % 7 == 0 ? "\u4e2d" : ""));
+		}
+
+		return table;
+	}
+
+	private static void checkTopicsDocumentsEqual(TopicsDocumentsTable read,
+			TopicsDocumentsTable table, String name) {
+		int numTopics = table.getNumTopics();
+
+		check(read.getNumTopics() == numTopics
+				&& read.getNumDocuments() == table.getNumDocuments()
+				&& read.getStepSize() == table.getStepSize(),
+				"%s: %d topics, %d documents read, %d, %d written", name,
+				read.getNumTopics(), read.getNumDocuments(), numTopics,
+				table.getNumDocuments());
+		check(read.getDocumentsID().equals(table.getDocumentsID()),
+				"%s: document IDs differ", name);
+
+		float[] expected = new float[numTopics];
+		float[] values = new float[numTopics];
+
+		for (int j = 0; j < table.getNumDocuments(); j++) {
+			table.getDocument(j, expected);
+			read.getDocument(j, values);
+
+			check(Arrays.equals(values, expected),
+					"%s: values of document %d differ", name, j);
+		}
+	}
+
+	/**
+	 * tables of both layouts, large enough for documents to span several
+	 * blocks on the wire. Document IDs must be written as an ArrayWritable of
+	 * Text, followed by the step size
+	 */
+	public static void testTopicsDocumentsTable() throws IOException {
+		int numTopics = 30;
+		int numDocuments = 20000;
+
+		for (Layout layout : Layout.values()) {
+			TopicsDocumentsTable table = syntheticTopicsDocumentsTable(
+					numTopics, numDocuments, layout, new Random(0));
+
+			TopicsDocumentsTable read = new TopicsDocumentsTable();
+			byte[] written = roundTrip(table, read);
+
+			check(read.getLayout() == layout, "%s table read as %s", layout,
+					read.getLayout());
+			checkTopicsDocumentsEqual(read, table, layout.toString());
+
+			List<String> ids = table.getDocumentsID();
+			Text[] texts = new Text[ids.size()];
+			for (int j = 0; j < texts.length; j++)
+				texts[j] = new Text(ids.get(j));
+
+			DataOutputBuffer out = new DataOutputBuffer();
+			new ArrayWritable(Text.class, texts).write(out);
+			out.writeInt(table.getStepSize());
+
+			byte[] expected = Arrays.copyOf(out.getData(), out.getLength());
+			byte[] tail = Arrays.copyOfRange(written, written.length
+					- expected.length, written.length);
+
+			check(Arrays.equals(tail, expected),
+					"%s table: document IDs not written as ArrayWritable of Text",
+					layout);
+		}
+
+		// concatenation across layouts, the result must serialize as well
+		for (Layout layout : Layout.values()) {
+			Random random = new Random(1);
+			List<TopicsDocumentsTable> tables = new ArrayList<TopicsDocumentsTable>();
+			List<Layout> layouts = new ArrayList<Layout>();
+			TopicsDocumentsTable expected = new TopicsDocumentsTable(
+					numTopics, 50, layout);
+			float[] values = new float[numTopics];
+
+			for (int t = 0; t < 4; t++) {
+				TopicsDocumentsTable partial = syntheticTopicsDocumentsTable(
+						numTopics, 100 + t, (t % 2 == 0) ? layout : Layout
+								.values()[1 - layout.ordinal()], random);
+				tables.add(partial);
+				layouts.add(partial.getLayout());
+
+				for (int j = 0; j < partial.getNumDocuments(); j++) {
+					partial.getDocument(j, values);
+					expected.setDocument(values, partial.getDocumentsID()
+							.get(j));
+				}
+			}
+
+			TopicsDocumentsTable concatenated = TopicsDocumentsTable
+					.concatenate(tables);
+
+			for (int t = 0; t < tables.size(); t++)
+				check(tables.get(t).getLayout() == layouts.get(t),
+						"concatenate changed the layout of table %d", t);
+
+			TopicsDocumentsTable read = new TopicsDocumentsTable();
+			roundTrip(concatenated, read);
+
+			checkTopicsDocumentsEqual(read, expected, "concatenated "
+					+ layout);
+		}
+	}
+
+	private static List<MappingTableEntry> syntheticMappingTable(int numWords) {
+		List<MappingTableEntry> mappingTable = new ArrayList<MappingTableEntry>();
+
+		for (int i = 0; i < numWords; i++)
+			mappingTable.add(new MappingTableEntry("w" + i, i));
+
+		return mappingTable;
+	}
+
+	/**
+	 * writes a words-topics table as model files of 3 shards and maps them
+	 * back. An analyzer sampling the mapped counts must assign the same
+	 * topics as one holding the table on heap, with the same seed
+	 */
+	public static void testModelFile() throws IOException {
+		int numWords = 3001;
+		int numTopics = 20;
+		int numShards = 3;
+		Random random = new Random(0);
+
+		WordsTopicsTable table = new WordsTopicsTable(numWords, numTopics);
+		for (int w = 0; w < numWords; w++)
+			for (int n = random.nextInt(30); n > 0; n--)
+				table.increment(w, random.nextInt(numTopics));
+
+		List<MappingTableEntry> mappingTable = syntheticMappingTable(numWords);
+		List<String> topics = new ArrayList<String>();
+		for (int k = 0; k < numTopics; k++)
+			topics.add("topic-" + k);
+
+		File dir = File.createTempFile("lda-test", "");
+		dir.delete();
+		dir.mkdirs();
+
+		try {
+			FileSystem fs = FileSystem.getLocal(new Configuration());
+			List<File> files = new ArrayList<File>();
+
+			// reversed, shards are found by file name
+			for (int s = numShards - 1; s >= 0; s--) {
+				File file = new File(dir, LDAModelFile.fileName(s));
+
+				LDAModelFile.write(fs, new Path(file.getPath()), table.slice(
+						LDAStateUtils.wordShardStart(numWords, numShards, s),
+						LDAStateUtils.wordShardStart(numWords, numShards,
+								s + 1)));
+				files.add(file);
+			}
+
+			LDAModelFile model = LDAModelFile.open(files, numWords,
+					numTopics);
+
+			int[] totals = new int[numTopics];
+			for (int w = 0; w < numWords; w++)
+				for (int k = 0; k < numTopics; k++)
+					totals[k] += table.getValue(w, k);
+
+			check(Arrays.equals(model.getTopicCounts(), totals),
+					"topic counts of model files differ");
+
+			LDAAnalyzer mapped = new LDAAnalyzer(model, mappingTable, topics,
+					50, 0.5, 0.01, 0);
+			LDAAnalyzer heap = new LDAAnalyzer(table, new TopicsDocumentsTable(
+					numTopics, 50), mappingTable, topics, 0.5, 0.01, 0);
+
+			TopicAssignments mappedAssignments = new TopicAssignments();
+			TopicAssignments heapAssignments = new TopicAssignments();
+			VolumeTokensWritable volume = new VolumeTokensWritable();
+
+			for (int v = 0; v < 50; v++) {
+				volume.clear();
+				for (int t = 0; t < 200; t++)
+					volume.addToken(random.nextInt(numWords));
+				volume.endPage();
+
+				mapped.updateWordsTopicsTable(volume, mappedAssignments);
+				heap.updateWordsTopicsTable(volume, heapAssignments);
+
+				mapped.updateWordsTopicsTable(volume, mappedAssignments);
+				heap.updateWordsTopicsTable(volume, heapAssignments);
+
+				check(Arrays.equals(Arrays.copyOf(mappedAssignments
+						.getTopics(), mappedAssignments.size()), Arrays.copyOf(
+						heapAssignments.getTopics(), heapAssignments.size())),
+						"volume %d sampled differently from model files", v);
+			}
+
+			// shard 0 (added last) missing
+			try {
+				LDAModelFile.open(files.subList(0, numShards - 1), numWords,
+						numTopics);
+				check(false, "model files with a missing shard were opened");
+			} catch (IOException e) {
+				// expected
+			}
+		} finally {
+			FileUtil.fullyDelete(dir);
+		}
+	}
+
+	/**
+	 * remaps of a sub set with full indices up to 2^30 (hashed) and 2^20
+	 * (dense), duplicates included, against a HashMap keeping the first
+	 * entry, on binary and text volumes
+	 */
+	public static void testWordIndexRemap() {
+		for (int fullSetSize : new int[] { 1 << 20, 1 << 30 }) {
+			Random random = new Random(0);
+			int subSetSize = 20000;
+
+			List<Integer> mappingIndices = new ArrayList<Integer>(subSetSize);
+			Map<Integer, Integer> expected = new HashMap<Integer, Integer>();
+
+			for (int i = 0; i < subSetSize; i++) {
+				// consecutive runs and duplicates
+				int fullIdx = (i > 0 && i % 10 == 0) ? mappingIndices
+						.get(random.nextInt(i)) : (i % 3 == 0) ? i : random
+						.nextInt(fullSetSize);
+
+				mappingIndices.add(fullIdx);
+				if (!expected.containsKey(fullIdx))
+					expected.put(fullIdx, i);
+			}
+
+			WordIndexRemap remap = WordIndexRemap.build(mappingIndices);
+			String name = remap.isDense() ? "dense" : "hashed";
+
+			check(remap.isDense() == (fullSetSize <= 1 << 20),
+					"remap of full set %d is %s", fullSetSize, name);
+			check(remap.size() == subSetSize, "%s remap of size %d", name,
+					remap.size());
+
+			int[] queries = new int[50000];
+			for (int q = 0; q < queries.length; q++)
+				queries[q] = (q % 2 == 0) ? mappingIndices.get(random
+						.nextInt(subSetSize)) : random.nextInt(fullSetSize);
+			queries[0] = -1;
+			queries[1] = Integer.MAX_VALUE;
+			queries[2] = fullSetSize;
+
+			for (int fullIdx : queries) {
+				Integer subIdx = expected.get(fullIdx);
+
+				check(remap.get(fullIdx) == (subIdx == null ? WordIndexRemap.NOT_FOUND
+						: subIdx), "%s remap of %d is %d, not %s", name,
+						fullIdx, remap.get(fullIdx), subIdx);
+			}
+
+			// binary volume, pages of queries
+			VolumeTokensWritable volume = new VolumeTokensWritable();
+			List<Integer> kept = new ArrayList<Integer>();
+			StringBuilder[] pages = new StringBuilder[10];
+
+			for (int p = 0; p < pages.length; p++) {
+				pages[p] = new StringBuilder();
+
+				for (int q = p * 1000 + 3; q < (p + 1) * 1000; q++) {
+					volume.addToken(queries[q]);
+
+					if (pages[p].length() > 0)
+						pages[p].append(' ');
+					pages[p].append(queries[q]);
+
+					if (expected.containsKey(queries[q]))
+						kept.add(expected.get(queries[q]));
+				}
+
+				volume.endPage();
+			}
+
+			CorpusProcessingUtils.fullWordSet2SubWordSet(volume, remap);
+
+			check(volume.getNumTokens() == kept.size()
+					&& volume.getNumPages() == pages.length,
+					"%s remap kept %d tokens of %d pages, not %d", name,
+					volume.getNumTokens(), volume.getNumPages(), kept.size());
+			for (int t = 0; t < kept.size(); t++)
+				check(volume.getTokens()[t] == kept.get(t),
+						"%s remap: token %d differs", name, t);
+
+			// text volume, against looking indices up as strings
+			Text[] texts = new Text[pages.length];
+			Text[] indexed = new Text[pages.length];
+			for (int p = 0; p < pages.length; p++) {
+				texts[p] = new Text(pages[p].toString());
+				indexed[p] = new Text(pages[p].toString());
+			}
+
+			TextArrayWritable textVolume = new TextArrayWritable();
+			textVolume.set(texts);
+			CorpusProcessingUtils.fullWordSet2SubWordSet(textVolume, remap);
+
+			TextArrayWritable indexedVolume = new TextArrayWritable();
+			indexedVolume.set(indexed);
+			CorpusProcessingUtils.fullWordSet2SubWordSet(indexedVolume,
+					CorpusProcessingUtils.indexMappingIndices(mappingIndices));
+
+			for (int p = 0; p < pages.length; p++)
+				check(texts[p].equals(indexed[p]),
+						"%s remap: text page %d differs from string lookup",
+						name, p);
+		}
+	}
+
+	public static void testFormats() throws IOException {
+		testVolumeTokens();
+		testTopicAssignments();
+		testWordsTopicsTable();
+		testTopicsDocumentsTable();
+		testModelFile();
+		testWordIndexRemap();
+	}
+
 	/**
 	 * @param args
 	 * @throws IOException
 	 */
 	public static void main(String[] args) throws IOException {
-		// TODO Auto-generated method stub
+		String test = args.length > 0 ? args[0] : "formats";
 
-		String[] commandLineArgs = {
-				"-D",
-				"user.args.mapping.table.filename=mapping_table",
-				"-D",
-				"user.args.topics.filename=topics",
-				"-D",
-				"user.args.topdoctable.capacity.stepsize=50",
-				"-libjars",
-				"/home/gruan/hadoop-1.0.4/hadoop-tools-1.0.4.jar,/home/gruan/hadoop-1.0.4/hadoop-client-1.0.4.jar",
-				"-files",
-				"/home/gruan/tmp/mapping_table,/home/gruan/tmp/topics",
-				"corpus-input", "lda-analysis" };
-
-		testCommandLineParser(commandLineArgs);
+		if ("formats".equals(test)) {
+			testFormats();
+		} else if ("volume".equals(test)) {
+			testVolumeTokens();
+		} else if ("assignments".equals(test)) {
+			testTopicAssignments();
+		} else if ("wordstopics".equals(test)) {
+			testWordsTopicsTable();
+		} else if ("topicsdocuments".equals(test)) {
+			testTopicsDocumentsTable();
+		} else if ("modelfile".equals(test)) {
+			testModelFile();
+		} else if ("remap".equals(test)) {
+			testWordIndexRemap();
+		} else if ("commandline".equals(test)) {
+			String[] commandLineArgs = {
+					"-D",
+					"user.args.mapping.table.filename=mapping_table",
+					"-D",
+					"user.args.topics.filename=topics",
+					"-D",
+					"user.args.topdoctable.capacity.stepsize=50",
+					"-libjars",
+					"/home/gruan/hadoop-1.0.4/hadoop-tools-1.0.4.jar,/home/gruan/hadoop-1.0.4/hadoop-client-1.0.4.jar",
+					"-files",
+					"/home/gruan/tmp/mapping_table,/home/gruan/tmp/topics",
+					"corpus-input", "lda-analysis" };
+
+			testCommandLineParser(commandLineArgs);
+			return;
+		} else {
+			System.err.println("Unknown test: " + test);
+			System.exit(-1);
+		}
+
+		System.out.println(String.format("Test %s passed", test));
 	}
 
 }